@@ -5,3 +5,10 @@ CREATE TABLE IF NOT EXISTS CREDENTIAL(
     PASSWORD VARCHAR(32),
     SALT VARCHAR(32)
 );
+CREATE TABLE IF NOT EXISTS INBOX(
+    ID BIGINT AUTO_INCREMENT PRIMARY KEY,
+    LOGIN VARCHAR(100) NOT NULL,
+    MESSAGE TEXT NOT NULL,
+    CREATED BIGINT NOT NULL,
+    INDEX (LOGIN, ID)
+);
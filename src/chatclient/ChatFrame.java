@@ -7,6 +7,7 @@ package chatclient;
 import java.awt.Frame;
 import java.awt.event.ComponentListener;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.InputStreamReader;
 import java.io.IOException;
@@ -16,12 +17,15 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import java.awt.event.KeyEvent;
 import javax.swing.JComponent;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JPasswordField;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  *
@@ -29,7 +33,22 @@ import java.net.UnknownHostException;
  */
 public class ChatFrame extends javax.swing.JFrame {
 
+    /** Most cached messages shown when the window opens */
+    private static final int CACHED_MESSAGES_SHOWN = 500;
+
+    /** Time between the pings measuring the round trip to the server */
+    private static final int PING_INTERVAL_MS = 2000;
+
     private Client client;
+
+    /** Latest round trip to the server, and breakdown of the latest traced
+     *  line, as shown in the title bar. Only used on the event thread. */
+    private long roundTripMillis = -1;
+    private String traceBreakdown;
+
+    /** The last search, and the page of its results last asked for */
+    private String searchQuery;
+    private int searchPage;
     
     /**
      * Creates new form TestUI
@@ -38,6 +57,19 @@ public class ChatFrame extends javax.swing.JFrame {
         initComponents();
         
         client = cli;
+        showCachedMessages();
+    }
+
+    /** Fill the window with the messages cached from earlier sessions right
+     *  away, the server is only asked for what is newer once logged in */
+    private void showCachedMessages() {
+        MessageCache cache = client.getCache();
+        if (cache == null) return;
+        StringBuilder text = new StringBuilder();
+        for (String line : cache.recent(CACHED_MESSAGES_SHOWN)) {
+            text.append(ChatListener.describe(line)).append('\n');
+        }
+        chatTextPane.setText(text.toString());
     }
 
     /**
@@ -113,17 +145,67 @@ public class ChatFrame extends javax.swing.JFrame {
 
 
     private void sendButtonMousePressed(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_sendButtonMousePressed
-        client.sendChatMessage(sendTextField.getText());
-        sendTextField.setText("");
+        send();
     }//GEN-LAST:event_sendButtonMousePressed
 
     private void sendTextFieldKeyPressed(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_sendTextFieldKeyPressed
         if (evt.getKeyCode() == KeyEvent.VK_ENTER) {
-            client.sendChatMessage(sendTextField.getText());
-            sendTextField.setText("");
+            send();
         }
     }//GEN-LAST:event_sendTextFieldKeyPressed
 
+    /** Send the text field as a chat message. "/attach" picks a file to share
+     *  and "/download id" saves a file someone has shared. "/search words"
+     *  finds earlier lines, "/more" shows the next page of what it found. */
+    private void send() {
+        String text = sendTextField.getText();
+        sendTextField.setText("");
+        if (text.equals("/attach")) {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                final File file = chooser.getSelectedFile();
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            client.shareAttachment(file);
+                        } catch (IOException e) {
+                            System.err.println(e);
+                            chatTextPane.setText(chatTextPane.getText()
+                                    + "ChatServer: Your file could not be shared, it may be empty or too large.\n");
+                        }
+                    }
+                }).start();
+            }
+        } else if (text.startsWith("/download ")) {
+            final String id = text.substring(10).trim();
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                final File file = chooser.getSelectedFile();
+                new Thread(new Runnable() {
+                    public void run() {
+                        boolean saved = false;
+                        try {
+                            saved = client.downloadAttachment(id, file);
+                        } catch (IOException e) {
+                            System.err.println(e);
+                        }
+                        chatTextPane.setText(chatTextPane.getText() + (saved
+                                ? "ChatServer: Saved " + file.getName() + ".\n"
+                                : "ChatServer: Could not download " + id + ".\n"));
+                    }
+                }).start();
+            }
+        } else if (text.startsWith("/search ")) {
+            searchQuery = text.substring(8).trim();
+            searchPage = 1;
+            if (searchQuery.length() > 0) client.search(searchQuery, searchPage);
+        } else if (text.equals("/more") && searchQuery != null) {
+            client.search(searchQuery, ++searchPage);
+        } else {
+            client.sendChatMessage(text);
+        }
+    }
+
     private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosed
         client.sendQuitMessage();
         client.disconnect();
@@ -132,7 +214,43 @@ public class ChatFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_formWindowClosed
 
     public void startChatListener() {
-        new Thread(new ChatListener(client, chatTextPane, userList)).start();
+        new Thread(new ChatListener(this, client, chatTextPane, userList)).start();
+        
+        /** Keep the round trip shown in the title up to date */
+        new javax.swing.Timer(PING_INTERVAL_MS, new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                client.ping();
+            }
+        }).start();
+        client.ping();
+    }
+
+    /** Show the latest round trip to the server in the title bar */
+    void showRoundTrip(final long millis) {
+        java.awt.EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                roundTripMillis = millis;
+                updateTitle();
+            }
+        });
+    }
+
+    /** Show where the time of the latest traced line went, after the round
+     *  trip in the title bar, see Client.traceCompleted() */
+    void showTrace(final String breakdown) {
+        java.awt.EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                traceBreakdown = breakdown;
+                updateTitle();
+            }
+        });
+    }
+
+    private void updateTitle() {
+        String title = "ChatClient";
+        if (roundTripMillis >= 0) title += " - " + roundTripMillis + " ms";
+        if (traceBreakdown != null) title += " - last line " + traceBreakdown;
+        setTitle(title);
     }
 
     /**
@@ -218,27 +336,123 @@ public class ChatFrame extends javax.swing.JFrame {
 
 class ChatListener implements Runnable {
 
+    private ChatFrame frame;
     private JTextPane chatBox;
     private JList usernameList;
     private Client client;
 
-    ChatListener(Client cli, JTextPane chatTextPane, JList jList1) {
+    ChatListener(ChatFrame chatFrame, Client cli, JTextPane chatTextPane, JList jList1) {
+        frame = chatFrame;
         chatBox = chatTextPane;
         usernameList = jList1;
         client = cli;
     }
 
+    /** Text shown for a message kept in the cache, attachments are shown
+     *  with how to download them */
+    static String describe(String line) {
+        if (line.startsWith("ATTACHMENT ")) {
+            String[] ref = line.split(" ", 5);
+            if (ref.length == 5) {
+                return ref[3] + " shared " + ref[4] + " (" + ref[2]
+                        + " bytes), type /download " + ref[1] + " to save it.";
+            }
+        }
+        return line;
+    }
+
+    /** Text shown for the "SEARCH_RESULTS page pages total" heading the
+     *  lines a search found */
+    static String describeResults(String line) {
+        String[] counts = line.split(" ");
+        int page = Integer.parseInt(counts[1]);
+        int pages = Integer.parseInt(counts[2]);
+        int total = Integer.parseInt(counts[3]);
+        if (total == 0) return "ChatServer: No earlier lines found.";
+        if (page > pages) return "ChatServer: No more lines to show.";
+        return "ChatServer: " + total + " earlier lines found, page " + page + " of " + pages
+                + (page < pages ? ", type /more for the next page." : ".");
+    }
+
     public void run() {
-        while (true) {
-            String line;
-            if ((line = client.read()) != null) {
-                if (line.startsWith("USERLIST: ")) {
-                    String[] usernames = line.substring(line.indexOf(' ')).split(" ");
-                    usernameList.setListData(usernames);
-                } else {
-                    chatBox.setText(chatBox.getText() + line + "\n");
-                }
+        String line;
+        MessageCache cache = client.getCache();
+        while ((line = client.read()) != null) {
+            try {
+                if (!handle(line, cache)) break;
+            } catch (RuntimeException e) {
+                /** A line that does not parse is dropped, rather than
+                 *  ending the listener and with it the chat */
+                System.err.println("Dropped a malformed line: " + line);
+            }
+        }
+        client.disconnect();
+    }
+
+    /**
+     * Show or act on a line from the server.
+     *
+     * @return False once the server has said it is shutting down.
+     * @throws RuntimeException If the line is malformed.
+     */
+    private boolean handle(String line, MessageCache cache) {
+        
+        /** Once history has been asked for, every broadcast comes with
+         *  its sequence number and is cached before it is shown. A line
+         *  that came as a broadcast is never taken for a notice from the
+         *  server itself, whatever it says. */
+        boolean broadcast = false;
+        if (cache != null && (line.startsWith("SEQ ") || line.startsWith("HISTORY "))) {
+            broadcast = true;
+            int start = line.indexOf(' ') + 1;
+            int space = line.indexOf(' ', start);
+            if (space < 0) return true;
+            long sequence = Long.parseLong(line.substring(start, space));
+            line = line.substring(space + 1);
+            if (!line.startsWith("USERLIST: ")) cache.append(sequence, line);
+        } else if (cache != null && line.startsWith("HISTORY_EPOCH ")) {
+            long epoch = Long.parseLong(line.substring(14));
+            if (epoch != cache.getEpoch()) {
+                cache.reset(epoch);
+                chatBox.setText("");
             }
+            return true;
+        }
+
+        if (line.startsWith("PONG: ") && !broadcast) {
+            long millis = client.roundTripMillis(line);
+            if (millis >= 0) frame.showRoundTrip(millis);
+        } else if (line.startsWith("TRACE ") && !broadcast) {
+            String breakdown = client.traceCompleted(line);
+            if (breakdown != null) frame.showTrace(breakdown);
+        } else if (line.startsWith("USERLIST: ")) {
+            String[] usernames = line.substring(line.indexOf(' ')).split(" ");
+            usernameList.setListData(usernames);
+        } else if (line.startsWith("OFFLINE: ") && !broadcast) {
+            chatBox.setText(chatBox.getText() + "(while you were away) " + line.substring(9) + "\n");
+        } else if (line.equals("INVALID FRAME_TOO_LARGE")) {
+            chatBox.setText(chatBox.getText() + "ChatServer: Your message was too long and was not sent.\n");
+        } else if (line.equals("INVALID BLOCKED")) {
+            chatBox.setText(chatBox.getText() + "ChatServer: Your message was blocked by the server's filter.\n");
+        } else if (line.startsWith("ATTACHMENT ")) {
+            chatBox.setText(chatBox.getText() + describe(line) + "\n");
+        } else if (line.startsWith("SEARCH_RESULTS ") && !broadcast) {
+            chatBox.setText(chatBox.getText() + describeResults(line) + "\n");
+        } else if (line.startsWith("SEARCH_HIT ") && !broadcast) {
+            int space = line.indexOf(' ', 11);
+            if (space < 0) return true;
+            String when = new SimpleDateFormat("MMM d HH:mm").format(new Date(Long.parseLong(line.substring(11, space))));
+            chatBox.setText(chatBox.getText() + "(" + when + ") " + line.substring(space + 1) + "\n");
+        } else if (line.equals("SEARCH_UNAVAILABLE") && !broadcast) {
+            chatBox.setText(chatBox.getText() + "ChatServer: Search is not available on this server.\n");
+        } else if (line.equals("SERVER_DRAIN") && !broadcast) {
+            chatBox.setText(chatBox.getText() + "ChatServer: This server is shutting down, please reconnect.\n");
+            return false;
+        } else {
+            Client.MessageTrace trace = client.received(line);
+            chatBox.setText(chatBox.getText() + line + "\n");
+            if (trace != null) trace.rendered();
         }
+        return true;
     }
 }
@@ -5,60 +5,130 @@
 package chatclient;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Client
  * Will connect to the server using a Socket. Provides an interface to
- * to that socket to read and write to the socket.
+ * to that socket to read and write to the socket. The client can also be
+ * given any other pair of streams to talk over, such as in-memory pipes to
+ * a server running in the same JVM.
+ * 
+ * Attachments are moved over the same connection as the chat, as logical
+ * streams, see ClientStream. Lines belonging to a stream are handed to it by
+ * read() and never returned to the caller.
  * 
  * @author Cory Gross
  * @version October 22, 2012
  */
 public class Client {
-    private Socket server;
+    private Closeable server;
     private PrintWriter outputWriter;
     private BufferedReader inputBuffer;
     private String username;
     
+    /** Streams open on the connection, by id, and the id of the next one */
+    private ConcurrentHashMap<Long, ClientStream> streams = new ConcurrentHashMap<Long, ClientStream>();
+    private final AtomicLong nextStreamId = new AtomicLong();
+    
+    /** Recent messages from this server kept on disk, null if the cache
+     *  could not be opened */
+    private MessageCache cache;
+    
+    /** Most sent lines kept until the server is seen to have broadcast them */
+    private static final int MAX_UNCONFIRMED = 1000;
+    
+    /** Id given to the next chat line, starting at a random point so that
+     *  ids from an earlier run are not reused. Ids stay well within the 18
+     *  digits the server accepts. */
+    private long nextMessageId = new Random().nextLong() >>> 5;
+    
+    /** Chat lines sent but not yet seen coming back from the server, in the
+     *  order they were sent. They are sent again with the same ids after a
+     *  reconnect, and the server drops any it already broadcast. */
+    private ConcurrentLinkedQueue<String[]> unconfirmed = new ConcurrentLinkedQueue<String[]>();
+    
+    /** Set with -Dchatclient.trace=true to have every chat line traced
+     *  through the server, see traceCompleted() */
+    private final boolean tracing = Boolean.getBoolean("chatclient.trace");
+    private long nextTraceId;
+    
+    /** Traced lines whose server timings have not come back yet, in the
+     *  order they were sent */
+    private ConcurrentLinkedQueue<MessageTrace> traces = new ConcurrentLinkedQueue<MessageTrace>();
+    
     public boolean login(String user, String pass) {
         boolean accepted = false;
         
+        /** Ask for whatever was said since the cache was last updated, the
+         *  server sends it right after accepting the login */
+        if (cache != null) {
+            outputWriter.println("HISTORY: " + cache.getEpoch() + "," + cache.getLastSequence());
+        }
         outputWriter.println("LOGIN: " + user + "," + pass);
         outputWriter.flush();
-        String response;
-        try {
-            response = inputBuffer.readLine();
-            System.out.println("Response: " + response);
-            if(response.equals("ACCEPTED")) {
-                accepted = true;
-                username = user;
+        
+        /** Read the reply through read(), so a heartbeat PING sent while the
+         *  login dialog sat open is answered rather than taken for it */
+        String response = read();
+        if ("ACCEPTED".equals(response)) {
+            accepted = true;
+            username = user;
+            for (String[] sent : unconfirmed) {
+                write("MSG: " + sent[0] + "," + sent[1]);
             }
-        } catch(IOException e) {
-            System.err.println(e);
-            e.printStackTrace();
         }
         
         return accepted;
     }
     
     public void connect(String ip, short port) throws ConnectException, UnknownHostException, IOException {
-        server = new Socket(ip, port);
+        Socket socket = new Socket(ip, port);
+        try {
+            cache = MessageCache.open(ip, port);
+        } catch (IOException e) {
+            System.err.println("Message cache unavailable: " + e);
+        }
         try {
-            
-            inputBuffer = new BufferedReader(new InputStreamReader(server.getInputStream()));
-            outputWriter = new PrintWriter(server.getOutputStream());
+            connect(socket.getInputStream(), socket.getOutputStream(), socket);
         } catch (IOException e) {
             System.err.println(e);
             e.printStackTrace();
         }    
     }
     
+    /**
+     * Talk to the server over an already open pair of streams. No message
+     * cache is kept for such a connection.
+     *
+     * @param in Lines from the server.
+     * @param out Lines to the server.
+     * @param connection Closed along with the streams on disconnect().
+     */
+    public void connect(InputStream in, OutputStream out, Closeable connection) {
+        server = connection;
+        inputBuffer = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        outputWriter = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+    
     	/** Attempt to close the connection, including input/output streams. */
     public boolean disconnect() {
         try {
@@ -70,6 +140,8 @@ public class Client {
             return false;
         }
         outputWriter.close();
+        if (cache != null) cache.close();
+        resetStreams("DISCONNECTED");
         return true;
     }
     
@@ -79,24 +151,287 @@ public class Client {
         outputWriter.flush();
     }
 	
-    /** Attempt to read from the connection socket. */
+    /** Attempt to read from the connection socket. Heartbeat PINGs from the
+     *  server are answered here, and the lines of streams handed to them,
+     *  neither is returned to the caller. */
     public String read() {
         String line = null;
         try {
             line = inputBuffer.readLine();
+            while (line != null && (line.equals("PING") || line.startsWith("STREAM_"))) {
+                if (line.equals("PING")) write("PONG");
+                else streamLine(line);
+                line = inputBuffer.readLine();
+            }
         } catch(IOException e) {
             System.err.println(e);
             e.printStackTrace();
         }
+        if (line == null) resetStreams("DISCONNECTED");
         return line;
     }
     
+    /** Hand a "STREAM_OPEN id size window", "STREAM_DATA id data",
+     *  "STREAM_CREDIT id bytes", "STREAM_END id [result]" or
+     *  "STREAM_RESET id reason" line to its stream. Only streams this client
+     *  opened and whose end it has not yet seen are in the map, and a stream takes
+     *  only the lines it expects next, so a stray line is dropped without
+     *  touching a transfer. The server refuses chat lines that look like
+     *  these, see CommandParser.RESERVED. */
+    private void streamLine(String line) {
+        int start = line.indexOf(' ') + 1;
+        int end = line.indexOf(' ', start);
+        if (start == 0) return;
+        String rest = end < 0 ? "" : line.substring(end + 1);
+        ClientStream stream;
+        try {
+            stream = streams.get(Long.parseLong(end < 0 ? line.substring(start) : line.substring(start, end)));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (stream == null) return;
+        try {
+            if (line.startsWith("STREAM_DATA ")) {
+                stream.data(Base64.getDecoder().decode(rest));
+            } else if (line.startsWith("STREAM_CREDIT ")) {
+                stream.credit(Long.parseLong(rest));
+            } else if (line.startsWith("STREAM_OPEN ")) {
+                String[] parts = rest.split(" ");
+                stream.opened(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+            } else if (line.startsWith("STREAM_END ")) {
+                if (stream.ended(rest)) streams.remove(stream.getId());
+            } else if (line.startsWith("STREAM_RESET ")) {
+                streams.remove(stream.getId());
+                stream.reset(rest);
+            }
+        } catch (RuntimeException e) {
+            streams.remove(stream.getId());
+            stream.reset("MALFORMED");
+        }
+    }
+    
+    /** Fail every open stream, the connection has gone */
+    private void resetStreams(String reason) {
+        for (ClientStream stream : streams.values()) stream.reset(reason);
+        streams.clear();
+    }
+    
+    /** Forget a stream the caller has closed */
+    void closed(ClientStream stream) {
+        streams.remove(stream.getId());
+    }
+    
+    /** Open a logical stream on the connection for a "GET id" or
+     *  "PUT name,size" request */
+    private ClientStream openStream(String request, boolean upload) {
+        ClientStream stream = new ClientStream(this, nextStreamId.incrementAndGet(), upload);
+        streams.put(stream.getId(), stream);
+        write("OPEN: " + stream.getId() + "," + request);
+        return stream;
+    }
+    
+    /**
+     * Start downloading an attachment over the chat connection.
+     * 
+     * @param id Attachment id from an ATTACHMENT line.
+     * @return The stream, whose input stream delivers the attachment.
+     */
+    public ClientStream openDownload(String id) {
+        return openStream("GET " + id, false);
+    }
+    
+    /**
+     * Start uploading a file over the chat connection. Once the server has
+     * stored it the file is announced to the chat.
+     * 
+     * @param name File name, as it should be shown.
+     * @param size Exact number of bytes that will be written.
+     * @return The stream, whose output stream takes the file.
+     */
+    public ClientStream openUpload(String name, long size) {
+        return openStream("PUT " + name + "," + size, true);
+    }
+    
+    /** The cache of recent messages from this server, or null */
+    public MessageCache getCache() {
+        return cache;
+    }
+    
     public void sendChatMessage(String msg) {
-        write(username + ": " + msg);
+        String line = username + ": " + msg;
+        if (tracing && msg.length() > 0) {
+            long id = ++nextTraceId;
+            traces.offer(new MessageTrace(id, line));
+            write("TRACE: " + id);
+        }
+        String id = Long.toString(nextMessageId++);
+        unconfirmed.offer(new String[] { id, line });
+        if (unconfirmed.size() > MAX_UNCONFIRMED) unconfirmed.poll();
+        write("MSG: " + id + "," + line);
+    }
+    
+    /** Ask the server to echo a PONG, see roundTripMillis() */
+    public void ping() {
+        write("PING: " + System.nanoTime());
+    }
+    
+    /** Round trip time of the ping a "PONG: " line answers, in
+     *  milliseconds, or -1 if the line is not an answer to one */
+    public long roundTripMillis(String pong) {
+        try {
+            return (System.nanoTime() - Long.parseLong(pong.substring(6))) / 1000000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Check a broadcast line against the oldest line we sent, and the oldest
+     * traced line, which it is when the server sends our own line back.
+     * 
+     * @param line A line received from the server.
+     * @return The trace to mark rendered once the line is shown, or null.
+     */
+    public MessageTrace received(String line) {
+        if (line.startsWith(username + ": ")) {
+        
+            /** Lines before ours that never came back, such as ones the
+             *  server refused as too long, are given up on */
+            for (String[] sent : unconfirmed) {
+                if (!sent[1].equals(line)) continue;
+                while (unconfirmed.poll() != sent) {}
+                break;
+            }
+        }
+        
+        MessageTrace trace = traces.peek();
+        if (trace == null || trace.received != 0 || !trace.line.equals(line)) return null;
+        trace.received = System.nanoTime();
+        return trace;
+    }
+    
+    /**
+     * Complete a trace once the server's "TRACE id queueMicros fanOutMicros"
+     * line has arrived, which it does after our own copy of the line. The
+     * rest of the trip is split into time on the network, both ways, and
+     * time spent rendering, and the whole breakdown is reported back to the
+     * server with TRACED.
+     * 
+     * @param line The server's TRACE line.
+     * @return The breakdown, for display, or null if the line is unknown.
+     */
+    public String traceCompleted(String line) {
+        String[] parts = line.split(" ");
+        long id, server;
+        try {
+            id = Long.parseLong(parts[1]);
+            server = Long.parseLong(parts[2]) + Long.parseLong(parts[3]);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        
+        /** Lines the server dropped, such as empty ones, never come back */
+        MessageTrace trace;
+        while ((trace = traces.peek()) != null && trace.id < id) traces.poll();
+        if (trace == null || trace.id != id || trace.rendered == 0) return null;
+        traces.poll();
+        
+        long total = (trace.rendered - trace.sent) / 1000;
+        long render = (trace.rendered - trace.received) / 1000;
+        long network = Math.max(total - render - server, 0);
+        write("TRACED: " + total + "," + network + "," + render);
+        return "total " + total + " us: network " + network + ", server " + server + ", render " + render;
+    }
+
+    
+    /** Ask the server for a page of the earlier chat lines matching a
+     *  query, it answers with SEARCH_RESULTS and a SEARCH_HIT per line */
+    public void search(String query, int page) {
+        write("SEARCH: " + page + "," + query);
     }
     
     public void sendQuitMessage() {
         write("QUIT");
     }
     
+    /**
+     * Share a file in the chat, uploading it as a stream over the chat
+     * connection. Blocks until the server has stored the file, the chat
+     * carries on meanwhile.
+     * 
+     * @param file The file to share.
+     * @return The server's reply, "STORED id" on success.
+     * @throws IOException If the server refused the file or the upload failed.
+     */
+    public String shareAttachment(File file) throws IOException {
+        ClientStream stream = openUpload(file.getName(), file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = stream.getOutputStream();
+            byte[] buffer = new byte[ClientStream.CHUNK_BYTES];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            return stream.awaitResult();
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Download an attachment into a file, as a stream over the chat
+     * connection.
+     * 
+     * @param id Attachment id from an ATTACHMENT line.
+     * @param file File to save the attachment in.
+     * @return True if the whole attachment was saved.
+     */
+    public boolean downloadAttachment(String id, File file) throws IOException {
+        ClientStream stream = openDownload(id);
+        long size;
+        try {
+            size = stream.getSize();
+        } catch (IOException e) {
+            return false;
+        }
+        InputStream in = stream.getInputStream();
+        OutputStream out = new FileOutputStream(file);
+        long position = 0;
+        try {
+            byte[] buffer = new byte[ClientStream.CHUNK_BYTES];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                position += n;
+            }
+        } catch (IOException e) {
+            stream.close();
+            return false;
+        } finally {
+            out.close();
+        }
+        return position == size;
+    }
+    
+    /** Timestamps of a traced chat line, from System.nanoTime() */
+    public static class MessageTrace {
+        private final long id;
+        private final String line;
+        private final long sent = System.nanoTime();
+        private volatile long received;
+        private volatile long rendered;
+        
+        MessageTrace(long id, String line) {
+            this.id = id;
+            this.line = line;
+        }
+        
+        /** Call once the line has been shown */
+        public void rendered() {
+            rendered = System.nanoTime();
+        }
+    }
+    
 }
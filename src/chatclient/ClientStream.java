@@ -0,0 +1,248 @@
+package chatclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * ClientStream
+ * A logical stream multiplexed over the client's chat connection, opened
+ * with Client.openDownload() or Client.openUpload(). A download is read from
+ * getInputStream() and an upload written to getOutputStream(), on any thread
+ * but the one reading chat lines with Client.read(), which is the thread
+ * that hands the stream what the server sends.
+ *
+ * Each stream is flow controlled on its own. The server sends at most a
+ * window of a download ahead of what has been read from it, and the input
+ * stream makes room for more as it is read. Writing an upload blocks while
+ * the server has no room for more, so a slow transfer holds up neither the
+ * chat nor the other streams.
+ *
+ * @author Cory Gross
+ * @version October 22, 2012
+ */
+public class ClientStream {
+
+    /** Bytes sent in each DATA frame, which must fit in one of the server's
+     *  frames once base64 encoded */
+    static final int CHUNK_BYTES = 4096;
+
+    private final Client client;
+    private final long id;
+
+    /** Whether the stream was opened to upload rather than download */
+    private final boolean upload;
+
+    /** Size and window from the server's STREAM_OPEN, -1 until it arrives */
+    private long size = -1;
+    private long window;
+
+    /** Download data received and not yet read, and bytes read since the
+     *  server was last given credit */
+    private final ArrayDeque<byte[]> received = new ArrayDeque<byte[]>();
+    private int offset;
+    private long unacknowledged;
+
+    /** Bytes of a download received in all, never more than its size */
+    private long total;
+
+    /** Bytes of an upload the server has room for */
+    private long credit;
+
+    /** Set once the stream has ended, with the server's result, or been
+     *  reset or closed, with the reason */
+    private boolean ended;
+    private String result;
+    private String error;
+
+    private final InputStream input = new InputStream() {
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return take(b, off, len);
+        }
+
+        public void close() {
+            ClientStream.this.close();
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = reserve(Math.min(len, CHUNK_BYTES));
+                byte[] chunk = Arrays.copyOfRange(b, off, off + n);
+                client.write("DATA: " + id + "," + Base64.getEncoder().encodeToString(chunk));
+                off += n;
+                len -= n;
+            }
+        }
+    };
+
+    ClientStream(Client client, long id, boolean upload) {
+        this.client = client;
+        this.id = id;
+        this.upload = upload;
+    }
+
+    /** The stream's id on the connection */
+    public long getId() {
+        return id;
+    }
+
+    /** Size of the file being transferred, waiting for the server to
+     *  accept the stream if it has not yet */
+    public synchronized long getSize() throws IOException {
+        while (size < 0) {
+            check();
+            await();
+        }
+        return size;
+    }
+
+    /** The download, ending once the whole file has been read */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /** The upload, exactly as many bytes as the size it was opened with */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Wait for the server to finish with the stream.
+     *
+     * @return The server's result, "STORED id" for an upload.
+     * @throws IOException If the stream was reset or closed.
+     */
+    public synchronized String awaitResult() throws IOException {
+        while (!ended) {
+            check();
+            await();
+        }
+        return result;
+    }
+
+    /** Abandon the stream, unless it has ended already */
+    public void close() {
+        synchronized (this) {
+            if (ended || error != null) return;
+            error = "CLOSED";
+            notifyAll();
+        }
+        client.closed(this);
+        client.write("CLOSE: " + id);
+    }
+
+    /** The server has accepted the stream, ignored if it already had */
+    synchronized void opened(long size, long window) {
+        if (this.size >= 0 || size < 0 || window <= 0) return;
+        this.size = size;
+        this.window = window;
+        credit = window;
+        notifyAll();
+    }
+
+    /** The server has sent data for a download, ignored unless the
+     *  download has been accepted and the data fits within its size */
+    synchronized void data(byte[] bytes) {
+        if (upload || size < 0 || total + bytes.length > size) return;
+        total += bytes.length;
+        if (error == null) received.add(bytes);
+        notifyAll();
+    }
+
+    /** The server has room for more of an upload, ignored unless the
+     *  upload has been accepted */
+    synchronized void credit(long bytes) {
+        if (!upload || size < 0 || bytes <= 0) return;
+        credit += bytes;
+        notifyAll();
+    }
+
+    /**
+     * The server has finished with the stream.
+     *
+     * @return False if the stream had not been accepted, and nothing changed.
+     */
+    synchronized boolean ended(String result) {
+        if (size < 0) return false;
+        ended = true;
+        this.result = result;
+        notifyAll();
+        return true;
+    }
+
+    /** The server has given up on the stream, or the connection has gone */
+    synchronized void reset(String reason) {
+        if (error == null) error = reason;
+        notifyAll();
+    }
+
+    /** Read received download data, giving the server credit for it once
+     *  half the window has been read */
+    private int take(byte[] b, int off, int len) throws IOException {
+        long grant = 0;
+        boolean open;
+        int n;
+        synchronized (this) {
+            while (received.isEmpty() && !ended) {
+                check();
+                await();
+            }
+            if (received.isEmpty()) return -1;
+            byte[] head = received.peek();
+            n = Math.min(len, head.length - offset);
+            System.arraycopy(head, offset, b, off, n);
+            offset += n;
+            if (offset == head.length) {
+                received.poll();
+                offset = 0;
+            }
+            unacknowledged += n;
+            if (unacknowledged >= window / 2) {
+                grant = unacknowledged;
+                unacknowledged = 0;
+            }
+            open = !ended;
+        }
+        if (grant > 0 && open) client.write("CREDIT: " + id + "," + grant);
+        return n;
+    }
+
+    /** Wait for the server to have room for some of an upload */
+    private synchronized int reserve(int len) throws IOException {
+        check();
+        while (credit <= 0) {
+            await();
+            check();
+        }
+        int n = (int) Math.min(len, credit);
+        credit -= n;
+        return n;
+    }
+
+    private void check() throws IOException {
+        if (error != null) throw new IOException("Stream " + id + " " + error);
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
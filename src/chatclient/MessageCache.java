@@ -0,0 +1,185 @@
+package chatclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MessageCache
+ * Keeps the recent messages of one chat server on the local disk, so the
+ * chat window can show them as soon as it opens and only what is newer has
+ * to be asked of the server. The cache is a single file mapped into memory.
+ * Messages are appended one after another, each with the sequence number
+ * the server gave it, and the header records where the last complete
+ * message ends. When the file is full the older half of the messages is
+ * dropped to make room.
+ *
+ * Sequence numbers start over whenever the server restarts, so the cache
+ * also records the server's epoch and is emptied when it changes.
+ *
+ * File layout: a header of magic number, epoch and end offset, then each
+ * message as its sequence number, its length and its UTF-8 bytes.
+ *
+ * @author Cory Gross
+ * @version October 22, 2012
+ */
+public class MessageCache {
+    private static final int MAGIC = 0x4a434331;
+    private static final int HEADER = 16;
+    private static final int EPOCH_OFFSET = 4;
+    private static final int END_OFFSET = 12;
+
+    /** Size of the cache file, a few thousand messages */
+    private static final int CAPACITY = 4 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private long epoch;
+    private long lastSequence;
+    private int end;
+
+    /**
+     * Open the cache kept for a server, creating it if needed.
+     *
+     * @param host The server's host.
+     * @param port The server's port.
+     */
+    public static MessageCache open(String host, int port) throws IOException {
+        File dir = new File(System.getProperty("user.home"), ".javachat");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + dir);
+        }
+        return new MessageCache(new File(dir, host.replace(':', '_') + "-" + port + ".cache"));
+    }
+
+    private MessageCache(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        if (file.length() != CAPACITY) file.setLength(CAPACITY);
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+
+        end = map.getInt(END_OFFSET);
+        if (map.getInt(0) != MAGIC || end < HEADER || end > CAPACITY) {
+            reset(0);
+            return;
+        }
+        epoch = map.getLong(EPOCH_OFFSET);
+        int offset = HEADER;
+        while (offset < end) {
+            int length = offset + 12 <= end ? map.getInt(offset + 8) : -1;
+            if (length < 0 || offset + 12 + length > end) {
+                /** Damaged, most likely by a crash while dropping old messages */
+                reset(0);
+                return;
+            }
+            lastSequence = map.getLong(offset);
+            offset += 12 + length;
+        }
+    }
+
+    /** Epoch of the server the cached messages came from, 0 if none */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /** Sequence number of the newest cached message, 0 if none */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Read back the newest cached messages.
+     *
+     * @param max Most messages to return.
+     * @return The messages, oldest first.
+     */
+    public List<String> recent(int max) {
+        ArrayDeque<Integer> offsets = new ArrayDeque<Integer>();
+        for (int offset = HEADER; offset < end; offset = next(offset)) {
+            offsets.add(offset);
+            if (offsets.size() > max) offsets.poll();
+        }
+        List<String> messages = new ArrayList<String>(offsets.size());
+        for (int offset : offsets) {
+            int length = map.getInt(offset + 8);
+            byte[] bytes = new byte[length];
+            ByteBuffer record = map.duplicate();
+            record.position(offset + 12);
+            record.get(bytes);
+            messages.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+
+    /**
+     * Append a message received from the server. Messages already cached,
+     * such as ones sent again after a reconnect, are ignored.
+     *
+     * @param sequence The message's sequence number.
+     * @param msg The message.
+     */
+    public void append(long sequence, String msg) {
+        if (sequence <= lastSequence) return;
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        int size = 12 + bytes.length;
+        if (size > (CAPACITY - HEADER) / 2) return;
+        if (end + size > CAPACITY) dropOlderHalf();
+
+        map.putLong(end, sequence);
+        map.putInt(end + 8, bytes.length);
+        ByteBuffer record = map.duplicate();
+        record.position(end + 12);
+        record.put(bytes);
+
+        /** Only count the message once it is completely written */
+        end += size;
+        map.putInt(END_OFFSET, end);
+        lastSequence = sequence;
+    }
+
+    /** Drop every cached message and start over for a server epoch */
+    public void reset(long epoch) {
+        this.epoch = epoch;
+        end = HEADER;
+        lastSequence = 0;
+        map.putInt(0, MAGIC);
+        map.putLong(EPOCH_OFFSET, epoch);
+        map.putInt(END_OFFSET, end);
+    }
+
+    /** Write the cache out and close its file */
+    public void close() {
+        map.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+
+    private int next(int offset) {
+        return offset + 12 + map.getInt(offset + 8);
+    }
+
+    /** Move the newer half of the messages to the front of the file */
+    private void dropOlderHalf() {
+        int middle = HEADER + (end - HEADER) / 2;
+        int keep = HEADER;
+        while (keep < middle) keep = next(keep);
+
+        byte[] newer = new byte[end - keep];
+        ByteBuffer records = map.duplicate();
+        records.position(keep);
+        records.get(newer);
+        records.position(HEADER);
+        records.put(newer);
+        end = HEADER + (end - keep);
+        map.putInt(END_OFFSET, end);
+    }
+}
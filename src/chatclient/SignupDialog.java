@@ -171,6 +171,7 @@ public class SignupDialog extends javax.swing.JDialog {
                 JOptionPane.showMessageDialog(this, "Your account has been created.", "Warning", 1); 
                 dispose();
             }
+            else if (response.startsWith("INVALID")) JOptionPane.showMessageDialog(this, "Username or password is not allowed.", "Warning", 0); 
         }
         
         
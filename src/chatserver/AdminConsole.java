@@ -0,0 +1,109 @@
+package chatserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+
+/**
+ * AdminConsole.java
+ *
+ * Reads administrative commands typed on the server's standard input. The
+ * console runs on its own daemon thread so it never keeps the server alive.
+ *
+ *     drain [timeoutMs]  Drain all clients and stop the server
+ *     status             Print readiness and connection counts
+ *     import file        Create the users listed in a CSV file
+ *     latency            Print where the time of traced messages went
+ *     filter             Reload the word list of the chat filter
+ *     help               List the available commands
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class AdminConsole implements Runnable {
+	private final Server server;
+
+	AdminConsole(Server server) {
+		this.server = server;
+	}
+
+	/** Starts reading commands on a background thread */
+	void start() {
+		Thread thread = new Thread(this, "AdminConsole");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] words = line.trim().split("\\s+");
+				if (words[0].length() > 0) execute(words);
+			}
+		} catch (IOException e) {
+			Log.error("admin.read", e);
+		}
+	}
+
+	private void execute(String[] words) {
+		String command = words[0];
+		if (command.equals("drain")) {
+			long timeout = ServerConfig.DRAIN_TIMEOUT_MS;
+			if (words.length > 1) {
+				try {
+					timeout = Long.parseLong(words[1]);
+				} catch (NumberFormatException e) {
+					System.out.println("Admin: drain timeout must be a number of milliseconds");
+					return;
+				}
+			}
+			server.drain(timeout);
+			System.exit(0);
+		}
+		else if (command.equals("status")) {
+			AdmissionControl admission = server.getAdmission();
+			String state = server.isReady() ? "ready" : server.isDraining() ? "draining" : "starting";
+			System.out.println("Admin: " + state + ", " + admission.getConnections() + " connections, "
+					+ admission.getPreLoginConnections() + " not logged in, "
+					+ admission.getRejected() + " rejected, "
+					+ admission.getTrackedAddresses() + " addresses tracked, "
+					+ FrameDecoder.getTotalRejected() + " oversized frames");
+		}
+		else if (command.equals("import")) {
+			if (words.length != 2) {
+				System.out.println("Admin: import needs the name of a CSV file");
+				return;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				DBManager.ImportResult result = UserImport.importFile(server.getDB(), new File(words[1]));
+				System.out.println("Admin: " + result + " in " + (System.currentTimeMillis() - start) + " ms");
+			} catch (IOException e) {
+				System.out.println("Admin: cannot read " + words[1] + ": " + e.getMessage());
+			} catch (SQLException e) {
+				System.out.println("Admin: import failed: " + e.getMessage());
+			}
+		}
+		else if (command.equals("latency")) {
+			System.out.println("Admin: " + server.getLatency().summary().replace("\n", "\nAdmin: "));
+		}
+		else if (command.equals("filter")) {
+			WordFilter filter = server.getWordFilter();
+			try {
+				System.out.println("Admin: " + filter.reload() + " filter patterns loaded from " + filter.getFile());
+			} catch (IOException e) {
+				System.out.println("Admin: cannot read " + filter.getFile() + ": " + e.getMessage());
+			}
+		}
+		else if (command.equals("help")) {
+			System.out.println("Admin: commands are drain [timeoutMs], status, import file, latency, filter, help");
+		}
+		else {
+			System.out.println("Admin: unknown command " + command + ", try help");
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package chatserver;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AdmissionControl.java
+ *
+ * Decides whether a freshly accepted connection may be served. A connection
+ * is admitted only if the global connection cap and the pre-login cap both
+ * have room and its source address has not exceeded its accept rate. The
+ * decision is made before the server allocates a Session or any buffers for
+ * the connection, so rejected connections cost next to nothing.
+ *
+ * The per address table is bounded. It is kept in order of last use, so once
+ * it is full each new address evicts the one that has gone longest without
+ * connecting, at constant cost, and a flood of connections from ever new
+ * addresses can neither grow it nor lock out newcomers. Addresses whose
+ * buckets have refilled are dropped from the quiet end of the table at most
+ * once a second, which keeps it small when the server is idle.
+ *
+ * admit() is called from the server's accept loop and the attachment store's,
+ * so the table is guarded by the admission control's lock. The counters are
+ * shared with the delivery shards, whose ClientHandlers release their slot
+ * when they close.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class AdmissionControl {
+	private final int maxConnections;
+	private final int maxPreLogin;
+	private final int burstPerAddress;
+	private final int ratePerAddress;
+	private final int maxTrackedAddresses;
+	private final Clock clock;
+
+	/** Least time between trims of the table of addresses */
+	private static final long TRIM_INTERVAL_MS = 1000;
+
+	/** Number of open connections, logged-in or not */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/** Number of open connections that have not logged in yet */
+	private final AtomicInteger preLogin = new AtomicInteger();
+
+	/** Accept rate limiters keyed by source address, least recently used
+	 *  first, guarded by this */
+	private final LinkedHashMap<InetAddress, TokenBucket> buckets;
+
+	/** When the table of addresses was last trimmed, guarded by this */
+	private long lastTrim;
+
+	/** Number of connections turned away since the server started */
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	AdmissionControl(int maxConnections, int maxPreLogin, int burstPerAddress,
+			int ratePerAddress, int maxTrackedAddresses, Clock clock) {
+		this.maxConnections = maxConnections;
+		this.maxPreLogin = maxPreLogin;
+		this.burstPerAddress = burstPerAddress;
+		this.ratePerAddress = ratePerAddress;
+		this.maxTrackedAddresses = maxTrackedAddresses;
+		this.clock = clock;
+		buckets = new LinkedHashMap<InetAddress, TokenBucket>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+				return size() > AdmissionControl.this.maxTrackedAddresses;
+			}
+		};
+		lastTrim = clock.millis();
+	}
+
+	/**
+	 * Attempts to admit a new connection from the given address. On success
+	 * the connection holds a pre-login slot until promoted or released.
+	 *
+	 * @param address Source address of the accepted connection.
+	 * @return True if the connection may be served, false if it must be closed.
+	 */
+	boolean admit(InetAddress address) {
+		if (!acquireRate(address)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		if (connections.incrementAndGet() > maxConnections) {
+			connections.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		if (preLogin.incrementAndGet() > maxPreLogin) {
+			preLogin.decrementAndGet();
+			connections.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/** Moves an admitted connection out of the pre-login pool once the
+	 *  client has successfully logged in. */
+	void promote() {
+		preLogin.decrementAndGet();
+	}
+
+	/**
+	 * Gives back the slot held by a connection once it has closed.
+	 *
+	 * @param loggedIn Whether the connection had been promoted.
+	 */
+	void release(boolean loggedIn) {
+		if (!loggedIn) preLogin.decrementAndGet();
+		connections.decrementAndGet();
+	}
+
+	int getConnections() { return connections.get(); }
+
+	int getPreLoginConnections() { return preLogin.get(); }
+
+	int getRejected() { return rejected.get(); }
+
+	/** @return Number of addresses whose accept rate is being tracked */
+	synchronized int getTrackedAddresses() { return buckets.size(); }
+
+	/** Takes a token from the address's bucket, creating the bucket if
+	 *  needed. A new address in a full table evicts the least recently used
+	 *  one, see removeEldestEntry(). */
+	private synchronized boolean acquireRate(InetAddress address) {
+		long now = clock.millis();
+		if (now - lastTrim >= TRIM_INTERVAL_MS) {
+			lastTrim = now;
+			trimIdleBuckets();
+		}
+		TokenBucket bucket = buckets.get(address);
+		if (bucket == null) {
+			bucket = new TokenBucket(burstPerAddress, ratePerAddress, clock);
+			buckets.put(address, bucket);
+		}
+		return bucket.tryAcquire();
+	}
+
+	/** Drops the buckets that have refilled completely from the least
+	 *  recently used end of the table, stopping at the first that has not,
+	 *  so each bucket is looked at about once however large the table */
+	private void trimIdleBuckets() {
+		Iterator<TokenBucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (!it.next().isFull()) break;
+			it.remove();
+		}
+	}
+}
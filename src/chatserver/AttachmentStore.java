@@ -0,0 +1,508 @@
+package chatserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AttachmentStore.java
+ *
+ * Stores files shared in the chat on the server's disk and serves them back.
+ * File contents never travel over a client's chat connection, which is kept
+ * for short lines. A logged-in client asks for an upload slot on its chat
+ * connection with "ATTACH: name,size" and is answered "ATTACH_READY token
+ * port". It then opens a second connection to the attachment port, sends
+ * "PUT token" followed by exactly size bytes, and is answered "STORED id".
+ * Only then is the small reference line "ATTACHMENT id size username name"
+ * broadcast to the chat. Anyone holding the reference downloads the file by
+ * connecting to the attachment port and sending "GET id", the server answers
+ * with the file's size on a line of its own followed by the contents.
+ *
+ * The side connections are served by their own pool of threads using
+ * blocking channels, so a long transfer ties up neither a delivery shard nor
+ * the uploader's chat session. Uploads are copied from the socket into the
+ * file with FileChannel.transferFrom, and downloads are sent from the file to
+ * the socket with FileChannel.transferTo, which lets the kernel move the data
+ * without it passing through the heap.
+ *
+ * Side connections go through the server's admission control like chat
+ * connections, each holding a pre-login slot while it is served. Only a
+ * bounded number may wait for a transfer thread, further ones are closed at
+ * once, and a transfer that moves no bytes for the configured idle time is
+ * aborted, so a client that connects and stays silent cannot hold a thread.
+ * Each user may only hold a few unused upload slots at a time.
+ *
+ * Stored files are kept for the configured retention period. The directory
+ * is swept now and then on the stream pool, deleting expired files and then
+ * the oldest ones while the rest take more than the space allowed. Partial
+ * uploads are deleted when a transfer fails, and any a stopped server left
+ * behind are deleted at startup.
+ *
+ * Clients may instead transfer attachments over their chat connection, as
+ * logical streams, see StreamMux. The files of those are read and written on
+ * a small pool of their own, and stored and announced the same way.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class AttachmentStore implements Runnable {
+
+	/** Longest request line accepted on a side connection */
+	private static final int MAX_REQUEST = 64;
+
+	/** Length of upload tokens and attachment ids, in hex digits */
+	private static final int ID_DIGITS = 16;
+
+	/** Most bytes moved by one call to transferFrom or transferTo, so that
+	 *  a slow transfer still shows its progress to its watchdog */
+	private static final long TRANSFER_CHUNK = 65536;
+
+	private final Server server;
+	private final File directory;
+	private final ServerSocketChannel listener;
+	private final ExecutorService transfers;
+
+	/** Reads and writes the files of attachments sent over chat connections */
+	private final ExecutorService streamIO;
+	private final SecureRandom random = new SecureRandom();
+
+	/** Upload slots handed out on chat connections, keyed by token */
+	private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+	/** Number of unused upload slots held by each user, guarded by itself */
+	private final HashMap<String, Integer> pending = new HashMap<String, Integer>();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the attachment directory if needed and binds the attachment
+	 * port, call start() to begin serving it.
+	 *
+	 * @param server The server, whose chat the stored files are announced to.
+	 * @param port Port the side connections are made to.
+	 * @param directory Directory the files are stored in.
+	 * @param threads Number of transfers served at once.
+	 * @param queued Number of connections that may wait for a transfer thread.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	AttachmentStore(Server server, int port, File directory, int threads, int queued) throws IOException {
+		this.server = server;
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create attachment directory " + directory);
+		}
+		deleteParts();
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(port));
+		transfers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queued));
+		streamIO = Executors.newFixedThreadPool(ServerConfig.STREAM_IO_THREADS);
+	}
+
+	/** Starts accepting side connections on a background thread, and
+	 *  sweeping the directory now and every so often */
+	void start() {
+		new Thread(this, "AttachmentAccept").start();
+		new Sweeper().expire();
+	}
+
+	/** Stops accepting side connections and aborts transfers in progress */
+	void stop() {
+		running = false;
+		try {
+			listener.close();
+		} catch (IOException ignore) {
+		}
+		transfers.shutdownNow();
+		streamIO.shutdownNow();
+	}
+
+	/** @return Runs the file I/O of streamed attachments, see StreamMux */
+	Executor getStreamExecutor() {
+		return streamIO;
+	}
+
+	/** @return The port side connections are made to */
+	int getPort() {
+		return listener.socket().getLocalPort();
+	}
+
+	/**
+	 * Hands out an upload slot to a logged-in client. The slot is good for
+	 * a single upload and lapses if unused for the configured time.
+	 *
+	 * @param session The uploader's chat session.
+	 * @param name File name, as the uploader would like it shown.
+	 * @param size Exact number of bytes that will be uploaded.
+	 * @return The token for the PUT request, or null if the file is too large
+	 *         or the user already holds as many slots as allowed.
+	 */
+	String offer(Session session, String name, long size) {
+		if (size > ServerConfig.MAX_ATTACHMENT_BYTES) return null;
+		String username = session.getUsername();
+		if (!claimSlot(username)) return null;
+		Upload upload = new Upload(newId(), username, name, size);
+		uploads.put(upload.token, upload);
+		server.getWheel().schedule(upload, ServerConfig.ATTACHMENT_TOKEN_MS);
+		return upload.token;
+	}
+
+	/** @return True if the user may hold another upload slot, which is
+	 *          then counted against them until releaseSlot() */
+	private boolean claimSlot(String username) {
+		synchronized (pending) {
+			Integer held = pending.get(username);
+			int n = held == null ? 0 : held;
+			if (n >= ServerConfig.MAX_PENDING_UPLOADS) return false;
+			pending.put(username, n + 1);
+			return true;
+		}
+	}
+
+	/** Gives back an upload slot once it has been used or has lapsed */
+	private void releaseSlot(String username) {
+		synchronized (pending) {
+			Integer held = pending.get(username);
+			if (held == null) return;
+			if (held <= 1) pending.remove(username);
+			else pending.put(username, held - 1);
+		}
+	}
+
+	public void run() {
+		AdmissionControl admission = server.getAdmission();
+		while (running) {
+			final SocketChannel channel;
+			try {
+				channel = listener.accept();
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				Log.error("attachment.accept", e);
+				continue;
+			}
+			if (!admission.admit(channel.socket().getInetAddress())) {
+				close(channel);
+				continue;
+			}
+			try {
+				transfers.execute(new Runnable() {
+					public void run() {
+						serve(channel);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				Log.warn("attachment.busy", null, "Turned away a side connection, all transfer threads are busy");
+				close(channel);
+				admission.release(false);
+			}
+		}
+	}
+
+	/** Reads the request line from a side connection and carries it out,
+	 *  aborting it if it stalls, then gives back its admission slot */
+	private void serve(SocketChannel channel) {
+		Watchdog watchdog = new Watchdog(channel);
+		server.getWheel().schedule(watchdog, ServerConfig.ATTACHMENT_IDLE_MS);
+		try {
+			String request = readRequest(channel, watchdog);
+			if (request != null && request.startsWith("PUT ")) {
+				put(channel, request.substring(4), watchdog);
+			}
+			else if (request != null && request.startsWith("GET ")) {
+				get(channel, request.substring(4), watchdog);
+			}
+			else {
+				reply(channel, "INVALID");
+			}
+		} catch (IOException e) {
+			Log.info("attachment.abort", null, "Transfer aborted: " + e.getMessage());
+		} finally {
+			watchdog.cancel();
+			close(channel);
+			server.getAdmission().release(false);
+		}
+	}
+
+	/** Receives the file for an upload slot straight into its file */
+	private void put(SocketChannel channel, String token, Watchdog watchdog) throws IOException {
+		Upload upload = uploads.remove(token);
+		if (upload == null) {
+			reply(channel, "DENIED");
+			return;
+		}
+		upload.cancel();
+		releaseSlot(upload.username);
+
+		String id = newId();
+		File part = partFile(id);
+		RandomAccessFile file = new RandomAccessFile(part, "rw");
+		long position = 0;
+		try {
+			FileChannel out = file.getChannel();
+			while (position < upload.size) {
+				long n = out.transferFrom(channel, position, Math.min(upload.size - position, TRANSFER_CHUNK));
+				if (n <= 0) break;
+				position += n;
+				watchdog.progress();
+			}
+		} finally {
+			file.close();
+			if (position < upload.size) part.delete();
+		}
+		if (position < upload.size) {
+			Log.info("attachment.incomplete", null, "Upload by " + upload.username + " ended after " + position + " bytes");
+			return;
+		}
+		if (store(part, id, upload.username, upload.name, upload.size)) reply(channel, "STORED " + id);
+	}
+
+	/**
+	 * Keeps a completely received upload and announces it to the chat with
+	 * "ATTACHMENT id size username name". Safe to call from any thread.
+	 *
+	 * @param part The received file, see partFile().
+	 * @param id The attachment's id.
+	 * @param username The uploader.
+	 * @param name File name, as the uploader would like it shown.
+	 * @param size Size of the file.
+	 * @return True if stored, false if the file could not be kept and has
+	 *         been deleted.
+	 */
+	boolean store(File part, String id, String username, String name, long size) {
+		if (!part.renameTo(new File(directory, id))) {
+			part.delete();
+			Log.warn("attachment.rename", null, "Could not store " + part);
+			return false;
+		}
+		Log.info("attachment.stored", null, username + " stored " + id + ", " + size + " bytes");
+		server.broadcast("ATTACHMENT " + id + " " + size + " " + username + " " + name);
+		return true;
+	}
+
+	/** @return The file an upload with the given id is received into
+	 *          before it is stored */
+	File partFile(String id) {
+		return new File(directory, id + ".part");
+	}
+
+	/** Deletes the partial uploads of transfers cut short when the server
+	 *  last stopped, none can be in progress yet */
+	private void deleteParts() {
+		File[] parts = directory.listFiles();
+		int deleted = 0;
+		for (int i = 0; parts != null && i < parts.length; i++) {
+			if (parts[i].getName().endsWith(".part") && parts[i].delete()) deleted++;
+		}
+		if (deleted > 0) Log.info("attachment.sweep", "Deleted " + deleted + " partial uploads");
+	}
+
+	/** Deletes stored attachments older than the retention period, then the
+	 *  oldest of the rest until they fit in the space allowed */
+	private void sweep() {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		long expired = System.currentTimeMillis() - ServerConfig.ATTACHMENT_RETENTION_MS;
+		long total = 0;
+		int deleted = 0;
+
+		/** Times and sizes are read once, so the order cannot change under
+		 *  the sort if a file does */
+		final long[] modified = new long[files.length];
+		long[] lengths = new long[files.length];
+		Integer[] kept = new Integer[files.length];
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			File file = files[i];
+			if (!isId(file.getName()) || !file.isFile()) continue;
+			modified[i] = file.lastModified();
+			if (modified[i] < expired) {
+				if (file.delete()) deleted++;
+				continue;
+			}
+			lengths[i] = file.length();
+			total += lengths[i];
+			kept[count++] = i;
+		}
+		Arrays.sort(kept, 0, count, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(modified[a], modified[b]);
+			}
+		});
+		for (int i = 0; i < count && total > ServerConfig.ATTACHMENT_MAX_TOTAL_BYTES; i++) {
+			if (files[kept[i]].delete()) {
+				total -= lengths[kept[i]];
+				deleted++;
+			}
+		}
+		if (deleted > 0) Log.info("attachment.sweep", "Deleted " + deleted + " attachments, " + total + " bytes kept");
+	}
+
+	/** @return The stored attachment with the given id, or null if there is
+	 *          no such attachment */
+	File find(String id) {
+		if (!isId(id)) return null;
+		File file = new File(directory, id);
+		return file.isFile() ? file : null;
+	}
+
+	/** Sends a stored file straight from the file to the socket */
+	private void get(SocketChannel channel, String id, Watchdog watchdog) throws IOException {
+		File stored = find(id);
+		if (stored == null) {
+			reply(channel, "NOTFOUND");
+			return;
+		}
+		RandomAccessFile file = new RandomAccessFile(stored, "r");
+		try {
+			FileChannel in = file.getChannel();
+			long size = in.size();
+			reply(channel, Long.toString(size));
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, Math.min(size - position, TRANSFER_CHUNK), channel);
+				watchdog.progress();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/** Reads the request line a byte at a time, so that none of an upload's
+	 *  contents are consumed with it */
+	private String readRequest(SocketChannel channel, Watchdog watchdog) throws IOException {
+		ByteBuffer line = ByteBuffer.allocate(MAX_REQUEST);
+		ByteBuffer one = ByteBuffer.allocate(1);
+		while (line.hasRemaining()) {
+			one.clear();
+			if (channel.read(one) < 0) return null;
+			watchdog.progress();
+			byte b = one.get(0);
+			if (b == '\n') {
+				return new String(line.array(), 0, line.position(), StandardCharsets.UTF_8).trim();
+			}
+			line.put(b);
+		}
+		return null;
+	}
+
+	private void reply(SocketChannel channel, String msg) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Session.encode(msg));
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	private void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	/** @return A new random id, for an attachment or an upload token */
+	String newId() {
+		StringBuilder id = new StringBuilder(ID_DIGITS);
+		id.append(Long.toHexString(random.nextLong()));
+		while (id.length() < ID_DIGITS) id.insert(0, '0');
+		return id.toString();
+	}
+
+	/** Ids are checked before they are used as file names, so a request can
+	 *  never reach outside the attachment directory */
+	private static boolean isId(String s) {
+		if (s.length() != ID_DIGITS) return false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+		}
+		return true;
+	}
+
+	/** An upload slot waiting for its PUT, dropped from the wheel if unused */
+	private class Upload extends TimingWheel.Timeout {
+		final String token;
+		final String username;
+		final String name;
+		final long size;
+
+		Upload(String token, String username, String name, long size) {
+			this.token = token;
+			this.username = username;
+			this.name = name;
+			this.size = size;
+		}
+
+		void expire() {
+			if (uploads.remove(token, this)) releaseSlot(username);
+		}
+	}
+
+	/** Queues a sweep of the directory on the stream pool each time it is
+	 *  due, on the wheel's thread, until the store is stopped */
+	private class Sweeper extends TimingWheel.Timeout {
+		void expire() {
+			if (!running) return;
+			try {
+				streamIO.execute(new Runnable() {
+					public void run() {
+						sweep();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				return;
+			}
+			server.getWheel().schedule(this, ServerConfig.ATTACHMENT_SWEEP_MS);
+		}
+	}
+
+	/**
+	 * Aborts a side connection that has moved no bytes for the configured
+	 * idle time, by closing its channel, which wakes the transfer thread
+	 * blocked on it. Blocking channel reads ignore the socket's SO_TIMEOUT,
+	 * so the timeout is kept on the wheel instead. The watchdog checks for
+	 * progress each time it is due and reschedules itself while there is.
+	 */
+	private class Watchdog extends TimingWheel.Timeout {
+		private final SocketChannel channel;
+		private volatile long moved;
+		private long checked;
+
+		Watchdog(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/** Called by the transfer thread whenever bytes have moved */
+		void progress() {
+			moved++;
+		}
+
+		void expire() {
+			if (moved == checked) {
+				Log.info("attachment.idle", null, "Closing a side connection idle for "
+						+ ServerConfig.ATTACHMENT_IDLE_MS + "ms");
+				close(channel);
+				return;
+			}
+			checked = moved;
+			server.getWheel().schedule(this, ServerConfig.ATTACHMENT_IDLE_MS);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * BufferPool.java
+ *
+ * A delivery shard's stock of read buffers. A session's input only needs a
+ * buffer while some of it is waiting to be decoded, which for an idle client
+ * is almost never, so instead of every session holding a buffer of its own
+ * for as long as it is connected, the FrameDecoder and WebSocketChannel
+ * borrow one from their shard when bytes arrive and give it back as soon as
+ * everything read has been handed on. A shard then needs about as many
+ * buffers as it has sessions reading at once, however many are connected.
+ *
+ * Buffers given back are kept for reuse up to a limit, beyond which they are
+ * left to the garbage collector. Like the rest of a shard's state the pool is
+ * only used from the shard's thread.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class BufferPool {
+	private final int bufferBytes;
+	private final ByteBuffer[] idle;
+	private int count;
+
+	/**
+	 * @param bufferBytes Size of each buffer.
+	 * @param maxIdle Most buffers kept for reuse.
+	 */
+	BufferPool(int bufferBytes, int maxIdle) {
+		this.bufferBytes = bufferBytes;
+		idle = new ByteBuffer[maxIdle];
+	}
+
+	/** @return A cleared heap buffer, reused if one is available */
+	ByteBuffer take() {
+		if (count == 0) return ByteBuffer.allocate(bufferBytes);
+		ByteBuffer buffer = idle[--count];
+		idle[count] = null;
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives back a buffer taken from the pool, which the caller must no
+	 * longer use.
+	 *
+	 * @param buffer The buffer.
+	 */
+	void give(ByteBuffer buffer) {
+		if (count < idle.length) idle[count++] = buffer;
+	}
+
+	/** @return Size of the pool's buffers */
+	int getBufferBytes() {
+		return bufferBytes;
+	}
+
+	/** @return Number of buffers kept for reuse */
+	int getIdle() {
+		return count;
+	}
+}
@@ -0,0 +1,624 @@
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * ClientHandler.java
+ *
+ * The ClientHandler class is the backbone of our server. Each client Session
+ * has its own ClientHandler, which implements the chat protocol on behalf of
+ * the server. The session's delivery shard calls into the handler when the
+ * session opens, for every frame the client sends, and when the session
+ * closes, always on the shard's thread. The handler must therefore never
+ * block: database work is passed to the server's database threads, and
+ * reading from the client is paused until the result comes back.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class ClientHandler {
+	private Session client;
+	
+	/** Reference to the database manager provided by the server. A single instance
+	 *  created by the server is shared among all ClientHandler instances. */
+	private DBManager db;
+	
+	/** The server the client is connected to */
+	private Server server;
+	
+	/** The server's admission control, the handler gives back its connection
+	 *  slot here when the client goes away. */
+	private AdmissionControl admission;
+	
+	/** Whether the client has logged in, and so left the pre-login pool.
+	 *  Read by the heartbeat on the timing wheel thread. */
+	private volatile boolean loggedIn;
+	
+	/** The session's heartbeat, scheduled on the server's timing wheel */
+	private Heartbeat heartbeat;
+	
+	/** Reused for every frame the client sends, see CommandParser */
+	private final Command command = new Command();
+	
+	/** Limits how fast the client may chat, shard thread only */
+	private final TokenBucket chatLimit;
+	
+	/** Resumes reading from a throttled client once it may chat again */
+	private Throttle throttle;
+	
+	/** Reused to collect the users mentioned in each chat line, shard thread only */
+	private final ArrayList<String> mentions = new ArrayList<String>();
+	
+	/** The chat line that found the client's bucket empty, held back until
+	 *  the throttle releases it. Shard thread only. */
+	private String throttled;
+	
+	/** Id from the client's TRACE command, which applies to the chat line
+	 *  that immediately follows it, or -1. Shard thread only. */
+	private long traceId = -1;
+	
+	/** Trace of the throttled chat line, if it is traced */
+	private Trace throttledTrace;
+	
+	/** Id the client gave the throttled chat line, or -1 if none */
+	private long throttledId = -1;
+	
+	/** Set by a HISTORY command before login, along with the epoch and
+	 *  sequence number of the last message in the client's cache. A client
+	 *  that keeps no cache wants no history. Shard thread only. */
+	private boolean wantsHistory;
+	private long historyEpoch, historyAfter;
+	
+	/** The client's logical streams, null until it opens its first one.
+	 *  Shard thread only. */
+	private StreamMux streams;
+	
+	/**
+	 * Creates a ClientHandler instance to manage each client session and to communicate
+	 * with said client on behalf of the server.
+	 * 
+	 * @param session Session for a newly accepted client connection.
+	 * @param server The server which accepted the connection, providing the shared
+	 *        client list, database manager, admission control and timing wheel.
+	 */
+	ClientHandler(Session session, Server server) {
+		client = session;
+		client.setHandler(this);
+		this.server = server;
+		db = server.getDB();
+		admission = server.getAdmission();
+		chatLimit = new TokenBucket(ServerConfig.CHAT_BURST, ServerConfig.CHAT_RATE, server.getClock());
+		heartbeat = new Heartbeat(server.getWheel());
+		throttle = new Throttle(server.getWheel());
+	}
+	
+	/** Called once the session's shard has started serving it */
+	void onOpen() {
+		Log.info("session.connect", client, "Client connected from " + client.getAddress());
+		server.sessionOpened(client);
+		heartbeat.schedule(client.getStartedAt() < 0 ? ServerConfig.HANDSHAKE_TIMEOUT_MS
+				: ServerConfig.HEARTBEAT_INTERVAL_MS);
+	}
+	
+	/**
+	 * Called for every frame the client sends. Until the client has logged in
+	 * it may create an account, login, or quit. After that every chat line is
+	 * broadcast until the client disconnects or quits.
+	 * 
+	 * @param frame A single line sent by the client.
+	 */
+	void onFrame(String frame) {
+		CommandParser.parse(frame, command);
+		long trace = traceId;
+		traceId = -1;
+		
+		if (command.type == Command.Type.PONG) {
+			return;
+		}
+		else if (command.type == Command.Type.QUIT) {
+			if (!loggedIn) Log.info("session.quit", client, "Client disconnected without signing in.");
+			client.disconnect();
+		}
+		else if (loggedIn) {
+			if (command.type == Command.Type.CHAT && command.error == Command.Error.RESERVED) {
+				Log.warn("chat.reserved", client, "Refused a chat line in the server's namespace");
+				client.writeControl("INVALID RESERVED");
+			}
+			else if (command.type == Command.Type.CHAT && command.isValid()) {
+				String text = server.getFilters().apply(client, command.text());
+				if (text == null) {
+					Log.info("chat.blocked", client, "Line dropped by filter");
+					client.writeControl("INVALID BLOCKED");
+					return;
+				}
+				chat(text, trace < 0 ? null : new Trace(trace, client, server.getLatency()), command.messageId);
+			}
+			else if (command.type == Command.Type.ATTACH) {
+				offerAttachment(command);
+			}
+			else if (command.type == Command.Type.SEARCH) {
+				search(command);
+			}
+			else if (command.type == Command.Type.OPEN || command.type == Command.Type.DATA
+					|| command.type == Command.Type.CREDIT || command.type == Command.Type.CLOSE) {
+				stream(command);
+			}
+			else if (command.type == Command.Type.PING && command.isValid()) {
+				client.writeControl("PONG: " + command.numbers[0]);
+			}
+			else if (command.type == Command.Type.TRACE && command.isValid()) {
+				traceId = command.numbers[0];
+			}
+			else if (command.type == Command.Type.TRACED && command.isValid()) {
+				LatencyStats latency = server.getLatency();
+				latency.record(LatencyStats.Stage.TOTAL, command.numbers[0]);
+				latency.record(LatencyStats.Stage.NETWORK, command.numbers[1]);
+				latency.record(LatencyStats.Stage.RENDER, command.numbers[2]);
+			}
+		}
+		else if (command.type == Command.Type.CHAT || command.type == Command.Type.ATTACH
+				|| command.type == Command.Type.SEARCH || command.type == Command.Type.OPEN
+				|| command.type == Command.Type.DATA || command.type == Command.Type.CREDIT
+				|| command.type == Command.Type.CLOSE) {
+			Log.warn("session.unexpected", client, frame);
+			client.disconnect();
+		}
+		else if (!command.isValid()) {
+			Log.info("session.invalid", client, command.type + " " + command.error);
+			client.writeControl("INVALID " + command.error);
+		}
+		else if (command.type == Command.Type.HISTORY) {
+			wantsHistory = true;
+			historyEpoch = command.numbers[0];
+			historyAfter = command.numbers[1];
+		}
+		else if (command.type == Command.Type.NEWUSER) {
+			createUser(command);
+		}
+		else if (command.type == Command.Type.LOGIN) {
+			authenticate(command);
+		}
+	}
+	
+	/** Called once the session has closed, however the client left. The
+	 *  connection slot is handed back to the server's admission control. */
+	void onClose() {
+		heartbeat.cancel();
+		throttle.cancel();
+		if (streams != null) streams.closeAll();
+		if (loggedIn) exit();
+		admission.release(loggedIn);
+		server.sessionClosed(client);
+		
+		ServerEvents.ConnectionClosed event = new ServerEvents.ConnectionClosed();
+		if (event.shouldCommit()) {
+			event.address = client.getAddress().getHostAddress();
+			event.username = loggedIn ? client.getUsername() : null;
+			event.connectedFor = server.getClock().millis() - client.getConnectedAt();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Given a message from the client containing a desired username and a
+	 * password, extract the data and create the user with the database
+	 * if it does not exist there already. The database is used from one of
+	 * the server's database threads while reading from the client is paused.
+	 * 
+	 * @param cmd Parsed NEWUSER command from the client requesting a new account.
+	 */
+	private void createUser(Command cmd) {
+	
+		/** Extract the username and password from the client message */
+		final String username = cmd.username();
+		final String password = cmd.password();
+		
+		final ServerEvents.CreateUser event = new ServerEvents.CreateUser();
+		event.begin();
+		
+		/** Attempt to create the account in the database, send
+		 *  appropriate message if the username is taken.
+		 */
+		client.pauseReading();
+		server.getDBExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					if (db.userExists(username)) {
+						client.writeControl("TAKEN");
+					}
+					else {
+						db.createUser(username, password);
+						client.writeControl("USERCREATED");
+						event.created = true;
+					}
+				} catch (Exception e) {
+					Log.error("createUser", client, e);
+				}
+				client.resumeReading();
+				
+				event.end();
+				if (event.shouldCommit()) {
+					event.username = username;
+					event.commit();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Attempts to log the client in given a message from the client containing
+	 * login data. The password is checked on one of the server's database
+	 * threads while reading from the client is paused, the outcome is then
+	 * handled back on the session's shard.
+	 * 
+	 * @param cmd Parsed LOGIN command sent from client containing login data.
+	 */
+	private void authenticate(Command cmd) {
+	
+		/** Extract the username and password from the client message */
+		final String username = cmd.username();
+		final String password = cmd.password();
+		
+		final ServerEvents.Login event = new ServerEvents.Login();
+		event.begin();
+		
+		/** Attempt to authenticate with the database, send appropriate reply */
+		client.pauseReading();
+		server.getDBExecutor().execute(new Runnable() {
+			public void run() {
+				boolean accepted = false;
+				DBManager.Inbox messages = null;
+				try {
+					accepted = db.authenticate(username, password);
+					if (accepted) messages = db.readOffline(username, ServerConfig.INBOX_MAX_AGE_MS);
+				} catch (Exception e) {
+					Log.error("login", client, e);
+				}
+				event.end();
+				if (event.shouldCommit()) {
+					event.username = username;
+					event.accepted = accepted;
+					event.commit();
+				}
+				final boolean result = accepted;
+				final DBManager.Inbox inbox = messages;
+				client.getShard().execute(new Runnable() {
+					public void run() {
+						loginResult(username, result, inbox);
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Broadcasts a chat line if the client is within its rate. A client that
+	 * is sending too fast keeps the line but stops being read from until its
+	 * bucket has a token again, so the flood backs up into its own socket
+	 * rather than into every other client's.
+	 * 
+	 * @param text The chat line.
+	 * @param trace The line's trace, or null if it is not traced.
+	 * @param messageId The id the client gave the line, or -1 if none.
+	 */
+	private void chat(String text, Trace trace, long messageId) {
+		if (chatLimit.tryAcquire()) {
+			publish(text, trace, messageId);
+			return;
+		}
+		throttled = text;
+		throttledTrace = trace;
+		throttledId = messageId;
+		client.pauseReading();
+		throttle.schedule(chatLimit.millisUntilAvailable());
+		Log.debug("session.throttle", client, "Chat rate exceeded, throttling client");
+	}
+	
+	/** Broadcasts a chat line, queues it to be archived for search, and
+	 *  leaves it in the inbox of any user it mentions who is not logged in
+	 *  to see it. Only the first few offline users mentioned in a line are
+	 *  stored for, so one line cannot queue unbounded database work.
+	 *  A line whose id has been published already is dropped. The id is
+	 *  only recorded here, so a line that was filtered out, or held back
+	 *  and lost with its session, is not taken for a duplicate when the
+	 *  client sends it again. */
+	private void publish(String text, Trace trace, long messageId) {
+		if (messageId >= 0 && !server.getDedupe().firstSeen(client.getUsername(), messageId)) {
+			Log.debug("chat.duplicate", client, "Dropped line " + messageId + " sent again");
+			return;
+		}
+		server.broadcast(text, trace);
+		SearchIndex search = server.getSearch();
+		if (search != null) search.add(client.getUsername(), text);
+		
+		CommandParser.findMentions(text, mentions);
+		int stored = 0;
+		for (int i = 0; i < mentions.size() && stored < ServerConfig.INBOX_MAX_MENTIONS; i++) {
+			final String username = mentions.get(i);
+			if (server.isOnline(username) || username.equals(client.getUsername())) continue;
+			stored++;
+			final String message = text;
+			inbox(new Runnable() {
+				public void run() {
+					try {
+						db.storeOffline(username, message, ServerConfig.INBOX_MAX_MESSAGES, ServerConfig.INBOX_MAX_AGE_MS);
+					} catch (Exception e) {
+						Log.error("inbox.store", client, e);
+					}
+				}
+			});
+		}
+		mentions.clear();
+	}
+	
+	/** Queues inbox work in order behind the inbox work already queued,
+	 *  dropping it if the queue is full */
+	private void inbox(Runnable task) {
+		try {
+			server.getInboxExecutor().execute(task);
+		} catch (RejectedExecutionException e) {
+			Log.warn("inbox.full", client, "Inbox queue full, dropped an inbox update");
+		}
+	}
+	
+	/** Sends the held back chat line once the client may chat again and
+	 *  resumes reading, or waits some more if it still may not */
+	private void releaseThrottle() {
+		if (client.isClosed() || throttled == null) return;
+		if (!chatLimit.tryAcquire()) {
+			throttle.schedule(chatLimit.millisUntilAvailable());
+			return;
+		}
+		publish(throttled, throttledTrace, throttledId);
+		throttled = null;
+		throttledTrace = null;
+		throttledId = -1;
+		client.resumeReading();
+	}
+	
+	/**
+	 * Answers a client that wants to share a file with an upload slot on the
+	 * attachment port. The file itself is sent over a separate connection, it
+	 * is announced to the chat once it has been stored.
+	 * 
+	 * @param cmd Parsed ATTACH command naming the file and its size.
+	 */
+	private void offerAttachment(Command cmd) {
+		if (!cmd.isValid()) {
+			client.writeControl("INVALID " + cmd.error);
+			return;
+		}
+		AttachmentStore attachments = server.getAttachments();
+		String token = attachments == null ? null : attachments.offer(client, cmd.name(), cmd.size);
+		if (token == null) {
+			Log.info("attachment.denied", client, "Refused " + cmd.size + " byte attachment");
+			client.writeControl("ATTACH_DENIED");
+			return;
+		}
+		client.writeControl("ATTACH_READY " + token + " " + attachments.getPort());
+	}
+	
+	/**
+	 * Carries out a frame of one of the client's logical streams, see
+	 * StreamMux. The streams are set up on the first OPEN.
+	 * 
+	 * @param cmd Parsed OPEN, DATA, CREDIT or CLOSE command.
+	 */
+	private void stream(Command cmd) {
+		
+		/** An OPEN whose id was read is refused on that stream, so the
+		 *  client can tell which of its streams failed */
+		if (cmd.type == Command.Type.OPEN
+				&& (cmd.error == Command.Error.BAD_ATTACHMENT || cmd.error == Command.Error.BAD_STREAM)) {
+			client.writeControl("STREAM_RESET " + cmd.numbers[0] + " " + cmd.error);
+			return;
+		}
+		if (!cmd.isValid()) {
+			client.writeControl("INVALID " + cmd.error);
+			return;
+		}
+		long id = cmd.numbers[0];
+		if (streams == null) {
+			AttachmentStore attachments = server.getAttachments();
+			if (attachments == null) {
+				if (cmd.type == Command.Type.OPEN) client.writeControl("STREAM_RESET " + id + " UNAVAILABLE");
+				return;
+			}
+			streams = new StreamMux(client, attachments);
+		}
+		if (cmd.type == Command.Type.OPEN) streams.open(id, cmd.name(), cmd.size);
+		else if (cmd.type == Command.Type.DATA) streams.data(id, cmd.text());
+		else if (cmd.type == Command.Type.CREDIT) streams.credit(id, cmd.numbers[1]);
+		else streams.close(id);
+	}
+	
+	/** Called by the session once the data of the client's streams queued
+	 *  on it has been written, so more can be sent */
+	void onStreamsDrained() {
+		if (streams != null) streams.pump();
+	}
+	
+	/**
+	 * Runs a search of the chat's archive for the client. Reading from the
+	 * client is paused until the results have been sent, so each client has
+	 * at most one search running at a time.
+	 * 
+	 * @param cmd Parsed SEARCH command with the page wanted and the query.
+	 */
+	private void search(Command cmd) {
+		if (!cmd.isValid()) {
+			client.writeControl("INVALID " + cmd.error);
+			return;
+		}
+		SearchIndex search = server.getSearch();
+		if (search == null) {
+			client.writeControl("SEARCH_UNAVAILABLE");
+			return;
+		}
+		client.pauseReading();
+		search.search(client, cmd.text(), (int) Math.min(cmd.numbers[0], Integer.MAX_VALUE));
+	}
+	
+	/** Completes a login on the session's shard once the database has
+	 *  answered. Messages left for the user while offline follow ACCEPTED
+	 *  straight away, as a single frame of "OFFLINE: " lines so that a full
+	 *  inbox costs one write. They are only removed from the inbox once
+	 *  queued to the client, a client that has gone by now gets them the
+	 *  next time it logs in. */
+	private void loginResult(final String username, boolean accepted, final DBManager.Inbox inbox) {
+		if (client.isClosed()) return;
+		if (accepted) {
+			loggedIn = true;
+			admission.promote();
+			
+			client.setUsername(username);
+			client.writeControl("ACCEPTED");
+			if (inbox != null && !inbox.messages.isEmpty()) {
+				StringBuilder batch = new StringBuilder();
+				for (int i = 0; i < inbox.messages.size(); i++) {
+					if (i > 0) batch.append('\n');
+					batch.append("OFFLINE: ").append(inbox.messages.get(i));
+				}
+				client.write(batch.toString());
+				Log.info("inbox.delivered", client, inbox.messages.size() + " offline messages");
+			}
+			if (inbox != null && inbox.last >= 0) {
+				inbox(new Runnable() {
+					public void run() {
+						try {
+							db.clearOffline(username, inbox.last);
+						} catch (Exception e) {
+							Log.error("inbox.clear", client, e);
+						}
+					}
+				});
+			}
+			if (wantsHistory) sendHistory();
+			server.loggedIn(client);
+			client.getShard().join(client);
+			
+			Log.info("login", client, "Client logged in");
+			
+			/** The join and the new user list go out with the other
+			 *  presence changes when the current window closes */
+			server.getPresence().joined(client.getUsername());
+		}
+		else client.writeControl("DENIED");
+		client.resumeReading();
+	}
+	
+	
+	/** Sends a client that keeps a cache of the chat what it missed, as a
+	 *  single frame of "HISTORY sequence message" lines after the server's
+	 *  epoch. The history runs up to the last broadcast the shard delivered,
+	 *  and the client joins the roster right after, so it receives every later
+	 *  broadcast live, prefixed with its sequence number. A cache from before
+	 *  the server last restarted is of no use, such a client is sent the whole
+	 *  history. */
+	private void sendHistory() {
+		long after = historyEpoch == server.getEpoch() ? historyAfter : 0;
+		StringBuilder batch = new StringBuilder("HISTORY_EPOCH ").append(server.getEpoch());
+		int count = server.getHistory().since(after, client.getShard().getDelivered(), batch);
+		client.write(batch.toString());
+		client.setSequenced(true);
+		Log.debug("history.sent", client, count + " messages after " + after);
+	}
+	
+	
+	/** Exit routine removes the client from the server's list of active
+	 *  client sessions, and has the disconnected user event announced to all
+	 *  clients on behalf of the server.
+	 */
+	private void exit() {
+	
+		/** Remove the client from the clientList and its shard's roster */
+		server.loggedOut(client);
+		client.getShard().leave(client);
+		
+		/** Announce the leave along with the user list once the presence
+		 *  window closes. While draining every client is leaving, so there
+		 *  is nobody left to tell about it */
+		if (!server.isDraining()) server.getPresence().left(client.getUsername());
+		
+		Log.info("logout", client, "Client socket closed, removed from client list");
+	}
+	
+	/** Hands a throttled client back to its shard once its delay has
+	 *  passed, the timing wheel's thread must not touch the session itself */
+	private class Throttle extends TimingWheel.Timeout {
+		private final TimingWheel wheel;
+		
+		Throttle(TimingWheel wheel) {
+			this.wheel = wheel;
+		}
+		
+		void schedule(long delayMillis) {
+			wheel.schedule(this, delayMillis);
+		}
+		
+		void expire() {
+			client.getShard().execute(new Runnable() {
+				public void run() {
+					releaseThrottle();
+				}
+			});
+		}
+	}
+	
+	/** The heartbeat checks on the session periodically from the timing wheel.
+	 *  A client that has been quiet for a heartbeat interval is sent a PING,
+	 *  which it answers with PONG. A client that stays quiet past the idle
+	 *  timeout, or fails to log in within the login timeout, is evicted by
+	 *  disconnecting its session, which then goes through the normal exit
+	 *  routine. A WebSocket is first checked at the handshake timeout, and
+	 *  only pinged or timed for its login once the handshake is answered. */
+	private class Heartbeat extends TimingWheel.Timeout {
+		private final TimingWheel wheel;
+		
+		Heartbeat(TimingWheel wheel) {
+			this.wheel = wheel;
+		}
+		
+		void schedule(long delayMillis) {
+			wheel.schedule(this, delayMillis);
+		}
+		
+		void expire() {
+			if (client.getStartedAt() < 0) {
+				Log.info("timeout.handshake", client, "Handshake timeout, evicting client.");
+				client.disconnect();
+				return;
+			}
+			long now = server.getClock().millis();
+			long connected = now - client.getStartedAt();
+			long idle = now - client.getLastRead();
+			
+			if (!loggedIn && connected >= ServerConfig.LOGIN_TIMEOUT_MS) {
+				Log.info("timeout.login", client, "Login timeout, evicting client.");
+				client.disconnect();
+				return;
+			}
+			if (idle >= ServerConfig.IDLE_TIMEOUT_MS) {
+				Log.info("timeout.idle", client, "Idle timeout, evicting client.");
+				client.disconnect();
+				return;
+			}
+			
+			/** Ping a quiet client, then check again at the next interval
+			 *  or at the idle deadline, whichever comes first */
+			long delay;
+			if (idle >= ServerConfig.HEARTBEAT_INTERVAL_MS) {
+				client.writeControl("PING");
+				delay = Math.min(ServerConfig.HEARTBEAT_INTERVAL_MS, ServerConfig.IDLE_TIMEOUT_MS - idle);
+			}
+			else {
+				delay = ServerConfig.HEARTBEAT_INTERVAL_MS - idle;
+			}
+			if (!loggedIn) {
+				delay = Math.min(delay, ServerConfig.LOGIN_TIMEOUT_MS - connected);
+			}
+			schedule(delay);
+		}
+	}
+}
\ No newline at end of file
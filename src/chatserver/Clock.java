@@ -0,0 +1,33 @@
+package chatserver;
+
+/**
+ * Clock.java
+ *
+ * The server's source of time. The timing wheel, the sessions' heartbeats
+ * and the rate limiters read the time from a Clock rather than from System,
+ * so that a simulation can run the server on a SimulatedClock and move time
+ * forward itself. Clock.SYSTEM, the real time, is used everywhere else.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class Clock {
+
+	/** The real time */
+	static final Clock SYSTEM = new Clock();
+
+	/** @return The current time in milliseconds, see System.currentTimeMillis() */
+	long millis() {
+		return System.currentTimeMillis();
+	}
+
+	/** @return A time in nanoseconds for measuring intervals, see System.nanoTime() */
+	long nanos() {
+		return System.nanoTime();
+	}
+
+	/** @return True if time only moves when a simulation advances it */
+	boolean isSimulated() {
+		return false;
+	}
+}
@@ -0,0 +1,143 @@
+package chatserver;
+
+/**
+ * Command.java
+ *
+ * A single frame from a client, parsed by CommandParser. Rather than copying
+ * the parts of the frame out into new strings, a Command records where each
+ * argument starts and ends within the original frame. Each ClientHandler owns
+ * one Command and reuses it for every frame it reads, so parsing an ordinary
+ * chat line allocates nothing. Strings are only created on demand, through
+ * the accessors below.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class Command {
+
+	/** The kinds of frame a client may send */
+	enum Type {
+		/** Client is going away: "QUIT" */
+		QUIT,
+		/** Reply to a heartbeat: "PONG" */
+		PONG,
+		/** Account creation: "NEWUSER: username,password" */
+		NEWUSER,
+		/** Login: "LOGIN: username,password" */
+		LOGIN,
+		/** Request for an attachment upload slot: "ATTACH: name,size" */
+		ATTACH,
+		/** Before login, asks for the messages missed since the client's
+		 *  cache was last updated: "HISTORY: epoch,sequence" */
+		HISTORY,
+		/** Round trip check, answered at once with "PONG: token":
+		 *  "PING: token" */
+		PING,
+		/** Asks for the next chat line to be traced: "TRACE: id" */
+		TRACE,
+		/** A client's measurements of a traced line, in microseconds:
+		 *  "TRACED: total,network,render" */
+		TRACED,
+		/** Searches everything said in the chat for a page of matching
+		 *  lines, see SearchIndex: "SEARCH: page,query" */
+		SEARCH,
+		/** Opens a logical stream with an id chosen by the client, see
+		 *  StreamMux, either to download an attachment or to upload a file
+		 *  of the given size: "OPEN: id,GET attachment" or
+		 *  "OPEN: id,PUT name,size" */
+		OPEN,
+		/** Base64 data sent on an upload stream: "DATA: id,data" */
+		DATA,
+		/** Lets the server send more of a download stream, in bytes:
+		 *  "CREDIT: id,bytes" */
+		CREDIT,
+		/** Abandons a stream: "CLOSE: id" */
+		CLOSE,
+		/** Any other line, a chat message once logged in. A line may be
+		 *  given an id, so that it is only broadcast once however often it is
+		 *  sent: "MSG: id,line" */
+		CHAT
+	}
+
+	/** Reasons a frame can fail to parse, reported instead of throwing */
+	enum Error {
+		NONE,
+		/** The frame was empty */
+		EMPTY,
+		/** The comma between username and password is missing */
+		MISSING_SEPARATOR,
+		/** The username is empty, too long or contains whitespace */
+		BAD_USERNAME,
+		/** The password is empty or too long */
+		BAD_PASSWORD,
+		/** The attachment name is empty or too long, or its size is not a
+		 *  positive number */
+		BAD_ATTACHMENT,
+		/** A number expected by a HISTORY, PING, TRACE or TRACED command,
+		 *  the id of a chat line or the page of a search, is missing or
+		 *  malformed */
+		BAD_NUMBER,
+		/** An OPEN names neither GET nor PUT, or a DATA carries no data */
+		BAD_STREAM,
+		/** A chat line starts like a line only the server may send */
+		RESERVED
+	}
+
+	Type type;
+	Error error = Error.NONE;
+	String frame;
+	int userStart, userEnd;
+	int passStart, passEnd;
+	int textStart, textEnd;
+
+	/** The size of an ATTACH, or of an OPEN for a PUT, 0 for a GET */
+	long size;
+
+	/** The numbers following a HISTORY, PING, TRACE, TRACED, CREDIT or
+	 *  CLOSE command, the page of a SEARCH, or the stream id of an OPEN or
+	 *  DATA */
+	final long[] numbers = new long[3];
+
+	/** The client's id for a CHAT line, or -1 if it gave none */
+	long messageId;
+
+	/** Resets every field before the command is reused for a new frame */
+	void clear(String frame) {
+		this.frame = frame;
+		type = null;
+		error = Error.NONE;
+		userStart = userEnd = passStart = passEnd = textStart = textEnd = 0;
+		size = 0;
+		numbers[0] = numbers[1] = numbers[2] = 0;
+		messageId = -1;
+	}
+
+	/** @return True if the last frame parsed without error */
+	boolean isValid() {
+		return error == Error.NONE;
+	}
+
+	/** @return The username of a NEWUSER or LOGIN command */
+	String username() {
+		return frame.substring(userStart, userEnd);
+	}
+
+	/** @return The password of a NEWUSER or LOGIN command */
+	String password() {
+		return frame.substring(passStart, passEnd);
+	}
+
+	/** @return The file name of an ATTACH command or of an OPEN for a PUT,
+	 *          the attachment id of an OPEN for a GET */
+	String name() {
+		return frame.substring(textStart, textEnd);
+	}
+
+	/** @return The text of a CHAT command, the query of a SEARCH or the
+	 *          data of a DATA, the frame itself when the text spans the
+	 *          whole frame so that no copy is made */
+	String text() {
+		if (textStart == 0 && textEnd == frame.length()) return frame;
+		return frame.substring(textStart, textEnd);
+	}
+}
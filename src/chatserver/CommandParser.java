@@ -0,0 +1,379 @@
+package chatserver;
+
+import java.util.List;
+
+/**
+ * CommandParser.java
+ *
+ * Parses frames from clients into a reusable Command. The parser walks the
+ * frame once, comparing keywords in place with startsWith and locating
+ * separators with indexOf, so it compiles no regular expressions and builds
+ * no arrays or strings. Malformed frames are reported through Command.error
+ * rather than by throwing.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class CommandParser {
+
+	/** Longest username accepted, the width of CREDENTIAL.LOGIN */
+	static final int MAX_USERNAME = 100;
+
+	/** Longest password accepted */
+	static final int MAX_PASSWORD = 256;
+
+	/** Longest attachment file name accepted */
+	static final int MAX_ATTACHMENT_NAME = 255;
+
+	/** Beginnings of the lines only the server may send, such as the
+	 *  SERVER_DRAIN notice, the frames of a client's streams and the
+	 *  announcement of an attachment. A chat line starting with one is
+	 *  refused, so no client can make another act on a line it broadcast. */
+	private static final String[] RESERVED = {
+		"SERVER_", "STREAM_", "ATTACHMENT ", "ATTACH_", "USERLIST:", "OFFLINE: ",
+		"PONG: ", "TRACE ", "INVALID ", "SEQ ", "HISTORY", "SEARCH_"
+	};
+
+	/** Punctuation which may follow a mention without being part of it */
+	private static final String MENTION_TRAILERS = ".,:;!?)'\"";
+
+	private static final String NEWUSER = "NEWUSER: ";
+	private static final String LOGIN = "LOGIN: ";
+	private static final String ATTACH = "ATTACH: ";
+	private static final String HISTORY = "HISTORY: ";
+	private static final String PING = "PING: ";
+	private static final String TRACE = "TRACE: ";
+	private static final String TRACED = "TRACED: ";
+	private static final String MSG = "MSG: ";
+	private static final String SEARCH = "SEARCH: ";
+	private static final String OPEN = "OPEN: ";
+	private static final String DATA = "DATA: ";
+	private static final String CREDIT = "CREDIT: ";
+	private static final String CLOSE = "CLOSE: ";
+	private static final String GET_REQUEST = "GET ";
+	private static final String PUT_REQUEST = "PUT ";
+
+	private CommandParser() {}
+
+	/**
+	 * Parses a frame into the given command, overwriting its previous contents.
+	 *
+	 * @param frame A single line read from the client, without its terminator.
+	 * @param cmd The command to fill in.
+	 * @return True if the frame is valid, otherwise cmd.error says why not.
+	 */
+	static boolean parse(String frame, Command cmd) {
+		cmd.clear(frame);
+		int length = frame.length();
+
+		if (length == 0) {
+			cmd.type = Command.Type.CHAT;
+			cmd.error = Command.Error.EMPTY;
+			return false;
+		}
+		if (length == 4 && frame.equals("QUIT")) {
+			cmd.type = Command.Type.QUIT;
+			return true;
+		}
+		if (length == 4 && frame.equals("PONG")) {
+			cmd.type = Command.Type.PONG;
+			return true;
+		}
+		if (frame.startsWith(NEWUSER)) {
+			cmd.type = Command.Type.NEWUSER;
+			return parseCredentials(frame, NEWUSER.length(), cmd);
+		}
+		if (frame.startsWith(LOGIN)) {
+			cmd.type = Command.Type.LOGIN;
+			return parseCredentials(frame, LOGIN.length(), cmd);
+		}
+		if (frame.startsWith(ATTACH)) {
+			cmd.type = Command.Type.ATTACH;
+			return parseAttachment(frame, ATTACH.length(), cmd);
+		}
+		if (frame.startsWith(HISTORY)) {
+			cmd.type = Command.Type.HISTORY;
+			return parseNumbers(frame, HISTORY.length(), 2, cmd);
+		}
+		if (frame.startsWith(PING)) {
+			cmd.type = Command.Type.PING;
+			return parseNumbers(frame, PING.length(), 1, cmd);
+		}
+		if (frame.startsWith(TRACE)) {
+			cmd.type = Command.Type.TRACE;
+			return parseNumbers(frame, TRACE.length(), 1, cmd);
+		}
+		if (frame.startsWith(TRACED)) {
+			cmd.type = Command.Type.TRACED;
+			return parseNumbers(frame, TRACED.length(), 3, cmd);
+		}
+		if (frame.startsWith(SEARCH)) {
+			cmd.type = Command.Type.SEARCH;
+			return parseSearch(frame, SEARCH.length(), cmd);
+		}
+		if (frame.startsWith(DATA)) {
+			cmd.type = Command.Type.DATA;
+			return parseStream(frame, DATA.length(), cmd);
+		}
+		if (frame.startsWith(CREDIT)) {
+			cmd.type = Command.Type.CREDIT;
+			return parseNumbers(frame, CREDIT.length(), 2, cmd);
+		}
+		if (frame.startsWith(OPEN)) {
+			cmd.type = Command.Type.OPEN;
+			return parseOpen(frame, OPEN.length(), cmd);
+		}
+		if (frame.startsWith(CLOSE)) {
+			cmd.type = Command.Type.CLOSE;
+			return parseNumbers(frame, CLOSE.length(), 1, cmd);
+		}
+
+		cmd.type = Command.Type.CHAT;
+		if (frame.startsWith(MSG)) {
+			if (!parseIdentified(frame, MSG.length(), cmd)) return false;
+		}
+		else {
+			cmd.textStart = 0;
+			cmd.textEnd = length;
+		}
+		if (isReserved(frame, cmd.textStart)) {
+			cmd.error = Command.Error.RESERVED;
+			return false;
+		}
+		return true;
+	}
+
+	/** @return True if the text at the given offset starts like a line
+	 *          only the server may send */
+	private static boolean isReserved(String frame, int start) {
+		for (int i = 0; i < RESERVED.length; i++) {
+			if (frame.startsWith(RESERVED[i], start)) return true;
+		}
+		return false;
+	}
+
+	/** Locates "id,line" starting at the given offset */
+	private static boolean parseIdentified(String frame, int start, Command cmd) {
+		int comma = frame.indexOf(',', start);
+		if (comma < 0) {
+			cmd.error = Command.Error.MISSING_SEPARATOR;
+			return false;
+		}
+		cmd.messageId = parseNumber(frame, start, comma);
+		if (cmd.messageId < 0) {
+			cmd.error = Command.Error.BAD_NUMBER;
+			return false;
+		}
+		if (comma + 1 == frame.length()) {
+			cmd.error = Command.Error.EMPTY;
+			return false;
+		}
+		cmd.textStart = comma + 1;
+		cmd.textEnd = frame.length();
+		return true;
+	}
+
+	/** Locates "page,query" starting at the given offset, pages count from 1 */
+	private static boolean parseSearch(String frame, int start, Command cmd) {
+		int comma = frame.indexOf(',', start);
+		if (comma < 0) {
+			cmd.error = Command.Error.MISSING_SEPARATOR;
+			return false;
+		}
+		cmd.numbers[0] = parseNumber(frame, start, comma);
+		if (cmd.numbers[0] < 1) {
+			cmd.error = Command.Error.BAD_NUMBER;
+			return false;
+		}
+		if (comma + 1 == frame.length()) {
+			cmd.error = Command.Error.EMPTY;
+			return false;
+		}
+		cmd.textStart = comma + 1;
+		cmd.textEnd = frame.length();
+		return true;
+	}
+
+	/** Locates "id,text" for a stream starting at the given offset, the
+	 *  stream id going in numbers[0] */
+	private static boolean parseStream(String frame, int start, Command cmd) {
+		int comma = frame.indexOf(',', start);
+		if (comma < 0) {
+			cmd.error = Command.Error.MISSING_SEPARATOR;
+			return false;
+		}
+		cmd.numbers[0] = parseNumber(frame, start, comma);
+		if (cmd.numbers[0] < 0) {
+			cmd.error = Command.Error.BAD_NUMBER;
+			return false;
+		}
+		if (comma + 1 == frame.length()) {
+			cmd.error = Command.Error.BAD_STREAM;
+			return false;
+		}
+		cmd.textStart = comma + 1;
+		cmd.textEnd = frame.length();
+		return true;
+	}
+
+	/** Locates "id,GET attachment" or "id,PUT name,size" starting at the
+	 *  given offset */
+	private static boolean parseOpen(String frame, int start, Command cmd) {
+		if (!parseStream(frame, start, cmd)) return false;
+		int request = cmd.textStart;
+		if (frame.startsWith(PUT_REQUEST, request)) {
+			return parseAttachment(frame, request + PUT_REQUEST.length(), cmd);
+		}
+		if (frame.startsWith(GET_REQUEST, request) && request + GET_REQUEST.length() < frame.length()) {
+			cmd.textStart = request + GET_REQUEST.length();
+			return true;
+		}
+		cmd.error = Command.Error.BAD_STREAM;
+		return false;
+	}
+
+	/** Locates "username,password" starting at the given offset. As with the
+	 *  original protocol the password ends at the next comma, if any. */
+	private static boolean parseCredentials(String frame, int start, Command cmd) {
+		int comma = frame.indexOf(',', start);
+		if (comma < 0) {
+			cmd.error = Command.Error.MISSING_SEPARATOR;
+			return false;
+		}
+		int passEnd = frame.indexOf(',', comma + 1);
+		if (passEnd < 0) passEnd = frame.length();
+
+		int userLength = comma - start;
+		if (userLength == 0 || userLength > MAX_USERNAME || containsWhitespace(frame, start, comma)) {
+			cmd.error = Command.Error.BAD_USERNAME;
+			return false;
+		}
+		int passLength = passEnd - comma - 1;
+		if (passLength == 0 || passLength > MAX_PASSWORD) {
+			cmd.error = Command.Error.BAD_PASSWORD;
+			return false;
+		}
+
+		cmd.userStart = start;
+		cmd.userEnd = comma;
+		cmd.passStart = comma + 1;
+		cmd.passEnd = passEnd;
+		return true;
+	}
+
+	/** Locates "name,size" starting at the given offset. The size follows the
+	 *  last comma, so the name itself may contain commas. */
+	private static boolean parseAttachment(String frame, int start, Command cmd) {
+		int comma = frame.lastIndexOf(',');
+		int nameLength = comma - start;
+		if (comma < start || nameLength == 0 || nameLength > MAX_ATTACHMENT_NAME) {
+			cmd.error = Command.Error.BAD_ATTACHMENT;
+			return false;
+		}
+		long size = 0;
+		int digits = frame.length() - comma - 1;
+		if (digits == 0 || digits > 18) {
+			cmd.error = Command.Error.BAD_ATTACHMENT;
+			return false;
+		}
+		for (int i = comma + 1; i < frame.length(); i++) {
+			char c = frame.charAt(i);
+			if (c < '0' || c > '9') {
+				cmd.error = Command.Error.BAD_ATTACHMENT;
+				return false;
+			}
+			size = size * 10 + (c - '0');
+		}
+		if (size == 0) {
+			cmd.error = Command.Error.BAD_ATTACHMENT;
+			return false;
+		}
+
+		cmd.textStart = start;
+		cmd.textEnd = comma;
+		cmd.size = size;
+		return true;
+	}
+
+	/** Reads the given count of comma separated numbers starting at the
+	 *  given offset into cmd.numbers */
+	private static boolean parseNumbers(String frame, int start, int count, Command cmd) {
+		for (int i = 0; i < count; i++) {
+			int end = i == count - 1 ? frame.length() : frame.indexOf(',', start);
+			if (end < 0) {
+				cmd.error = Command.Error.MISSING_SEPARATOR;
+				return false;
+			}
+			long n = parseNumber(frame, start, end);
+			if (n < 0) {
+				cmd.error = Command.Error.BAD_NUMBER;
+				return false;
+			}
+			cmd.numbers[i] = n;
+			start = end + 1;
+		}
+		return true;
+	}
+
+	/** @return The decimal number between the given offsets, or -1 if there
+	 *          is none or it has more than 18 digits */
+	private static long parseNumber(String s, int from, int to) {
+		if (to == from || to - from > 18) return -1;
+		long n = 0;
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * Checks a username and password against the same rules as the ones in
+	 * NEWUSER and LOGIN frames, for accounts created by other means.
+	 *
+	 * @return Command.Error.NONE if both are acceptable.
+	 */
+	static Command.Error checkCredentials(String username, String password) {
+		int userLength = username.length();
+		if (userLength == 0 || userLength > MAX_USERNAME || username.indexOf(',') >= 0
+				|| containsWhitespace(username, 0, userLength)) {
+			return Command.Error.BAD_USERNAME;
+		}
+		int passLength = password.length();
+		if (passLength == 0 || passLength > MAX_PASSWORD || password.indexOf(',') >= 0) {
+			return Command.Error.BAD_PASSWORD;
+		}
+		return Command.Error.NONE;
+	}
+
+	/**
+	 * Finds the users mentioned in a chat line, written as "@username". A
+	 * mention ends at whitespace, and punctuation trailing it is not part of
+	 * the name. A line without any '@' costs a single indexOf.
+	 *
+	 * @param text The chat line.
+	 * @param mentions Receives each username mentioned, once.
+	 */
+	static void findMentions(String text, List<String> mentions) {
+		int at = text.indexOf('@');
+		while (at >= 0) {
+			int end = at + 1;
+			while (end < text.length() && !Character.isWhitespace(text.charAt(end))) end++;
+			int nameEnd = end;
+			while (nameEnd > at + 1 && MENTION_TRAILERS.indexOf(text.charAt(nameEnd - 1)) >= 0) nameEnd--;
+			if (nameEnd > at + 1 && nameEnd - at - 1 <= MAX_USERNAME) {
+				String name = text.substring(at + 1, nameEnd);
+				if (!mentions.contains(name)) mentions.add(name);
+			}
+			at = text.indexOf('@', end);
+		}
+	}
+
+	private static boolean containsWhitespace(String s, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (Character.isWhitespace(s.charAt(i))) return true;
+		}
+		return false;
+	}
+}
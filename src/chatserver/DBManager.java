@@ -11,7 +11,20 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,7 +34,13 @@ import sun.misc.BASE64Encoder;
 
 /** DBManager.java
  * 
- * This class manages the connection and interaction with the database.
+ * This class manages the connections and interaction with the database.
+ * A fixed pool of connections is opened up front, each database call
+ * borrows one for its duration, so the server's database threads never
+ * queue up behind a single connection. warmUp() checks every connection
+ * and prepares every statement the server uses before the server starts
+ * taking clients. Every call is recorded as a DatabaseCall flight
+ * recorder event, see ServerEvents.
  * This is based on the implementation at OWASP here:
  * 
  *   https://www.owasp.org/index.php/Hashing_Java
@@ -31,27 +50,147 @@ import sun.misc.BASE64Encoder;
  *
  */
 public class DBManager {
-	private Connection db;
+	private BlockingQueue<Connection> pool;
+	private int poolSize;
 	private String url;
 	private String username;
 	private String password;
 	
 	private final static int ITERATION_NUMBER = 1000;
 	
+	/** How long a call waits for a free connection before giving up */
+	private final static long BORROW_TIMEOUT_MS = 5000;
+	
+	private final static String SELECT_CREDENTIAL = "SELECT PASSWORD, SALT FROM CREDENTIAL WHERE LOGIN = ?";
+	private final static String USER_EXISTS = "SELECT 1 FROM CREDENTIAL WHERE LOGIN = ? LIMIT 1";
+	private final static String INSERT_CREDENTIAL = "INSERT INTO CREDENTIAL (LOGIN, PASSWORD, SALT) VALUES (?,?,?)";
+	private final static String IMPORT_CREDENTIAL = "INSERT IGNORE INTO CREDENTIAL (LOGIN, PASSWORD, SALT) VALUES (?,?,?)";
+	
+	/** Logins looked up at once when checking an import for existing users,
+	 *  kept below the limit on parameters in a prepared statement */
+	private final static int IMPORT_LOOKUP_SIZE = 10000;
+	
+	/** Rows inserted and committed together during an import */
+	private final static int IMPORT_BATCH_SIZE = 1000;
+	private final static String INSERT_INBOX = "INSERT INTO INBOX (LOGIN, MESSAGE, CREATED) "
+			+ "SELECT LOGIN, ?, ? FROM CREDENTIAL WHERE LOGIN = ?";
+	private final static String INBOX_OVERFLOW = "SELECT ID FROM INBOX WHERE LOGIN = ? ORDER BY ID DESC LIMIT 1 OFFSET ?";
+	private final static String TRIM_INBOX = "DELETE FROM INBOX WHERE LOGIN = ? AND (ID <= ? OR CREATED < ?)";
+	private final static String SELECT_INBOX = "SELECT ID, MESSAGE, CREATED FROM INBOX WHERE LOGIN = ? ORDER BY ID";
+	private final static String CLEAR_INBOX = "DELETE FROM INBOX WHERE LOGIN = ? AND ID <= ?";
+	
+	/** Every statement the server runs, prepared on each connection by warmUp() */
+	private final static String[] STATEMENTS = { SELECT_CREDENTIAL, USER_EXISTS, INSERT_CREDENTIAL,
+			INSERT_INBOX, INBOX_OVERFLOW, TRIM_INBOX, SELECT_INBOX, CLEAR_INBOX };
+	
 	public DBManager(String host, String user, String pass) {
+		this(host, user, pass, 1);
+	}
+	
+	/**
+	 * Opens no connections, for a subclass that keeps its users in memory
+	 * and overrides every call the server makes, as Simulation does.
+	 */
+	DBManager() {
+		pool = new ArrayBlockingQueue<Connection>(1);
+	}
+	
+	/**
+	 * Opens a pool of connections to the database. Connections which fail
+	 * to open are logged and left out of the pool.
+	 * 
+	 * @param host JDBC url of the database
+	 * @param user Database user
+	 * @param pass Database password
+	 * @param poolSize Number of connections to open
+	 */
+	public DBManager(String host, String user, String pass, int poolSize) {
 		url = host;
 	    username = user;
 	    password = pass;
+	    this.poolSize = poolSize;
+	    pool = new ArrayBlockingQueue<Connection>(poolSize);
 
-        try {
-            db = DriverManager.getConnection(url, username, password);
-        } catch (SQLException e) {
-        	System.err.println(e);
-            e.printStackTrace();
-        }
+	    for (int i = 0; i < poolSize; i++) {
+	        try {
+	            pool.add(DriverManager.getConnection(url, username, password));
+	        } catch (SQLException e) {
+	            Log.error("db.connect", e);
+	        }
+	    }
         
-        System.out.println("Log: DBManager -- Connection to database established");
+        Log.info("db.connect", pool.size() + " of " + poolSize + " database connections established");
 	}
+	
+   /**
+    * Checks every pooled connection and prepares each of the server's
+    * statements on it, so that the first logins after startup do not pay
+    * for it. Connections that fail the check are replaced.
+    * 
+    * @return boolean Returns true if the whole pool is open and working
+    */
+   public boolean warmUp() {
+       List<Connection> checked = new ArrayList<Connection>();
+       boolean healthy = true;
+       for (int i = 0; i < poolSize; i++) {
+           Connection db = pool.poll();
+           try {
+               if (db == null || !db.isValid(5)) {
+                   close(db);
+                   db = DriverManager.getConnection(url, username, password);
+               }
+               for (String sql : STATEMENTS) {
+                   close(db.prepareStatement(sql));
+               }
+               checked.add(db);
+               db = null;
+           } catch (SQLException e) {
+               Log.error("db.warmup", e);
+               healthy = false;
+               break;
+           } finally {
+               // A connection that failed the check is closed, the next
+               // warm up opens a new one in its place
+               close(db);
+           }
+       }
+       pool.addAll(checked);
+       return healthy;
+   }
+   
+   /** Starts timing a call for the flight recorder, see ServerEvents */
+   private static ServerEvents.DatabaseCall startCall(String operation) {
+       ServerEvents.DatabaseCall call = new ServerEvents.DatabaseCall();
+       call.operation = operation;
+       call.begin();
+       return call;
+   }
+   
+   /** Ends a call, and records it if a recording has the event enabled */
+   private static void finish(ServerEvents.DatabaseCall call) {
+       call.end();
+       if (call.shouldCommit()) call.commit();
+   }
+   
+   /** Takes a connection from the pool, waiting a while if all are in use.
+    *  The wait is noted on the call if it is being recorded. */
+   private Connection borrow(ServerEvents.DatabaseCall call) throws SQLException {
+       try {
+           long start = call.isEnabled() ? System.nanoTime() : 0;
+           Connection db = pool.poll(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+           if (start != 0) call.connectionWait = System.nanoTime() - start;
+           if (db == null) throw new SQLException("No database connection available");
+           return db;
+       } catch (InterruptedException e) {
+           Thread.currentThread().interrupt();
+           throw new SQLException("Interrupted waiting for a database connection");
+       }
+   }
+   
+   /** Hands a connection back to the pool */
+   private void release(Connection db) {
+       if (db != null) pool.offer(db);
+   }
 
    /**
     * Authenticates the user with a given login and password
@@ -67,9 +206,12 @@ public class DBManager {
     */
    public boolean authenticate(String username, String password) throws SQLException, NoSuchAlgorithmException
    {
+       ServerEvents.DatabaseCall call = startCall("authenticate");
+       Connection db = null;
        PreparedStatement ps = null;
        ResultSet rs = null;
        try {
+           db = borrow(call);
            boolean userExist = true;
            // INPUT VALIDATION
            if (username == null || password == null) {
@@ -80,7 +222,7 @@ public class DBManager {
                password = "";
            }
  
-           ps = db.prepareStatement("SELECT PASSWORD, SALT FROM CREDENTIAL WHERE LOGIN = ?");
+           ps = db.prepareStatement(SELECT_CREDENTIAL);
            ps.setString(1, username);
            rs = ps.executeQuery();
            String digest, salt;
@@ -97,7 +239,7 @@ public class DBManager {
            } else {
         	   // TIME RESISTANT (even if the user does not exist the
                // computation time is equal to the time needed for a legitimate user)
-        	   System.out.println("Log: Attempted login -> Username (" + username);
+        	   Log.info("db.auth", "Attempted login for unknown username " + username);
                digest = "000000000000000000000000000=";
                salt = "00000000000=";
                userExist = false;
@@ -109,6 +251,7 @@ public class DBManager {
            // Compute the new DIGEST
            byte[] proposedDigest = getHash(ITERATION_NUMBER, password, bSalt);
            
+           call.succeeded = true;
            return Arrays.equals(proposedDigest, bDigest) && userExist;
        } catch (IOException ex){
            throw new SQLException("Database inconsistant Salt or Digested Password altered");
@@ -116,6 +259,8 @@ public class DBManager {
        finally{
            close(rs);
            close(ps);
+           release(db);
+           finish(call);
        }
    }
  
@@ -128,16 +273,25 @@ public class DBManager {
    public boolean userExists(String username) {
 	   boolean exists = false;
 	   
+	   ServerEvents.DatabaseCall call = startCall("userExists");
+	   Connection db = null;
 	   PreparedStatement ps = null;
 	   ResultSet rs = null;
 	   
 	   try {
-	       ps = db.prepareStatement("SELECT 1 FROM CREDENTIAL WHERE LOGIN='" + username + "' LIMIT 1");
+	       db = borrow(call);
+	       ps = db.prepareStatement(USER_EXISTS);
+	       ps.setString(1, username);
 	       rs = ps.executeQuery();
 	       if (rs.next()) exists = true;
+	       call.succeeded = true;
 	   } catch (SQLException e) {
-		   System.err.println(e);
-		   e.printStackTrace();
+		   Log.error("db.userExists", e);
+	   } finally {
+	       close(rs);
+	       close(ps);
+	       release(db);
+	       finish(call);
 	   }
 	   
 	   return exists;
@@ -155,8 +309,11 @@ public class DBManager {
     */
    public boolean createUser(String username, String password) throws SQLException, NoSuchAlgorithmException
    {	   
+       ServerEvents.DatabaseCall call = startCall("createUser");
+       Connection db = null;
        PreparedStatement ps = null;
        try {
+           db = borrow(call);
            if (username != null && password != null && username.length() <= 100) {
         	   
                // Uses a secure Random not a simple Random
@@ -172,22 +329,330 @@ public class DBManager {
                String sSalt = byteToBase64(bSalt);
                
                // Insert string data into the credentials table
-               ps = db.prepareStatement("INSERT INTO CREDENTIAL (LOGIN, PASSWORD, SALT) VALUES (?,?,?)");
+               ps = db.prepareStatement(INSERT_CREDENTIAL);
                ps.setString(1,username);
                ps.setString(2,sDigest);
                ps.setString(3,sSalt);
                ps.executeUpdate();
+               call.succeeded = true;
                return true;
            } else {
+               call.succeeded = true;
                return false;
            }
        } finally {
            close(ps);
+           release(db);
+           finish(call);
        }
    }
 
 
 
+   /** Outcome of importUsers() */
+   public static class ImportResult {
+       /** Users added to the database */
+       public int created;
+       /** Users skipped because the login was already taken */
+       public int existing;
+       /** Users skipped because the login or password is not acceptable, or
+        *  the login appeared earlier in the same import */
+       public int invalid;
+       
+       public String toString() {
+           return created + " created, " + existing + " already existed, " + invalid + " invalid";
+       }
+   }
+   
+   /**
+    * Inserts many users at once, for onboarding whole teams. Logins already
+    * in the database are found with one query per ten thousand logins rather
+    * than one per user, passwords are hashed in parallel on every core, and
+    * the rows are written with batched inserts committed a thousand at a
+    * time.
+    * 
+    * @param users Map from login to password, in the order given
+    * @return ImportResult How many users were created or skipped
+    * @throws SQLException If the database is unavailable
+    */
+   public ImportResult importUsers(Map<String, String> users) throws SQLException
+   {
+       ImportResult result = new ImportResult();
+       
+       // Drop users the server would refuse, then those who already exist
+       List<String> logins = new ArrayList<String>(users.size());
+       for (Map.Entry<String, String> user : users.entrySet()) {
+           if (CommandParser.checkCredentials(user.getKey(), user.getValue()) == Command.Error.NONE) {
+               logins.add(user.getKey());
+           } else {
+               result.invalid++;
+           }
+       }
+       Set<String> taken = existingLogins(logins);
+       List<String> fresh = new ArrayList<String>(logins.size());
+       for (String login : logins) {
+           if (!taken.contains(login)) fresh.add(login);
+       }
+       result.existing = logins.size() - fresh.size();
+       
+       String[][] rows = hashAll(fresh, users);
+       result.created = insertAll(rows);
+       
+       // A login created by someone else since the lookup is ignored by the insert
+       result.existing += rows.length - result.created;
+       Log.info("db.import", "Imported users: " + result);
+       return result;
+   }
+   
+   /** Finds which of the given logins are already taken */
+   private Set<String> existingLogins(List<String> logins) throws SQLException {
+       Set<String> taken = new HashSet<String>();
+       ServerEvents.DatabaseCall call = startCall("importLookup");
+       Connection db = null;
+       try {
+           db = borrow(call);
+           for (int from = 0; from < logins.size(); from += IMPORT_LOOKUP_SIZE) {
+               List<String> chunk = logins.subList(from, Math.min(from + IMPORT_LOOKUP_SIZE, logins.size()));
+               StringBuilder sql = new StringBuilder("SELECT LOGIN FROM CREDENTIAL WHERE LOGIN IN (");
+               for (int i = 0; i < chunk.size(); i++) sql.append(i == 0 ? "?" : ",?");
+               sql.append(')');
+               
+               PreparedStatement ps = db.prepareStatement(sql.toString());
+               ResultSet rs = null;
+               try {
+                   for (int i = 0; i < chunk.size(); i++) ps.setString(i + 1, chunk.get(i));
+                   rs = ps.executeQuery();
+                   while (rs.next()) taken.add(rs.getString(1));
+               } finally {
+                   close(rs);
+                   close(ps);
+               }
+           }
+           call.succeeded = true;
+       } finally {
+           release(db);
+           finish(call);
+       }
+       return taken;
+   }
+   
+   /** Computes the login, digest and salt of every user, splitting the work
+    *  across a thread per core */
+   private String[][] hashAll(final List<String> logins, final Map<String, String> users) throws SQLException {
+       final String[][] rows = new String[logins.size()][];
+       int threads = Runtime.getRuntime().availableProcessors();
+       int share = (logins.size() + threads - 1) / threads;
+       ExecutorService hashers = Executors.newFixedThreadPool(threads);
+       try {
+           List<Future<Void>> parts = new ArrayList<Future<Void>>();
+           for (int start = 0; start < logins.size(); start += share) {
+               final int from = start;
+               final int to = Math.min(start + share, logins.size());
+               parts.add(hashers.submit(new Callable<Void>() {
+                   public Void call() throws NoSuchAlgorithmException {
+                       SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+                       byte[] bSalt = new byte[8];
+                       for (int i = from; i < to; i++) {
+                           String login = logins.get(i);
+                           random.nextBytes(bSalt);
+                           byte[] bDigest = getHash(ITERATION_NUMBER, users.get(login), bSalt);
+                           rows[i] = new String[] { login, byteToBase64(bDigest), byteToBase64(bSalt) };
+                       }
+                       return null;
+                   }
+               }));
+           }
+           for (Future<Void> part : parts) part.get();
+       } catch (InterruptedException e) {
+           Thread.currentThread().interrupt();
+           throw new SQLException("Interrupted while hashing passwords");
+       } catch (ExecutionException e) {
+           throw new SQLException("Could not hash passwords", e.getCause());
+       } finally {
+           hashers.shutdown();
+       }
+       return rows;
+   }
+   
+   /** Writes the rows with batched inserts, one transaction per batch */
+   private int insertAll(String[][] rows) throws SQLException {
+       int created = 0;
+       ServerEvents.DatabaseCall call = startCall("importInsert");
+       Connection db = null;
+       PreparedStatement ps = null;
+       try {
+           db = borrow(call);
+           db.setAutoCommit(false);
+           ps = db.prepareStatement(IMPORT_CREDENTIAL);
+           for (int i = 0; i < rows.length; i++) {
+               ps.setString(1, rows[i][0]);
+               ps.setString(2, rows[i][1]);
+               ps.setString(3, rows[i][2]);
+               ps.addBatch();
+               if ((i + 1) % IMPORT_BATCH_SIZE == 0 || i == rows.length - 1) {
+                   for (int count : ps.executeBatch()) {
+                       // Rewritten batches report rows as SUCCESS_NO_INFO
+                       if (count > 0 || count == Statement.SUCCESS_NO_INFO) created += Math.max(count, 1);
+                   }
+                   db.commit();
+               }
+           }
+           call.succeeded = true;
+       } catch (SQLException e) {
+           if (db != null) {
+               try {
+                   db.rollback();
+               } catch (SQLException ignore) {
+               }
+           }
+           throw e;
+       } finally {
+           close(ps);
+           if (db != null) {
+               try {
+                   db.setAutoCommit(true);
+                   release(db);
+               } catch (SQLException e) {
+                   // Not fit to go back in the pool
+                   replace(db);
+               }
+           }
+           finish(call);
+       }
+       return created;
+   }
+   
+   /**
+    * Stores a message for a user who is not logged in, to be handed over
+    * when they next log in. Nothing is stored if the user does not exist.
+    * The user's inbox is then trimmed to its newest maxMessages messages,
+    * and messages older than maxAgeMillis are dropped.
+    * 
+    * @param username String The login of the recipient
+    * @param message String The message, as it was broadcast
+    * @param maxMessages int The most messages kept for one user
+    * @param maxAgeMillis long How long a message is kept for
+    * @throws SQLException If the database is unavailable
+    */
+   public void storeOffline(String username, String message, int maxMessages, long maxAgeMillis) throws SQLException
+   {
+       ServerEvents.DatabaseCall call = startCall("storeOffline");
+       Connection db = null;
+       PreparedStatement ps = null;
+       ResultSet rs = null;
+       long now = System.currentTimeMillis();
+       try {
+           db = borrow(call);
+           ps = db.prepareStatement(INSERT_INBOX);
+           ps.setString(1, message);
+           ps.setLong(2, now);
+           ps.setString(3, username);
+           if (ps.executeUpdate() == 0) {
+               call.succeeded = true;
+               return;
+           }
+           close(ps);
+           
+           // Find the oldest message that no longer fits, if any
+           ps = db.prepareStatement(INBOX_OVERFLOW);
+           ps.setString(1, username);
+           ps.setInt(2, maxMessages);
+           rs = ps.executeQuery();
+           long overflow = rs.next() ? rs.getLong(1) : -1;
+           close(rs);
+           close(ps);
+           
+           ps = db.prepareStatement(TRIM_INBOX);
+           ps.setString(1, username);
+           ps.setLong(2, overflow);
+           ps.setLong(3, now - maxAgeMillis);
+           ps.executeUpdate();
+           call.succeeded = true;
+       } finally {
+           close(rs);
+           close(ps);
+           release(db);
+           finish(call);
+       }
+   }
+   
+   /**
+    * The messages read from a user's inbox by readOffline(), which stay in
+    * the inbox until clearOffline() is called with last.
+    */
+   public static class Inbox {
+       /** The messages still young enough to deliver, oldest first */
+       public final List<String> messages = new ArrayList<String>();
+       /** Id of the last message read, expired or not, -1 if there were none */
+       public long last = -1;
+   }
+   
+   /**
+    * Reads every message waiting for a user, oldest first, leaving them in
+    * the inbox so that none are lost if the user goes away before they have
+    * been delivered. Messages older than maxAgeMillis are not returned.
+    * 
+    * @param username String The login of the user
+    * @param maxAgeMillis long How long a message is kept for
+    * @return Inbox The waiting messages, pass it to clearOffline() once
+    *         they have been delivered
+    * @throws SQLException If the database is unavailable
+    */
+   public Inbox readOffline(String username, long maxAgeMillis) throws SQLException
+   {
+       Inbox inbox = new Inbox();
+       ServerEvents.DatabaseCall call = startCall("readOffline");
+       Connection db = null;
+       PreparedStatement ps = null;
+       ResultSet rs = null;
+       try {
+           db = borrow(call);
+           ps = db.prepareStatement(SELECT_INBOX);
+           ps.setString(1, username);
+           rs = ps.executeQuery();
+           long oldest = System.currentTimeMillis() - maxAgeMillis;
+           while (rs.next()) {
+               inbox.last = rs.getLong(1);
+               if (rs.getLong(3) >= oldest) inbox.messages.add(rs.getString(2));
+           }
+           call.succeeded = true;
+           return inbox;
+       } finally {
+           close(rs);
+           close(ps);
+           release(db);
+           finish(call);
+       }
+   }
+   
+   /**
+    * Removes the messages read by readOffline() from a user's inbox, once
+    * they have been delivered. Messages that arrived since are left for
+    * next time.
+    * 
+    * @param username String The login of the user
+    * @param last long Inbox.last of the delivered messages
+    * @throws SQLException If the database is unavailable
+    */
+   public void clearOffline(String username, long last) throws SQLException
+   {
+       ServerEvents.DatabaseCall call = startCall("clearOffline");
+       Connection db = null;
+       PreparedStatement ps = null;
+       try {
+           db = borrow(call);
+           ps = db.prepareStatement(CLEAR_INBOX);
+           ps.setString(1, username);
+           ps.setLong(2, last);
+           ps.executeUpdate();
+           call.succeeded = true;
+       } finally {
+           close(ps);
+           release(db);
+           finish(call);
+       }
+   }
+
 /**
     * From a password, a number of iterations and a salt,
     * returns the corresponding digest
@@ -207,8 +672,7 @@ public class DBManager {
        try {
            input = digest.digest(password.getBytes("UTF-8"));
        } catch (UnsupportedEncodingException e) {
-    	   System.err.println(e);
-    	   e.printStackTrace();
+    	   Log.error("db.hash", e);
        }
 		
        for (int i = 0; i < iterationNb; i++) {
@@ -218,6 +682,46 @@ public class DBManager {
        return input;
    }
  
+   /**
+    * Closes the connections to the database, called when the server shuts down
+    */
+   public void close() {
+       Connection db;
+       while ((db = pool.poll()) != null) {
+           try {
+               db.close();
+           } catch (SQLException e) {
+               Log.error("db.close", e);
+           }
+       }
+       Log.info("db.close", "Connections to database closed");
+   }
+ 
+   /** Closes a broken connection and puts a new one in the pool in its
+    *  place, leaving the pool a connection short if none can be opened */
+   private void replace(Connection db) {
+       close(db);
+       try {
+           release(DriverManager.getConnection(url, username, password));
+       } catch (SQLException e) {
+           Log.error("db.connect", e);
+       }
+   }
+ 
+   /**
+    * Closes a connection that is not going back to the pool
+    * 
+    * @param db Connection
+    */
+   private void close(Connection db) {
+       if (db!=null){
+           try {
+               db.close();
+           } catch (SQLException ignore) {
+           }
+       }
+   }
+ 
    /**
     * Closes the current statement
     * 
@@ -0,0 +1,367 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * DeliveryShard.java
+ *
+ * A delivery shard owns a subset of the server's sessions and does all of the
+ * I/O for them on a single thread. The server runs one shard per core. Each
+ * session is assigned to a shard when it connects and stays there, so a
+ * session's buffers are only ever touched by one thread and need no locking.
+ *
+ * The shard thread loops on a Selector, reading frames from its sessions and
+ * writing their queued output without blocking. A broadcast is published once
+ * to every shard, then each shard copies it into the output queues of its own
+ * logged-in sessions in parallel with the others. A slow client only delays
+ * itself, its output is queued until its socket can take more, up to a limit.
+ *
+ * Other threads interact with a shard only through execute() and publish(),
+ * which queue work for the shard thread and wake it up.
+ *
+ * In a simulation the shard has no thread of its own. The thread driving the
+ * simulation calls step() instead, and becomes the shard's thread.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class DeliveryShard implements Runnable {
+	private final int index;
+	private final Selector selector;
+	private final Clock clock;
+
+	/** Tasks handed to the shard by other threads */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/** Variants of a batch, see frames() */
+	private static final int WEBSOCKET = 1;
+	private static final int SEQUENCED = 2;
+
+	/** Encoded broadcast frames waiting to be queued to the roster */
+	private final ConcurrentLinkedQueue<Broadcast> broadcasts = new ConcurrentLinkedQueue<Broadcast>();
+
+	/** Set once the shard has been woken, so a burst of publishers costs
+	 *  one wakeup rather than one per message */
+	private final AtomicBoolean wakenUp = new AtomicBoolean();
+
+	/** Logged-in sessions that receive broadcasts, shard thread only */
+	private final ArrayList<Session> roster = new ArrayList<Session>();
+
+	/** Broadcasts taken off the queue for the current round, shard thread only */
+	private final ArrayList<Broadcast> batch = new ArrayList<Broadcast>();
+
+	/** The current round's frames as each kind of session receives them:
+	 *  plain, wrapped for WebSocket, prefixed with sequence numbers, or both.
+	 *  Each variant is built the first time a session needs it, shard thread
+	 *  only. */
+	private final ArrayList<ArrayList<byte[]>> variants = new ArrayList<ArrayList<byte[]>>();
+
+	/** Sequence number of the last broadcast queued to the roster, shard
+	 *  thread only */
+	private long delivered;
+
+	/** Scratch space used to gather a session's queued output into a single
+	 *  write, shared by all of the shard's sessions */
+	private final ByteBuffer writeBuffer;
+
+	/** Read buffers lent to the shard's sessions while they have input
+	 *  waiting to be decoded */
+	private final BufferPool readBuffers;
+
+	private Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @param index Number of the shard, used to name its thread.
+	 * @param writeBufferBytes Size of the shard's gathering write buffer.
+	 * @param readBufferBytes Size of the read buffers lent to sessions.
+	 * @param pooledReadBuffers Most idle read buffers kept for reuse.
+	 * @param clock The server's clock, read by the shard's sessions.
+	 * @throws IOException If the selector cannot be opened.
+	 */
+	DeliveryShard(int index, int writeBufferBytes, int readBufferBytes, int pooledReadBuffers,
+			Clock clock) throws IOException {
+		this.index = index;
+		this.clock = clock;
+		selector = Selector.open();
+		writeBuffer = ByteBuffer.allocateDirect(writeBufferBytes);
+		readBuffers = new BufferPool(readBufferBytes, pooledReadBuffers);
+		for (int i = 0; i <= (WEBSOCKET | SEQUENCED); i++) {
+			variants.add(new ArrayList<byte[]>());
+		}
+	}
+
+	/** Starts the shard's thread */
+	void start() {
+		thread = new Thread(this, "DeliveryShard-" + index);
+		thread.start();
+	}
+
+	/** Stops the shard's thread, closing any sessions it still owns */
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/** @return True if called from the shard's own thread */
+	boolean inShard() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs a task on the shard's thread. Safe to call from any thread.
+	 *
+	 * @param task Task to run, it must not block.
+	 */
+	void execute(Runnable task) {
+		tasks.offer(task);
+		wakeup();
+	}
+
+	/**
+	 * Queues a broadcast for delivery to every logged-in session of this
+	 * shard. Safe to call from any thread, broadcasts must be published in
+	 * sequence order. The same broadcast is shared by every shard and must not
+	 * be modified afterwards.
+	 *
+	 * @param broadcast The broadcast, already encoded.
+	 */
+	void publish(Broadcast broadcast) {
+		broadcasts.offer(broadcast);
+		wakeup();
+	}
+
+	/**
+	 * Hands a newly accepted session to the shard, which registers its
+	 * transport for reading and tells its handler the session is open.
+	 *
+	 * @param session Session whose transport is connected.
+	 */
+	void register(final Session session) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					session.getTransport().register(selector, session);
+					session.opened();
+				} catch (IOException e) {
+					session.close();
+				}
+			}
+		});
+	}
+
+	/** Adds a logged-in session to the roster receiving broadcasts, shard thread only */
+	void join(Session session) {
+		session.setRosterIndex(roster.size());
+		roster.add(session);
+	}
+
+	/** Removes a session from the roster in constant time by moving the last
+	 *  session into its slot, shard thread only */
+	void leave(Session session) {
+		int i = session.getRosterIndex();
+		if (i < 0) return;
+		Session last = roster.remove(roster.size() - 1);
+		if (last != session) {
+			roster.set(i, last);
+			last.setRosterIndex(i);
+		}
+		session.setRosterIndex(-1);
+	}
+
+	/** @return The clock the shard's sessions read the time from */
+	Clock getClock() {
+		return clock;
+	}
+
+	/** @return The pool lending read buffers to the shard's sessions,
+	 *          shard thread only */
+	BufferPool getReadBuffers() {
+		return readBuffers;
+	}
+
+	/** @return The shard's gathering write buffer, shard thread only */
+	ByteBuffer getWriteBuffer() {
+		return writeBuffer;
+	}
+
+	/** @return Sequence number of the last broadcast delivered to the
+	 *          roster, a session joining now receives every later one.
+	 *          Shard thread only. */
+	long getDelivered() {
+		return delivered;
+	}
+
+	/** @return Number of logged-in sessions owned by this shard, approximate
+	 *          when called from another thread */
+	int getRosterSize() {
+		return roster.size();
+	}
+
+	public void run() {
+		while (running) {
+			turn(true);
+		}
+		for (SelectionKey key : selector.keys()) {
+			((Session) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	/** Runs one turn of the shard's loop without waiting, in place of the
+	 *  shard thread. The first thread to call it becomes the shard's thread,
+	 *  and must be the only one to call it from then on. */
+	void step() {
+		if (thread == null) thread = Thread.currentThread();
+		turn(false);
+	}
+
+	/** Serves the sessions that are ready, then runs queued tasks and
+	 *  delivers pending broadcasts.
+	 *
+	 * @param block True to wait for something to do first.
+	 */
+	private void turn(boolean block) {
+		try {
+			wakenUp.set(false);
+			if (block && tasks.isEmpty() && broadcasts.isEmpty()) selector.select();
+			else selector.selectNow();
+		} catch (IOException e) {
+			Log.error("shard.select", e);
+		}
+		processSelectedKeys();
+		runTasks();
+		deliverBroadcasts();
+	}
+
+	private void wakeup() {
+		if (!inShard() && wakenUp.compareAndSet(false, true)) selector.wakeup();
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			Session session = (Session) key.attachment();
+			try {
+				if (key.isValid() && key.isReadable()) session.onReadable();
+				if (key.isValid() && key.isWritable()) session.flush();
+			} catch (RuntimeException e) {
+				Log.error("shard.session", session, e);
+				session.close();
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.error("shard.task", e);
+			}
+		}
+	}
+
+	/** Queues every pending broadcast to each session, then gives each
+	 *  session a single flush for the whole batch. Frames are wrapped for
+	 *  WebSocket sessions and prefixed for sequenced sessions once per batch,
+	 *  not once per session. */
+	private void deliverBroadcasts() {
+		Broadcast broadcast;
+		while ((broadcast = broadcasts.poll()) != null) batch.add(broadcast);
+		if (batch.isEmpty()) return;
+		ServerEvents.ShardDelivery event = new ServerEvents.ShardDelivery();
+		event.begin();
+
+		for (int i = 0; i < roster.size(); i++) {
+			Session session = roster.get(i);
+			ArrayList<byte[]> frames = frames((session.isWebSocket() ? WEBSOCKET : 0)
+					| (session.isSequenced() ? SEQUENCED : 0));
+			for (int j = 0; j < frames.size(); j++) {
+				session.enqueue(frames.get(j), batch.get(j).control);
+			}
+			session.flush();
+		}
+		delivered = batch.get(batch.size() - 1).sequence;
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.get(i).trace != null) batch.get(i).trace.delivered();
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.shard = index;
+			event.broadcasts = batch.size();
+			event.recipients = roster.size();
+			event.lastSequence = delivered;
+			event.commit();
+		}
+		batch.clear();
+		for (int i = 0; i < variants.size(); i++) {
+			variants.get(i).clear();
+		}
+	}
+
+	/** @return The current round's frames in the given variant, building
+	 *          them if no session has needed them yet */
+	private ArrayList<byte[]> frames(int variant) {
+		ArrayList<byte[]> frames = variants.get(variant);
+		if (frames.isEmpty()) {
+			for (int i = 0; i < batch.size(); i++) {
+				Broadcast broadcast = batch.get(i);
+				byte[] frame = broadcast.frame;
+				if ((variant & SEQUENCED) != 0) frame = broadcast.sequenced();
+				if ((variant & WEBSOCKET) != 0) frame = WebSocketChannel.wrap(frame);
+				frames.add(frame);
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * A broadcast as published to the shards, encoded once by the sequencer.
+	 */
+	static final class Broadcast {
+		final long sequence;
+		final byte[] frame;
+		final Trace trace;
+
+		/** Set for broadcasts sent in the sessions' control lane */
+		final boolean control;
+
+		/**
+		 * @param sequence The broadcast's global sequence number.
+		 * @param frame The encoded frame, see Session.encode().
+		 * @param trace The broadcast's trace, or null if it is not traced.
+		 * @param control True to send it ahead of queued chat lines.
+		 */
+		Broadcast(long sequence, byte[] frame, Trace trace, boolean control) {
+			this.sequence = sequence;
+			this.frame = frame;
+			this.trace = trace;
+			this.control = control;
+		}
+
+		/** @return The frame prefixed with "SEQ sequence ", as sent to
+		 *          clients keeping a cache of the chat */
+		byte[] sequenced() {
+			byte[] prefix = ("SEQ " + sequence + " ").getBytes(StandardCharsets.US_ASCII);
+			byte[] sequenced = new byte[prefix.length + frame.length];
+			System.arraycopy(prefix, 0, sequenced, 0, prefix.length);
+			System.arraycopy(frame, 0, sequenced, prefix.length, frame.length);
+			return sequenced;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FanOutBenchmark.java
+ *
+ * Measures how fast the delivery shards fan a broadcast out to a large room,
+ * and how that scales with the number of shards. For each shard count from
+ * one up to the number of cores, the recipients are spread over the shards as
+ * the server spreads its sessions, every shard is published the same run of
+ * broadcasts, and the time until each shard has queued and flushed all of
+ * them to its roster is measured. The recipients' transports take every byte
+ * written to them at once, so what is measured is the shards' own work of
+ * queueing, gathering and writing, not the network. Run it while the server
+ * is stopped:
+ *
+ *     java -cp bin chatserver/FanOutBenchmark [recipients] [broadcasts]
+ *
+ * The defaults are 20000 recipients and 500 broadcasts of a typical chat
+ * line, with the shards' buffers sized as configured for the server.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class FanOutBenchmark {
+
+	private static final byte[] LINE = Session.encode("alice: did everyone see the build went green?");
+
+	private FanOutBenchmark() {}
+
+	public static void main(String[] args) throws Exception {
+		int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		/** The first run also warms up the JIT, and is not reported */
+		run(1, recipients, broadcasts);
+		double single = 0;
+		for (int shards = 1; shards <= cores; shards = shards < cores ? Math.min(shards * 2, cores) : cores + 1) {
+			double rate = run(shards, recipients, broadcasts);
+			if (shards == 1) single = rate;
+			System.out.printf("%2d shards %,14.0f deliveries/s %,10.0f broadcasts/s %6.2fx%n",
+					shards, rate, rate / recipients, rate / single);
+		}
+	}
+
+	/** @return Deliveries per second, a delivery being one broadcast queued
+	 *          and written to one recipient */
+	private static double run(int shardCount, int recipients, int broadcasts) throws Exception {
+		final DeliveryShard[] shards = new DeliveryShard[shardCount];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new DeliveryShard(i, ServerConfig.WRITE_BUFFER_BYTES,
+					WebSocketChannel.bufferBytes(ServerConfig.MAX_FRAME_BYTES),
+					ServerConfig.POOLED_READ_BUFFERS, Clock.SYSTEM);
+			shards[i].start();
+		}
+		try {
+			final CountDownLatch joined = new CountDownLatch(recipients);
+			for (int i = 0; i < recipients; i++) {
+				final DeliveryShard shard = shards[i % shards.length];
+				final Session session = new Session(new Sink(), shard, false);
+				shard.register(session);
+				shard.execute(new Runnable() {
+					public void run() {
+						shard.join(session);
+						joined.countDown();
+					}
+				});
+			}
+			joined.await();
+
+			long start = System.nanoTime();
+			for (long sequence = 1; sequence <= broadcasts; sequence++) {
+				DeliveryShard.Broadcast broadcast = new DeliveryShard.Broadcast(sequence, LINE, null, false);
+				for (int i = 0; i < shards.length; i++) shards[i].publish(broadcast);
+			}
+			for (int i = 0; i < shards.length; i++) awaitDelivered(shards[i], broadcasts);
+			long nanos = System.nanoTime() - start;
+			return (double) recipients * broadcasts * 1e9 / nanos;
+		} finally {
+			for (int i = 0; i < shards.length; i++) shards[i].stop();
+		}
+	}
+
+	/** Waits for a shard to have delivered every broadcast, asking its
+	 *  thread since only it may read how far it has got */
+	private static void awaitDelivered(final DeliveryShard shard, long sequence) throws InterruptedException {
+		final AtomicLong delivered = new AtomicLong();
+		while (delivered.get() < sequence) {
+			final CountDownLatch read = new CountDownLatch(1);
+			shard.execute(new Runnable() {
+				public void run() {
+					delivered.set(shard.getDelivered());
+					read.countDown();
+				}
+			});
+			read.await();
+			if (delivered.get() < sequence) Thread.sleep(1);
+		}
+	}
+
+	/** A connection that takes everything written to it at once and never
+	 *  has anything to read, like a client on a fast link that never speaks */
+	private static final class Sink implements Transport {
+		private boolean open = true;
+
+		public void register(Selector selector, Session session) {}
+
+		public void setInterest(int op, boolean on) {}
+
+		public void shutdownOutput() {}
+
+		public InetAddress getAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		public int read(ByteBuffer dst) {
+			return 0;
+		}
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		public void close() throws IOException {
+			open = false;
+		}
+	}
+}
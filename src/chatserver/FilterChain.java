@@ -0,0 +1,66 @@
+package chatserver;
+
+import java.util.Arrays;
+
+/**
+ * FilterChain.java
+ *
+ * The filters chat lines pass through, in order, between being read and
+ * being broadcast. Each filter is given the line as the one before left it,
+ * and a filter dropping the line ends the chain. The chain is an array
+ * replaced whenever a filter is added or removed, so applying it takes no
+ * lock and allocates nothing.
+ *
+ * A filter that throws is logged and skipped rather than cutting off the
+ * sender, the line is passed on as that filter received it.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class FilterChain {
+	private volatile MessageFilter[] filters = new MessageFilter[0];
+
+	/** Adds a filter at the end of the chain */
+	synchronized void add(MessageFilter filter) {
+		MessageFilter[] updated = Arrays.copyOf(filters, filters.length + 1);
+		updated[filters.length] = filter;
+		filters = updated;
+	}
+
+	/** Removes a filter from the chain, if it is in it */
+	synchronized void remove(MessageFilter filter) {
+		MessageFilter[] current = filters;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] != filter) continue;
+			MessageFilter[] updated = new MessageFilter[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, i);
+			System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+			filters = updated;
+			return;
+		}
+	}
+
+	/**
+	 * Passes a chat line through every filter. Safe to call from any thread.
+	 *
+	 * @param sender The client that sent the line.
+	 * @param text The line.
+	 * @return The line to broadcast, or null if a filter dropped it.
+	 */
+	String apply(Session sender, String text) {
+		MessageFilter[] current = filters;
+		for (int i = 0; i < current.length && text != null; i++) {
+			try {
+				text = current[i].filter(sender, text);
+			} catch (RuntimeException e) {
+				Log.error("filter.error", sender, e);
+			}
+		}
+		return text;
+	}
+
+	/** @return Number of filters in the chain */
+	int size() {
+		return filters.length;
+	}
+}
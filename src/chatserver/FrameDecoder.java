@@ -0,0 +1,177 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FrameDecoder.java
+ *
+ * Splits the bytes arriving from a client into newline terminated frames and
+ * decodes each one as UTF-8. Unlike BufferedReader.readLine(), which keeps
+ * growing its buffer until it finds a line terminator, the decoder works in a
+ * single fixed-size buffer. A frame longer than the maximum is not buffered
+ * at all: its bytes are thrown away as they arrive up to the next newline,
+ * and the frame is counted as rejected. A client sending endless data
+ * without a newline therefore costs the server one buffer's worth of memory
+ * and nothing more.
+ *
+ * The buffer is borrowed from the shard's BufferPool when bytes arrive and
+ * given back once every complete frame has been taken out, so an idle
+ * connection holds no buffer at all.
+ *
+ * The decoder is driven by a non-blocking channel: readFrom() pulls in
+ * whatever bytes are available, then nextFrame() is called until it returns
+ * null to take out every frame completed so far.
+ *
+ * A trailing carriage return is stripped, so both LF and CRLF terminated
+ * frames are accepted.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class FrameDecoder {
+
+	/** Number of oversized frames rejected by all decoders */
+	private static final AtomicLong totalRejected = new AtomicLong();
+
+	private final int maxFrame;
+	private final BufferPool pool;
+
+	/** The borrowed buffer, both null while nothing is buffered */
+	private byte[] buffer;
+	private ByteBuffer window;
+
+	/** Unconsumed bytes are buffer[start, end) */
+	private int start;
+	private int end;
+
+	/** Offset from start up to which the unconsumed bytes hold no newline */
+	private int scanned;
+
+	/** Set while throwing away the rest of an oversized frame */
+	private boolean discarding;
+
+	/** Number of oversized frames this decoder has rejected */
+	private int rejected;
+
+	/**
+	 * @param maxFrame Longest frame accepted, in bytes, excluding the terminator.
+	 * @param pool Lends the buffer, of at least maxFrame + 2 bytes.
+	 */
+	FrameDecoder(int maxFrame, BufferPool pool) {
+		this.maxFrame = maxFrame;
+		this.pool = pool;
+	}
+
+	/**
+	 * Reads whatever the channel has available into the buffer.
+	 *
+	 * @param channel A non-blocking channel to read from.
+	 * @return Number of bytes read, possibly zero, or -1 at end of stream.
+	 * @throws IOException If reading from the channel fails.
+	 */
+	int readFrom(ReadableByteChannel channel) throws IOException {
+		/** Anything past the limit without a terminator is an oversized
+		 *  frame which is dropped rather than buffered */
+		if (discarding || end - start > maxFrame + 1) {
+			if (!discarding) {
+				discarding = true;
+				reject();
+			}
+			start = end = scanned = 0;
+		}
+
+		/** Make room at the back of the buffer, then read more */
+		if (window == null) {
+			window = pool.take();
+			buffer = window.array();
+		}
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		window.limit(buffer.length).position(end);
+		int n = channel.read(window);
+		if (n > 0) end += n;
+		releaseIfEmpty();
+		return n;
+	}
+
+	/**
+	 * Takes the next complete frame out of the buffer. Oversized frames are
+	 * skipped and counted, see getRejected().
+	 *
+	 * @return The next frame without its terminator, or null if no complete
+	 *         frame has been buffered yet.
+	 */
+	String nextFrame() {
+		while (true) {
+			int newline = indexOfNewline();
+			if (newline < 0) {
+				releaseIfEmpty();
+				return null;
+			}
+
+			int frameStart = start;
+			int frameEnd = newline;
+			start = newline + 1;
+			scanned = 0;
+			if (discarding) {
+				discarding = false;
+				continue;
+			}
+			if (frameEnd > frameStart && buffer[frameEnd - 1] == '\r') frameEnd--;
+			if (frameEnd - frameStart > maxFrame) {
+				reject();
+				continue;
+			}
+			String frame = new String(buffer, frameStart, frameEnd - frameStart, StandardCharsets.UTF_8);
+			releaseIfEmpty();
+			return frame;
+		}
+	}
+
+	/** Gives the buffer back to the pool, dropping anything still in it.
+	 *  Called when the session closes. */
+	void release() {
+		start = end = scanned = 0;
+		releaseIfEmpty();
+	}
+
+	/** @return Number of oversized frames this decoder has rejected */
+	int getRejected() {
+		return rejected;
+	}
+
+	/** @return Number of oversized frames rejected by every decoder */
+	static long getTotalRejected() {
+		return totalRejected.get();
+	}
+
+	private void reject() {
+		rejected++;
+		totalRejected.incrementAndGet();
+	}
+
+	/** Gives the buffer back once it holds nothing. The state of a frame
+	 *  being discarded lives in the flag, not the buffer. */
+	private void releaseIfEmpty() {
+		if (window == null || start != end) return;
+		pool.give(window);
+		window = null;
+		buffer = null;
+		start = end = scanned = 0;
+	}
+
+	private int indexOfNewline() {
+		for (int i = start + scanned; i < end; i++) {
+			if (buffer[i] == '\n') return i;
+		}
+		scanned = end - start;
+		return -1;
+	}
+}
@@ -0,0 +1,71 @@
+package chatserver;
+
+/**
+ * History.java
+ *
+ * Keeps the most recent broadcasts along with their sequence numbers, so that
+ * a client which caches the chat on its own disk only has to be sent what it
+ * missed while it was away. The history is a fixed ring, written by the
+ * sequencer thread as it numbers each broadcast and read by a shard thread
+ * whenever a client logs in, both briefly under the history's lock.
+ *
+ * Sequence numbers start again at 1 whenever the server restarts, so they are
+ * only meaningful together with the server's epoch, the time it started.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class History {
+
+	private final long[] sequences;
+	private final String[] messages;
+
+	/** Number of messages ever added, the next one goes in slot
+	 *  added % capacity */
+	private long added;
+
+	/**
+	 * @param capacity Number of recent messages kept.
+	 */
+	History(int capacity) {
+		sequences = new long[capacity];
+		messages = new String[capacity];
+	}
+
+	/**
+	 * Adds a message, replacing the oldest one once the history is full.
+	 * Sequencer thread only, so messages are added in sequence order.
+	 *
+	 * @param sequence The message's global sequence number.
+	 * @param msg The message.
+	 */
+	synchronized void add(long sequence, String msg) {
+		int slot = (int) (added % messages.length);
+		sequences[slot] = sequence;
+		messages[slot] = msg;
+		added++;
+	}
+
+	/**
+	 * Appends the kept messages in a range of sequence numbers, oldest
+	 * first, each on a new line as "HISTORY sequence message".
+	 *
+	 * @param after Sequence number of the last message the client already has.
+	 * @param upTo Sequence number of the last message to append.
+	 * @param out Receives the lines.
+	 * @return Number of messages appended.
+	 */
+	synchronized int since(long after, long upTo, StringBuilder out) {
+		int kept = (int) Math.min(added, messages.length);
+		int count = 0;
+		for (long i = added - kept; i < added; i++) {
+			int slot = (int) (i % messages.length);
+			long sequence = sequences[slot];
+			if (sequence <= after) continue;
+			if (sequence > upTo) break;
+			out.append("\nHISTORY ").append(sequence).append(' ').append(messages[slot]);
+			count++;
+		}
+		return count;
+	}
+}
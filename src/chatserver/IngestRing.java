@@ -0,0 +1,182 @@
+package chatserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * IngestRing.java
+ *
+ * Puts every broadcast in the server into one global order. Any thread may
+ * publish a message into the ring, a pre-allocated array of slots, and a
+ * single sequencer thread takes the messages out strictly in slot order,
+ * numbers them and hands them to the delivery shards. Since only that one
+ * thread ever feeds the shards, every shard, and so every client, sees the
+ * broadcasts in exactly the same order.
+ *
+ * Publishing takes no locks. A producer claims the next slot with a single
+ * compare-and-set on the claim counter, fills it in, then marks it published
+ * by storing the slot's sequence number. The sequencer waits on that mark, so
+ * a producer that is slow to fill its slot holds up the messages behind it
+ * but never corrupts them. When the ring is full, producers back off until
+ * the sequencer has made room, which bounds the memory used by the backlog.
+ *
+ * In a simulation the ring has no sequencer thread, the thread driving the
+ * simulation takes the messages out by calling step() instead.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class IngestRing implements Runnable {
+
+	/**
+	 * Receives messages from the sequencer thread, in order.
+	 */
+	interface Consumer {
+		/**
+		 * @param sequence Global sequence number of the message, starting at 1.
+		 * @param msg The message.
+		 * @param trace The message's trace, or null if it is not traced.
+		 */
+		void onMessage(long sequence, String msg, Trace trace);
+	}
+
+	private final String[] messages;
+	private final Trace[] traces;
+	private final AtomicLongArray published;
+	private final int mask;
+	private final Consumer consumer;
+
+	/** Next slot sequence to be claimed by a producer */
+	private final AtomicLong claimed = new AtomicLong();
+
+	/** Next slot sequence to be taken by the sequencer, every slot before it
+	 *  is free to be reused */
+	private volatile long consumed;
+
+	/** Next slot sequence the sequencer will take, sequencer only */
+	private long next;
+
+	/** Set once step() has been called, the ring then has no sequencer
+	 *  thread and a producer finding it full makes room itself */
+	private volatile boolean stepped;
+
+	/** Set while the sequencer is parked waiting for messages */
+	private volatile boolean sleeping;
+
+	private volatile boolean running = true;
+	private Thread thread;
+
+	/**
+	 * @param size Number of slots, rounded up to a power of two.
+	 * @param consumer Receives every message on the sequencer thread.
+	 */
+	IngestRing(int size, Consumer consumer) {
+		int capacity = 1;
+		while (capacity < size) capacity <<= 1;
+		messages = new String[capacity];
+		traces = new Trace[capacity];
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) published.set(i, -1);
+		mask = capacity - 1;
+		this.consumer = consumer;
+	}
+
+	/** Starts the sequencer thread */
+	void start() {
+		thread = new Thread(this, "Sequencer");
+		thread.start();
+	}
+
+	/** Stops the sequencer once the messages already published are handed on */
+	void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Publishes a message to be sequenced. Safe to call from any thread.
+	 *
+	 * @param msg Message to be broadcast.
+	 * @param trace The message's trace, or null if it is not traced.
+	 */
+	void publish(String msg, Trace trace) {
+		long seq;
+		while (true) {
+			seq = claimed.get();
+			if (seq - consumed >= messages.length) {
+				/** Ring is full, let the sequencer catch up */
+				if (stepped) {
+					drain();
+					continue;
+				}
+				wake();
+				Thread.yield();
+				continue;
+			}
+			if (claimed.compareAndSet(seq, seq + 1)) break;
+		}
+		int index = (int) (seq & mask);
+		messages[index] = msg;
+		traces[index] = trace;
+		published.set(index, seq);
+		wake();
+	}
+
+	/** Sequencer loop, takes messages out of the ring in order */
+	public void run() {
+		int idle = 0;
+		while (true) {
+			if (drain() > 0) {
+				idle = 0;
+				continue;
+			}
+			if (!running && claimed.get() == next) return;
+			int index = (int) (next & mask);
+
+			/** Nothing to do, spin briefly then park until a producer wakes us */
+			if (++idle < 100) {
+				Thread.yield();
+				continue;
+			}
+			sleeping = true;
+			if (published.get(index) != next && running) LockSupport.park(this);
+			sleeping = false;
+		}
+	}
+
+	/** Takes every message published so far out of the ring, in place of
+	 *  the sequencer thread. Only ever called from one thread. */
+	void step() {
+		stepped = true;
+		drain();
+	}
+
+	/** Hands on messages in order until reaching a slot not yet published
+	 *
+	 * @return Number of messages handed on.
+	 */
+	private int drain() {
+		int count = 0;
+		while (true) {
+			int index = (int) (next & mask);
+			if (published.get(index) != next) return count;
+			String msg = messages[index];
+			Trace trace = traces[index];
+			messages[index] = null;
+			traces[index] = null;
+			consumed = next + 1;
+			next++;
+			count++;
+			try {
+				consumer.onMessage(next, msg, trace);
+			} catch (RuntimeException e) {
+				Log.error("sequencer", e);
+			}
+		}
+	}
+
+	private void wake() {
+		if (sleeping) LockSupport.unpark(thread);
+	}
+}
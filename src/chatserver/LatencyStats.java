@@ -0,0 +1,93 @@
+package chatserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyStats.java
+ *
+ * Aggregates the timings of traced chat lines into a breakdown of where a
+ * message's latency goes. The server measures the stages it can see itself,
+ * the time a line waits between being read and being taken by the sequencer
+ * and the time the shards take to queue it to every client. The sending
+ * client reports the rest once its own copy of the line has come back and
+ * been shown: the whole trip, the part of it spent on the network and the
+ * part spent rendering.
+ *
+ * Each stage keeps a histogram with one bucket per power of two
+ * microseconds, so recording is a couple of atomic increments from whichever
+ * thread measured it, and percentiles are reported to within a factor of two.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class LatencyStats {
+
+	/** The stages of a traced message's trip */
+	enum Stage {
+		/** Read by the server until taken by the sequencer, including any
+		 *  time the line was held back by throttling */
+		QUEUE,
+		/** Taken by the sequencer until every shard has queued it */
+		FANOUT,
+		/** Time on the network, in both directions, as seen by the sender */
+		NETWORK,
+		/** Received by the sender until shown in its window */
+		RENDER,
+		/** Sent until shown in the sender's window */
+		TOTAL
+	}
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray[] histograms = new AtomicLongArray[Stage.values().length];
+	private final AtomicLong[] totals = new AtomicLong[Stage.values().length];
+
+	LatencyStats() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new AtomicLongArray(BUCKETS);
+			totals[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Records one measurement. Safe to call from any thread.
+	 *
+	 * @param stage The stage measured.
+	 * @param micros Its duration in microseconds, negative values count as 0.
+	 */
+	void record(Stage stage, long micros) {
+		micros = Math.max(micros, 0);
+		histograms[stage.ordinal()].incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(micros));
+		totals[stage.ordinal()].addAndGet(micros);
+	}
+
+	/** @return One line per stage measured so far, with its count, mean and
+	 *          the bounds of its 50th and 99th percentiles */
+	String summary() {
+		StringBuilder out = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			AtomicLongArray histogram = histograms[stage.ordinal()];
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) count += histogram.get(i);
+			if (count == 0) continue;
+			if (out.length() > 0) out.append('\n');
+			out.append(stage.name().toLowerCase()).append(": ").append(count)
+					.append(" traced, mean ").append(totals[stage.ordinal()].get() / count)
+					.append(" us, p50 <= ").append(percentile(histogram, count, 0.50))
+					.append(" us, p99 <= ").append(percentile(histogram, count, 0.99)).append(" us");
+		}
+		return out.length() > 0 ? out.toString() : "no traced messages";
+	}
+
+	/** @return The upper bound of the bucket holding the given fraction */
+	private static long percentile(AtomicLongArray histogram, long count, double fraction) {
+		long rank = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram.get(i);
+			if (seen >= rank) return i == 0 ? 0 : (1L << i) - 1;
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,203 @@
+package chatserver;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log.java
+ *
+ * The server's logging facility. Callers hand records to a lock-free queue
+ * and return immediately, a single background thread formats the records and
+ * writes them to standard output. Console I/O therefore never happens on a
+ * thread that is delivering messages, and never under one of its locks.
+ *
+ * Each record carries structured fields, written out as key=value pairs:
+ *
+ *     2012-10-25 14:03:11.250 INFO  event=login session=7 user=cory msg="Client logged in"
+ *
+ * Records below the configured level (chatserver.logLevel, INFO by default)
+ * are discarded by the very first comparison in each logging method, before
+ * anything is allocated, so leaving debug logging in hot paths is free when
+ * it is switched off. The queue is bounded, if the writer falls behind new
+ * records are dropped and counted rather than letting the backlog grow.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class Log {
+
+	/** Severity of a record, in increasing order */
+	enum Level { DEBUG, INFO, WARN, ERROR }
+
+	/** Maximum number of records waiting to be written */
+	private static final int CAPACITY = Integer.getInteger("chatserver.logQueueCapacity", 65536);
+
+	/** Ordinal of the lowest level that is written */
+	private static volatile int threshold = parseLevel(System.getProperty("chatserver.logLevel", "INFO"));
+
+	private static final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+	private static final AtomicInteger queued = new AtomicInteger();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final AtomicLong written = new AtomicLong();
+	private static final AtomicLong submitted = new AtomicLong();
+
+	static {
+		Thread writer = new Thread(new Writer(), "LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private Log() {}
+
+	/** @return True if records at the given level are currently written */
+	static boolean isEnabled(Level level) {
+		return level.ordinal() >= threshold;
+	}
+
+	/** Changes the lowest level that is written */
+	static void setLevel(Level level) {
+		threshold = level.ordinal();
+	}
+
+	static void debug(String event, Session session, String msg) {
+		if (Level.DEBUG.ordinal() < threshold) return;
+		submit(Level.DEBUG, event, session, msg, null);
+	}
+
+	static void info(String event, Session session, String msg) {
+		if (Level.INFO.ordinal() < threshold) return;
+		submit(Level.INFO, event, session, msg, null);
+	}
+
+	static void info(String event, String msg) {
+		if (Level.INFO.ordinal() < threshold) return;
+		submit(Level.INFO, event, null, msg, null);
+	}
+
+	static void warn(String event, Session session, String msg) {
+		if (Level.WARN.ordinal() < threshold) return;
+		submit(Level.WARN, event, session, msg, null);
+	}
+
+	static void error(String event, Session session, Throwable cause) {
+		if (Level.ERROR.ordinal() < threshold) return;
+		submit(Level.ERROR, event, session, String.valueOf(cause), cause);
+	}
+
+	static void error(String event, Throwable cause) {
+		if (Level.ERROR.ordinal() < threshold) return;
+		submit(Level.ERROR, event, null, String.valueOf(cause), cause);
+	}
+
+	/** @return Number of records dropped because the queue was full */
+	static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits until every record submitted so far has been written, or until
+	 * the timeout passes. Used when the server shuts down.
+	 *
+	 * @param timeoutMillis Longest time to wait.
+	 */
+	static void flush(long timeoutMillis) {
+		long target = submitted.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (written.get() + dropped.get() < target && System.currentTimeMillis() < deadline) {
+			LockSupport.parkNanos(1000000L);
+		}
+	}
+
+	private static void submit(Level level, String event, Session session, String msg, Throwable cause) {
+		submitted.incrementAndGet();
+		if (queued.incrementAndGet() > CAPACITY) {
+			queued.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		Record record = new Record();
+		record.time = System.currentTimeMillis();
+		record.level = level;
+		record.event = event;
+		if (session != null) {
+			record.session = session.getId();
+			record.user = session.getUsername();
+		}
+		record.msg = msg;
+		record.cause = cause;
+		queue.offer(record);
+	}
+
+	private static int parseLevel(String name) {
+		try {
+			return Level.valueOf(name.toUpperCase()).ordinal();
+		} catch (IllegalArgumentException e) {
+			return Level.INFO.ordinal();
+		}
+	}
+
+	/** A single log record, immutable once queued */
+	private static final class Record {
+		long time;
+		Level level;
+		String event;
+		long session = -1;
+		String user;
+		String msg;
+		Throwable cause;
+	}
+
+	/** Drains the queue, formatting and writing records in batches and
+	 *  flushing the console only once the queue runs dry. */
+	private static final class Writer implements Runnable {
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		private final StringBuilder line = new StringBuilder(256);
+		private final PrintWriter out = new PrintWriter(System.out, false);
+
+		public void run() {
+			while (true) {
+				Record record = queue.poll();
+				if (record == null) {
+					out.flush();
+					LockSupport.parkNanos(5000000L);
+					continue;
+				}
+				queued.decrementAndGet();
+				format(record);
+				out.println(line);
+				if (record.cause != null) {
+					StringWriter trace = new StringWriter();
+					record.cause.printStackTrace(new PrintWriter(trace));
+					out.print(trace);
+				}
+				if (queue.isEmpty()) out.flush();
+				written.incrementAndGet();
+			}
+		}
+
+		private void format(Record record) {
+			line.setLength(0);
+			line.append(dateFormat.format(new Date(record.time))).append(' ');
+			line.append(record.level);
+			if (record.level.name().length() == 4) line.append(' ');
+			line.append(" event=").append(record.event);
+			if (record.session >= 0) line.append(" session=").append(record.session);
+			if (record.user != null) line.append(" user=").append(record.user);
+			if (record.msg != null) {
+				line.append(" msg=\"");
+				for (int i = 0; i < record.msg.length(); i++) {
+					char c = record.msg.charAt(i);
+					if (c == '"' || c == '\\') line.append('\\');
+					line.append(c);
+				}
+				line.append('"');
+			}
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MemoryTransport.java
+ *
+ * An in-memory connection between a session and a client simulated in the
+ * same JVM, for running a server with many clients on a SimulatedClock. The
+ * server's end behaves like a non-blocking socket, while the simulation plays
+ * the client through send(), receive() and hangUp().
+ *
+ * Bytes take a fixed latency to cross in either direction, scheduled on the
+ * simulated clock. The server may only have a limited window of bytes sent
+ * but not yet taken by the client with receive(), like a socket's buffers,
+ * so a client that receives rarely is a slow consumer whose output queues up
+ * on the server. Readiness is level-triggered like a selector's: while the
+ * session is interested in reading and there are bytes to read, or in
+ * writing and the window has room, the transport queues a task on the
+ * session's shard to serve it.
+ *
+ * Like the clock, a memory transport is only used from the thread driving
+ * the simulation, which is also the thread the shards are stepped on.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class MemoryTransport implements Transport {
+	private final SimulatedClock clock;
+	private final InetAddress address;
+	private final long latencyMillis;
+	private final int window;
+
+	private Session session;
+	private boolean readInterest;
+	private boolean writeInterest;
+
+	/** Set while a task serving the session is queued on its shard */
+	private boolean serving;
+
+	/** Bytes that have reached the server and not yet been read */
+	private final ArrayDeque<ByteBuffer> toServer = new ArrayDeque<ByteBuffer>();
+
+	/** Bytes that have reached the client and not yet been received, null
+	 *  when there are none so that idle clients hold no buffers */
+	private ArrayList<byte[]> toClient;
+
+	/** The start of the client's last line, received without its newline */
+	private byte[] partialLine;
+
+	/** Bytes written by the server and not yet received by the client */
+	private int unreceived;
+
+	/** Total bytes the server has read, tells whether serving made progress */
+	private long bytesRead;
+
+	/** Set once the server closes its end, or half-closes its output */
+	private boolean closed;
+	private boolean outputShut;
+
+	/** Set once the client has hung up, and once the client has seen the
+	 *  server's end of stream arrive */
+	private boolean hungUp;
+	private boolean ended;
+
+	/** Serves the session from its shard, see serve() */
+	private final Runnable serveTask = new Runnable() {
+		public void run() {
+			serve();
+		}
+	};
+
+	/**
+	 * @param clock The simulation's clock, which carries the bytes across.
+	 * @param address Address the client appears to connect from.
+	 * @param latencyMillis Time bytes take to cross in each direction.
+	 * @param window Most bytes the server may have sent that the client has
+	 *        not yet received.
+	 */
+	MemoryTransport(SimulatedClock clock, InetAddress address, long latencyMillis, int window) {
+		this.clock = clock;
+		this.address = address;
+		this.latencyMillis = latencyMillis;
+		this.window = window;
+	}
+
+	public void register(Selector selector, Session session) throws IOException {
+		if (closed) throw new ClosedChannelException();
+		this.session = session;
+		readInterest = true;
+		ready();
+	}
+
+	public void setInterest(int op, boolean on) {
+		boolean was;
+		if (op == SelectionKey.OP_READ) {
+			was = readInterest;
+			readInterest = on;
+		}
+		else {
+			was = writeInterest;
+			writeInterest = on;
+		}
+		if (on && !was) ready();
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		if (closed) throw new ClosedChannelException();
+		int n = 0;
+		ByteBuffer head;
+		while (dst.hasRemaining() && (head = toServer.peek()) != null) {
+			int length = Math.min(head.remaining(), dst.remaining());
+			ByteBuffer slice = head.duplicate();
+			slice.limit(slice.position() + length);
+			dst.put(slice);
+			head.position(head.position() + length);
+			if (!head.hasRemaining()) toServer.poll();
+			n += length;
+		}
+		if (n == 0 && hungUp && toServer.isEmpty()) return -1;
+		bytesRead += n;
+		return n;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		if (closed || outputShut) throw new ClosedChannelException();
+		if (hungUp) throw new IOException("Connection reset by simulated client");
+		int n = Math.min(src.remaining(), window - unreceived);
+		if (n <= 0) return 0;
+		final byte[] bytes = new byte[n];
+		src.get(bytes);
+		unreceived += n;
+		clock.schedule(latencyMillis, new Runnable() {
+			public void run() {
+				if (toClient == null) toClient = new ArrayList<byte[]>();
+				toClient.add(bytes);
+			}
+		});
+		return n;
+	}
+
+	public void shutdownOutput() throws IOException {
+		if (closed) throw new ClosedChannelException();
+		if (outputShut) return;
+		outputShut = true;
+		endLater();
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	public void close() {
+		if (closed) return;
+		closed = true;
+		toServer.clear();
+		if (!outputShut) endLater();
+	}
+
+	/**
+	 * Sends a line from the client, it reaches the server after the latency.
+	 *
+	 * @param line The line, without its newline.
+	 */
+	void send(String line) {
+		if (hungUp) throw new IllegalStateException("Client has hung up");
+		byte[] bytes = Session.encode(line);
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		clock.schedule(latencyMillis, new Runnable() {
+			public void run() {
+				if (closed) return;
+				toServer.add(buffer);
+				ready();
+			}
+		});
+	}
+
+	/**
+	 * Takes every complete line that has reached the client, which frees
+	 * the server's window for more.
+	 *
+	 * @return The lines, oldest first, possibly none.
+	 */
+	List<String> receive() {
+		List<String> lines = new ArrayList<String>();
+		if (toClient == null) return lines;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		if (partialLine != null) line.write(partialLine, 0, partialLine.length);
+		for (byte[] bytes : toClient) {
+			unreceived -= bytes.length;
+			int start = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				if (bytes[i] != '\n') continue;
+				line.write(bytes, start, i - start);
+				lines.add(new String(line.toByteArray(), StandardCharsets.UTF_8));
+				line.reset();
+				start = i + 1;
+			}
+			line.write(bytes, start, bytes.length - start);
+		}
+		toClient = null;
+		partialLine = line.size() > 0 ? line.toByteArray() : null;
+		if (writeInterest) ready();
+		return lines;
+	}
+
+	/** Hangs up the client's end, the server reads end of stream once
+	 *  everything sent before has reached it */
+	void hangUp() {
+		if (hungUp) return;
+		clock.schedule(latencyMillis, new Runnable() {
+			public void run() {
+				hungUp = true;
+				ready();
+			}
+		});
+	}
+
+	/** @return True once the server's end of stream has reached the client
+	 *          and every line before it has been received */
+	boolean isEnded() {
+		return ended && toClient == null;
+	}
+
+	/** Delivers end of stream to the client after everything already sent */
+	private void endLater() {
+		clock.schedule(latencyMillis, new Runnable() {
+			public void run() {
+				ended = true;
+			}
+		});
+	}
+
+	/** Queues a task to serve the session on its shard, unless one is
+	 *  queued already */
+	private void ready() {
+		if (session == null || closed || serving) return;
+		serving = true;
+		session.getShard().execute(serveTask);
+	}
+
+	/** Does what a selector would report ready, then checks again in case
+	 *  the session stopped before taking everything there was to read */
+	private void serve() {
+		serving = false;
+		if (closed) return;
+		long before = bytesRead;
+		if (readInterest && (!toServer.isEmpty() || hungUp)) session.onReadable();
+		if (closed) return;
+		if (writeInterest && unreceived < window) session.flush();
+		if (readInterest && !toServer.isEmpty() && bytesRead != before) ready();
+	}
+}
@@ -0,0 +1,27 @@
+package chatserver;
+
+/**
+ * MessageFilter.java
+ *
+ * A step in the FilterChain every chat line passes through before it is
+ * broadcast. A filter may let a line through, change it, for instance to mask
+ * a word, or drop it. Filters other than the built-in WordFilter can be
+ * plugged in by naming their classes in the chatserver.filters property, they
+ * need a public constructor taking no arguments.
+ *
+ * Filters are called on the delivery shard threads, several at once, so they
+ * must be thread safe and must never block.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+public interface MessageFilter {
+
+	/**
+	 * @param sender The client that sent the line.
+	 * @param text The line, as changed by the filters before this one.
+	 * @return The line to pass on, the same instance if unchanged, or null to
+	 *         drop it.
+	 */
+	String filter(Session sender, String text);
+}
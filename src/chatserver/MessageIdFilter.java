@@ -0,0 +1,109 @@
+package chatserver;
+
+/**
+ * MessageIdFilter.java
+ *
+ * Remembers the ids clients give their chat lines for a while, so that a line
+ * sent again, typically by a client retrying after it lost its connection, is
+ * recognised and not broadcast twice. Ids are remembered per user rather than
+ * per session, since the retry arrives on a new session.
+ *
+ * The filter uses a fixed amount of memory however many users chat. It is an
+ * open addressing hash table of 64 bit keys, each mixing a 64 bit hash of
+ * the whole username with a message id, and the time each key was seen. A lookup probes a few
+ * neighbouring slots only: a key seen within the window is a duplicate, and
+ * otherwise the key takes an empty or expired slot, or failing that the
+ * oldest of the slots probed. Under heavy load ids may therefore be forgotten
+ * before the window is up, but a line is never mistaken for a duplicate
+ * unless two 64 bit keys collide. Two ids of the same user never do, and
+ * lines of different users collide with a chance of about one in 2^64.
+ *
+ * The table is split into segments, each with its own lock, so the shards
+ * checking lines at the same time rarely contend, and a check costs a few
+ * array reads under an uncontended lock.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class MessageIdFilter {
+
+	/** Slots probed for each key */
+	private static final int PROBES = 8;
+
+	private static final int SEGMENTS = 64;
+
+	private final long[][] keys = new long[SEGMENTS][];
+	private final long[][] seen = new long[SEGMENTS][];
+	private final int mask;
+	private final long windowMillis;
+	private final Clock clock;
+
+	/**
+	 * @param capacity Ids remembered in all, rounded up to a power of two.
+	 * @param windowMillis How long an id is remembered for.
+	 * @param clock Source of time for the window.
+	 */
+	MessageIdFilter(int capacity, long windowMillis, Clock clock) {
+		int perSegment = PROBES;
+		while (perSegment * SEGMENTS < capacity) perSegment <<= 1;
+		for (int i = 0; i < SEGMENTS; i++) {
+			keys[i] = new long[perSegment];
+			seen[i] = new long[perSegment];
+		}
+		mask = perSegment - 1;
+		this.windowMillis = windowMillis;
+		this.clock = clock;
+	}
+
+	/**
+	 * Records a message id, unless it was already recorded for the same user
+	 * within the window. Safe to call from any thread.
+	 *
+	 * @param username The sender.
+	 * @param id The id the sender's client gave the line.
+	 * @return True the first time an id is seen, false for a duplicate.
+	 */
+	boolean firstSeen(String username, long id) {
+		long key = mix(hash(username) * 0x9E3779B97F4A7C15L + id);
+		if (key == 0) key = 1;
+		int segment = (int) (key >>> 58);
+		int home = (int) key & mask;
+		long now = clock.millis();
+		long expired = now - windowMillis;
+
+		long[] segmentKeys = keys[segment];
+		long[] segmentSeen = seen[segment];
+		synchronized (segmentKeys) {
+			int victim = home;
+			for (int i = 0; i < PROBES; i++) {
+				int slot = (home + i) & mask;
+				if (segmentKeys[slot] == key && segmentSeen[slot] > expired) return false;
+				if (segmentSeen[slot] < segmentSeen[victim]) victim = slot;
+			}
+			segmentKeys[victim] = key;
+			segmentSeen[victim] = now;
+		}
+		return true;
+	}
+
+	/** @return A 64 bit hash of every character of a username, FNV-1a,
+	 *          where String.hashCode() would give only 32 bits */
+	private static long hash(String username) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < username.length(); i++) {
+			h ^= username.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/** Spreads the bits of a key, the finaliser of MurmurHash3 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,89 @@
+package chatserver;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * ParserBenchmark.java
+ *
+ * Checks that CommandParser lives up to its promise of parsing an ordinary
+ * chat line without allocating, and measures how long each kind of frame
+ * takes to parse. Every sample frame is parsed into one reused Command many
+ * times, and the bytes the thread allocated meanwhile are read from the
+ * JVM's ThreadMXBean, so any garbage the parser makes shows up as bytes per
+ * frame. Frames whose accessors are not called, as here, should allocate
+ * nothing at all. Run it while the server is stopped:
+ *
+ *     java -cp bin chatserver/ParserBenchmark [iterations]
+ *
+ * It exits with status 1 if any frame that should parse in place allocates.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class ParserBenchmark {
+
+	/** Frames parsed, the ones the server sees most often first */
+	private static final String[] FRAMES = {
+		"alice: hello @bob, how are you?",
+		"MSG: 8817265512,alice: hello again",
+		"PONG",
+		"PING: 123456789",
+		"TRACE: 7",
+		"TRACED: 2500,1800,300",
+		"DATA: 3,aGVsbG8sIHdvcmxkCg==",
+		"CREDIT: 3,65536",
+		"HISTORY: 1351123200000,42",
+		"LOGIN: alice,password",
+		"SEARCH: 1,from:alice hello",
+		"LOGIN: missing separator",
+		"SERVER_DRAIN"
+	};
+
+	private ParserBenchmark() {}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("This JVM cannot count allocated bytes");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long thread = Thread.currentThread().getId();
+		Command command = new Command();
+
+		/** Let the JIT compile the parser before anything is counted */
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < FRAMES.length; i++) run(FRAMES[i], command, iterations / 10);
+		}
+
+		boolean clean = true;
+		for (int i = 0; i < FRAMES.length; i++) {
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			int valid = run(FRAMES[i], command, iterations);
+			long nanos = System.nanoTime() - start;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+			/** Allow for the few bytes the counter itself costs */
+			double perFrame = (double) bytes / iterations;
+			boolean allocates = perFrame >= 1;
+			if (allocates) clean = false;
+			System.out.printf("%-38s %-8s %6.1f ns %8.2f bytes/frame%s%n",
+					FRAMES[i], command.type + (valid == 0 ? "!" : ""), (double) nanos / iterations,
+					perFrame, allocates ? "  ALLOCATES" : "");
+		}
+		System.out.println(clean ? "No frame allocated while parsing" : "Parsing allocated, see above");
+		System.exit(clean ? 0 : 1);
+	}
+
+	/** @return How many of the parses were valid, which also keeps the JIT
+	 *          from discarding them */
+	private static int run(String frame, Command command, int iterations) {
+		int valid = 0;
+		for (int i = 0; i < iterations; i++) {
+			if (CommandParser.parse(frame, command)) valid++;
+		}
+		return valid;
+	}
+}
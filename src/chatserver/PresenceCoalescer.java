@@ -0,0 +1,110 @@
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PresenceCoalescer.java
+ *
+ * Collects users joining and leaving the chat over a short window and then
+ * announces all of them at once: a single line naming who joined and who left,
+ * followed by a single user list update. Without it, every login and logout
+ * sends two lines to every client, so a few hundred clients reconnecting after
+ * a network blip would cost each client hundreds of user lists. With it,
+ * presence traffic is bounded by the window rate however many users come and
+ * go.
+ *
+ * A user who joins and leaves again within one window, or leaves and comes
+ * straight back, cancels out and is not announced at all.
+ *
+ * The window is timed on the server's timing wheel, the announcement goes out
+ * from the wheel thread when the window closes.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class PresenceCoalescer extends TimingWheel.Timeout {
+
+	/** Most names listed in one announcement, the rest are only counted */
+	private static final int MAX_NAMES = 10;
+
+	private final Server server;
+	private final TimingWheel wheel;
+	private final long windowMillis;
+
+	/** Net change per user within the current window, true for a join and
+	 *  false for a leave, in the order the users were first seen */
+	private final LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+
+	/** Whether the window is open, i.e. the flush is on the wheel */
+	private boolean scheduled;
+
+	/**
+	 * @param server Server whose clients are told about presence changes.
+	 * @param wheel Timing wheel used to close each window.
+	 * @param windowMillis Length of a window in milliseconds.
+	 */
+	PresenceCoalescer(Server server, TimingWheel wheel, long windowMillis) {
+		this.server = server;
+		this.wheel = wheel;
+		this.windowMillis = windowMillis;
+	}
+
+	/** Records a user logging in */
+	synchronized void joined(String username) {
+		change(username, true);
+	}
+
+	/** Records a user logging out */
+	synchronized void left(String username) {
+		change(username, false);
+	}
+
+	private void change(String username, boolean joined) {
+		Boolean previous = changes.remove(username);
+		if (previous == null || previous.booleanValue() == joined) {
+			changes.put(username, joined);
+		}
+		if (!scheduled) {
+			scheduled = true;
+			wheel.schedule(this, windowMillis);
+		}
+	}
+
+	/** Closes the window and announces its net changes, if any */
+	void expire() {
+		ArrayList<String> joins = new ArrayList<String>();
+		ArrayList<String> leaves = new ArrayList<String>();
+		synchronized (this) {
+			for (Map.Entry<String, Boolean> entry : changes.entrySet()) {
+				if (entry.getValue()) joins.add(entry.getKey());
+				else leaves.add(entry.getKey());
+			}
+			changes.clear();
+			scheduled = false;
+		}
+		if (joins.isEmpty() && leaves.isEmpty()) return;
+
+		StringBuilder msg = new StringBuilder("ChatServer:");
+		if (!joins.isEmpty()) describe(msg, joins, "joined");
+		if (!leaves.isEmpty()) describe(msg, leaves, "left");
+
+		server.broadcast(msg.toString());
+		server.broadcastUserList();
+		Log.info("presence", joins.size() + " joined, " + leaves.size() + " left");
+	}
+
+	/** Appends a sentence such as "Users a, b and c have joined the chat." */
+	private static void describe(StringBuilder msg, ArrayList<String> users, String verb) {
+		int count = users.size();
+		int named = Math.min(count, MAX_NAMES);
+		msg.append(count == 1 ? " User " : " Users ");
+		for (int i = 0; i < named; i++) {
+			if (i > 0) msg.append(i == count - 1 ? " and " : ", ");
+			msg.append(users.get(i));
+		}
+		if (count > named) msg.append(" and ").append(count - named).append(" others");
+		msg.append(count == 1 ? " has " : " have ").append(verb).append(" the chat.");
+	}
+}
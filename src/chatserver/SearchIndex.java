@@ -0,0 +1,523 @@
+package chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SearchIndex.java
+ *
+ * Lets users search everything said in the chat, not just the recent history.
+ * Every chat line that is broadcast is appended to an archive on the server's
+ * disk and added to an inverted index in memory, which maps each word to the
+ * lines containing it, in the order they were said, along with how often it
+ * occurs in each. A search then only visits the lines containing its rarest
+ * word, rather than scanning the whole archive.
+ *
+ * A client searches with "SEARCH: page,query". The query's words must all
+ * occur in a line for it to match, ignoring case. "from:alice" only matches
+ * lines alice sent, and "to:bob" or "@bob" lines that mention bob. The sender
+ * and the users mentioned are recorded as the line is indexed, the sender
+ * filter is itself a list of the lines each user sent, so filtering costs no
+ * more than looking up a word. Matches are ranked with BM25, which favours
+ * rare words and short lines, newer lines first among equals. The client is
+ * answered with one frame, "SEARCH_RESULTS page pages total" followed by a
+ * "SEARCH_HIT time line" for each match on the page, the time in
+ * milliseconds since 1970.
+ *
+ * All of the index's work, appending, indexing and searching, is done on a
+ * single indexer thread, so the index needs no locks and a delivery shard
+ * only ever queues a line for it. The archive is written as lines arrive and
+ * flushed whenever the indexer runs out of work, so a burst of lines costs
+ * one write. When the server starts, the index is rebuilt from the archive
+ * before the indexer takes anything else, and a record cut short by a crash
+ * is dropped from its end.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class SearchIndex {
+
+	/** BM25's term frequency saturation and length normalisation */
+	private static final double K1 = 1.2;
+	private static final double B = 0.75;
+
+	/** Longest word indexed, longer runs of letters are not words */
+	private static final int MAX_WORD = 64;
+
+	/** Key prefixes of the sender and mention lists, which cannot clash
+	 *  with words since words never contain ':' or '@' */
+	private static final String SENDER = "from:";
+	private static final String MENTION = "@";
+
+	private final File archive;
+	private final int pageSize;
+	private final int maxPages;
+
+	/** The indexer thread and the work queued for it */
+	private final BlockingQueue<Runnable> backlog = new LinkedBlockingQueue<Runnable>();
+	private final ThreadPoolExecutor indexer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, backlog);
+
+	/** The index, indexer thread only. Lines are numbered from 0 in the
+	 *  order they were archived. */
+	private final HashMap<String, Postings> postings = new HashMap<String, Postings>();
+
+	/** Where each line's record starts in the archive, and its length in
+	 *  words, indexer thread only */
+	private long[] offsets = new long[1024];
+	private int[] lengths = new int[1024];
+	private int count;
+	private long totalLength;
+
+	/** End of the archive, where the next record goes */
+	private long archiveEnd;
+	private DataOutputStream out;
+	private RandomAccessFile reader;
+
+	/** Reused while indexing and appending, indexer thread only */
+	private final HashMap<String, int[]> counts = new HashMap<String, int[]>();
+	private final ArrayList<String> words = new ArrayList<String>();
+	private final ArrayList<String> mentions = new ArrayList<String>();
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+	private final DataOutputStream recordData = new DataOutputStream(record);
+
+	/**
+	 * Creates the search directory if needed and starts rebuilding the index
+	 * from its archive on the indexer thread.
+	 *
+	 * @param directory Directory the archive is kept in.
+	 * @param pageSize Matches sent per page of results.
+	 * @param maxPages Most pages of results a search can be paged through.
+	 * @throws IOException If the directory cannot be created.
+	 */
+	SearchIndex(File directory, int pageSize, int maxPages) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create search directory " + directory);
+		}
+		archive = new File(directory, "archive.dat");
+		this.pageSize = pageSize;
+		this.maxPages = maxPages;
+		indexer.execute(new Runnable() {
+			public void run() {
+				load();
+			}
+		});
+	}
+
+	/**
+	 * Queues a chat line to be archived and indexed. Safe to call from any
+	 * thread, the caller only pays for queueing it.
+	 *
+	 * @param sender Username of the client that sent the line.
+	 * @param line The line as it was broadcast.
+	 */
+	void add(final String sender, final String line) {
+		final long time = System.currentTimeMillis();
+		try {
+			indexer.execute(new Runnable() {
+				public void run() {
+					append(time, sender, line);
+				}
+			});
+		} catch (RejectedExecutionException ignore) {
+		}
+	}
+
+	/**
+	 * Queues a search, the client is sent the results once it has run and
+	 * reading from it is resumed. Reading should be paused by the caller, so
+	 * that a client has one search running at a time.
+	 *
+	 * @param client The client searching.
+	 * @param query Words and filters, see above.
+	 * @param page The page of results wanted, from 1.
+	 */
+	void search(final Session client, final String query, final int page) {
+		try {
+			indexer.execute(new Runnable() {
+				public void run() {
+					try {
+						client.write(answer(query, page));
+					} catch (IOException e) {
+						Log.error("search.query", client, e);
+						client.write("SEARCH_RESULTS " + page + " 0 0");
+					}
+					client.resumeReading();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			client.resumeReading();
+		}
+	}
+
+	/** Flushes and closes the archive once the lines already queued have
+	 *  been written, and takes no more work */
+	void stop() {
+		try {
+			indexer.execute(new Runnable() {
+				public void run() {
+					close();
+				}
+			});
+		} catch (RejectedExecutionException ignore) {
+		}
+		indexer.shutdown();
+	}
+
+	/** Waits for stop() to finish writing the archive */
+	boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+		return indexer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Indexes every line in the archive, dropping a record cut short at its
+	 *  end, then opens it for appending */
+	private void load() {
+		long good = 0;
+		try {
+			if (archive.isFile()) {
+				long size = archive.length();
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive)));
+				try {
+					while (true) {
+						int length = in.readInt();
+						if (length < 0 || length > size - good - 4) break;
+						byte[] payload = new byte[length];
+						in.readFully(payload);
+						DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+						fields.readLong();
+						String sender = fields.readUTF();
+						index(good, sender, fields.readUTF());
+						good += 4 + length;
+					}
+				} catch (EOFException end) {
+				} finally {
+					in.close();
+				}
+				if (size > good) {
+					RandomAccessFile truncate = new RandomAccessFile(archive, "rw");
+					try {
+						truncate.setLength(good);
+					} finally {
+						truncate.close();
+					}
+					Log.warn("search.load", null, "Dropped an incomplete record at the end of " + archive);
+				}
+			}
+			archiveEnd = good;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archive, true), 65536));
+			Log.info("search.load", count + " chat lines indexed from " + archive);
+		} catch (IOException e) {
+			Log.error("search.load", e);
+		}
+	}
+
+	/** Writes a line to the archive and indexes it, or drops it if the
+	 *  archive cannot be written */
+	private void append(long time, String sender, String line) {
+		if (out == null) return;
+		try {
+			record.reset();
+			recordData.writeLong(time);
+			recordData.writeUTF(sender);
+			recordData.writeUTF(line);
+			out.writeInt(record.size());
+			record.writeTo(out);
+			if (backlog.isEmpty()) out.flush();
+		} catch (IOException e) {
+			Log.error("search.append", e);
+			return;
+		}
+		index(archiveEnd, sender, line);
+		archiveEnd += 4 + record.size();
+	}
+
+	/** Adds a line to the index as the next line number */
+	private void index(long offset, String sender, String line) {
+		String body = line.startsWith(sender + ": ") ? line.substring(sender.length() + 2) : line;
+		words(body, words);
+		CommandParser.findMentions(body, mentions);
+		int length = words.size();
+		for (int i = 0; i < words.size(); i++) {
+			count(words.get(i));
+		}
+		for (int i = 0; i < mentions.size(); i++) {
+			count(MENTION + mentions.get(i));
+		}
+		int doc = count;
+		for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+			postingsFor(entry.getKey()).add(doc, entry.getValue()[0]);
+		}
+		postingsFor(SENDER + sender).add(doc, 0);
+		counts.clear();
+		words.clear();
+		mentions.clear();
+
+		if (doc == offsets.length) {
+			offsets = Arrays.copyOf(offsets, doc * 2);
+			lengths = Arrays.copyOf(lengths, doc * 2);
+		}
+		offsets[doc] = offset;
+		lengths[doc] = length;
+		totalLength += length;
+		count++;
+	}
+
+	/** Counts an occurrence of a key in the line being indexed */
+	private void count(String key) {
+		int[] n = counts.get(key);
+		if (n == null) counts.put(key, n = new int[1]);
+		n[0]++;
+	}
+
+	private Postings postingsFor(String key) {
+		Postings list = postings.get(key);
+		if (list == null) postings.put(key, list = new Postings());
+		return list;
+	}
+
+	/**
+	 * Runs a search.
+	 *
+	 * @param query Words and filters.
+	 * @param page The page of results wanted, from 1.
+	 * @return The frame answering the client.
+	 * @throws IOException If a match cannot be read back from the archive.
+	 */
+	private String answer(String query, int page) throws IOException {
+		page = Math.min(page, maxPages);
+
+		/** Words and mentions are scored, the sender filter only narrows */
+		String sender = null;
+		for (String token : query.trim().split("\\s+")) {
+			if (token.startsWith(SENDER) && token.length() > SENDER.length()) {
+				sender = token;
+				continue;
+			}
+			if (token.startsWith("to:")) token = MENTION + token.substring(3);
+			if (token.startsWith(MENTION)) CommandParser.findMentions(token, mentions);
+			else words(token, words);
+		}
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < words.size(); i++) {
+			if (!keys.contains(words.get(i))) keys.add(words.get(i));
+		}
+		for (int i = 0; i < mentions.size(); i++) {
+			if (!keys.contains(MENTION + mentions.get(i))) keys.add(MENTION + mentions.get(i));
+		}
+		words.clear();
+		mentions.clear();
+		int scored = keys.size();
+		if (sender != null) keys.add(sender);
+		if (keys.isEmpty()) return "SEARCH_RESULTS " + page + " 0 0";
+
+		/** Walk the shortest list, skipping ahead in the others */
+		final Postings[] lists = new Postings[keys.size()];
+		final double[] idf = new double[lists.length];
+		Integer[] order = new Integer[lists.length];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = postings.get(keys.get(i));
+			if (lists[i] == null) return "SEARCH_RESULTS " + page + " 0 0";
+			if (i < scored) idf[i] = Math.log(1 + (count - lists[i].size + 0.5) / (lists[i].size + 0.5));
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return lists[a].size - lists[b].size;
+			}
+		});
+		int[] cursors = new int[lists.length];
+		double averageLength = Math.max((double) totalLength / count, 1);
+		TopHits top = new TopHits(page * pageSize);
+		int total = 0;
+		Postings shortest = lists[order[0]];
+		matching:
+		for (int i = 0; i < shortest.size; i++) {
+			int doc = shortest.docs[i];
+			cursors[order[0]] = i;
+			for (int j = 1; j < order.length; j++) {
+				Postings list = lists[order[j]];
+				int at = list.seek(doc, cursors[order[j]]);
+				cursors[order[j]] = at;
+				if (at == list.size) break matching;
+				if (list.docs[at] != doc) continue matching;
+			}
+			total++;
+			double score = 0;
+			double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+			for (int j = 0; j < scored; j++) {
+				int frequency = lists[j].freqs[cursors[j]];
+				score += idf[j] * frequency * (K1 + 1) / (frequency + norm);
+			}
+			top.offer(score, doc);
+		}
+
+		int pages = Math.min((total + pageSize - 1) / pageSize, maxPages);
+		StringBuilder answer = new StringBuilder("SEARCH_RESULTS ");
+		answer.append(page).append(' ').append(pages).append(' ').append(total);
+		int[] hits = top.best();
+		if (hits.length > (page - 1) * pageSize) {
+			out.flush();
+			if (reader == null) reader = new RandomAccessFile(archive, "r");
+			for (int i = (page - 1) * pageSize; i < hits.length; i++) {
+				reader.seek(offsets[hits[i]] + 4);
+				long time = reader.readLong();
+				reader.readUTF();
+				answer.append("\nSEARCH_HIT ").append(time).append(' ').append(reader.readUTF());
+			}
+		}
+		return answer.toString();
+	}
+
+	/** Flushes and closes the archive */
+	private void close() {
+		try {
+			if (out != null) out.close();
+			if (reader != null) reader.close();
+		} catch (IOException e) {
+			Log.error("search.close", e);
+		}
+		out = null;
+	}
+
+	/**
+	 * Splits text into lower case words, each a run of letters and digits.
+	 *
+	 * @param text The text.
+	 * @param words Receives the words, in order, repeats included.
+	 */
+	static void words(String text, List<String> words) {
+		int length = text.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && !Character.isLetterOrDigit(text.charAt(i))) i++;
+			int start = i;
+			while (i < length && Character.isLetterOrDigit(text.charAt(i))) i++;
+			if (i > start && i - start <= MAX_WORD) {
+				words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+
+	/**
+	 * The lines containing one word, or sent by or mentioning one user, in
+	 * line number order, with the number of times the word occurs in each.
+	 */
+	private static final class Postings {
+		int[] docs = new int[2];
+		int[] freqs = new int[2];
+		int size;
+
+		void add(int doc, int freq) {
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+				freqs = Arrays.copyOf(freqs, size * 2);
+			}
+			docs[size] = doc;
+			freqs[size] = freq;
+			size++;
+		}
+
+		/** @return Index of the first line numbered doc or later, searching
+		 *          from the given index, or size if there is none */
+		int seek(int doc, int from) {
+			int at = Arrays.binarySearch(docs, from, size, doc);
+			return at < 0 ? -at - 1 : at;
+		}
+	}
+
+	/**
+	 * Keeps the best scoring lines offered to it in a heap of fixed size,
+	 * ties going to the newer line.
+	 */
+	private static final class TopHits {
+		private final double[] scores;
+		private final int[] docs;
+		private int size;
+
+		TopHits(int capacity) {
+			scores = new double[capacity];
+			docs = new int[capacity];
+		}
+
+		void offer(double score, int doc) {
+			if (size < scores.length) {
+				scores[size] = score;
+				docs[size] = doc;
+				up(size++);
+			}
+			else if (scores.length > 0 && !worse(score, doc, 0)) {
+				scores[0] = score;
+				docs[0] = doc;
+				down(0);
+			}
+		}
+
+		/** @return The lines kept, best first. Empties the heap. */
+		int[] best() {
+			int[] best = new int[size];
+			for (int i = best.length - 1; i >= 0; i--) {
+				best[i] = docs[0];
+				size--;
+				scores[0] = scores[size];
+				docs[0] = docs[size];
+				down(0);
+			}
+			return best;
+		}
+
+		/** @return True if the given line ranks below the one at slot i */
+		private boolean worse(double score, int doc, int i) {
+			return score < scores[i] || (score == scores[i] && doc < docs[i]);
+		}
+
+		private void up(int i) {
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!worse(scores[i], docs[i], parent)) break;
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void down(int i) {
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) break;
+				if (child + 1 < size && worse(scores[child + 1], docs[child + 1], child)) child++;
+				if (!worse(scores[child], docs[child], i)) break;
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		private void swap(int i, int j) {
+			double score = scores[i];
+			scores[i] = scores[j];
+			scores[j] = score;
+			int doc = docs[i];
+			docs[i] = docs[j];
+			docs[j] = doc;
+		}
+	}
+}
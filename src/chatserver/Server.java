@@ -1,320 +1,702 @@
 package chatserver;
 
 import java.net.*;
-import java.util.ArrayList;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 
 /**
  * Server.java
- * 
+ *
  * Objects may be instantiated from the Server class by giving a port number.
- * The object will create a ServerSocket instance which will allow the server
- * to listen to incoming connections. Server.java is a multithreaded server
- * implementation. The server spins off a new thread to communicate with each
- * new client connection, while continuing to listen for new incoming connections
- * on the ServerSocket instance on the main thread.
- * 
+ * The object will create a ServerSocketChannel which will allow the server
+ * to listen to incoming connections on the main thread. Connected clients are
+ * not given a thread of their own. Instead the server runs a fixed number of
+ * delivery shards, one per core, and each new connection is handed to one of
+ * them. A shard's thread does all of the reading and writing for its clients
+ * without blocking, and delivers broadcasts to them in parallel with the
+ * other shards. Browsers connect to a second port with a WebSocket, and are
+ * served by the same shards and handlers as the Swing client.
+ *
+ * The server can also be run as a simulation, on a SimulatedClock and with
+ * its clients connected through MemoryTransports rather than sockets. It
+ * then starts no threads: the simulation connects clients with connect(),
+ * advances the clock and calls step() to let the server do its work, all on
+ * one thread, so that a run with many clients plays out the same way every
+ * time.
+ *
  * @author Cory Gross
  * @version October 25, 2012
  */
 public class Server {
+
+	/** Server's channel to listen for incoming connections on */
+	private ServerSocketChannel listener;
+	
+	/** Channel to listen for browsers connecting with a WebSocket on */
+	private ServerSocketChannel webListener;
 	
-	/** The number of current connections (not logged-in sessions) */
-	private int connections;
+	/** Waits for connections on both listeners, so that a single accept
+	 *  thread serves chat and WebSocket clients alike */
+	private Selector acceptSelector;
 	
-	/** Server's socket to listen for incoming connections on. ServerSocket objects
-	 *  provide an accept() method that blocks until a client connects at which
-	 *  point it returns a regular Socket object for that connection. */
-	private ServerSocket listener;
+	/** The set of active logged-in client sessions. */
+	private Set<Session> clientList;
 	
-	/** A list of active logged-in client sessions. */
-	private ArrayList<Session> clientList;
+	/** Logged-in sessions by username, tells whether a mentioned user
+	 *  will see a message or should find it in their inbox later */
+	private ConcurrentHashMap<String, Session> online;
 	
 	/** The server's database manager provides an interface to the MySQL data
 	 *  store supporting the server. */
 	private DBManager db;
-
-	/** Flag to limit the maximum number of connections */
-	private final int MAX_CONNECTIONS = 0;
 	
-
+	/** Decides which accepted connections may be served, enforcing the
+	 *  connection caps and the per-address accept rate. */
+	private AdmissionControl admission;
+	
+	/** Timing wheel driving every session's heartbeat and timeouts */
+	private TimingWheel wheel;
+	
+	/** Batches join and leave announcements during login storms */
+	private PresenceCoalescer presence;
+	
+	/** Orders every broadcast before it is handed to the delivery shards */
+	private IngestRing ingest;
+	
+	/** Timings of the chat lines clients have asked to have traced */
+	private LatencyStats latency;
+	
+	/** Recognises chat lines a client has sent before */
+	private MessageIdFilter dedupe;
+	
+	/** Filters every chat line before it is broadcast */
+	private FilterChain filters;
+	
+	/** The built-in filter, masking and blocking listed words */
+	private WordFilter wordFilter;
+	
+	/** Recent broadcasts, sent to returning clients that missed them */
+	private History history;
+	
+	/** Time the server started, sequence numbers only identify a broadcast
+	 *  together with it since they start over on every restart */
+	private final long epoch;
+	
+	/** Source of time for the server's timers and rate limits */
+	private final Clock clock;
+	
+	/** Stores shared files and serves their transfers on a side port */
+	private AttachmentStore attachments;
+	
+	/** Archives and indexes chat lines for SEARCH, null if disabled */
+	private SearchIndex search;
+	
+	/** The delivery shards serving the clients, one thread each */
+	private DeliveryShard[] shards;
+	
+	/** Index of the shard the next connection is assigned to */
+	private int nextShard;
+	
+	/** Threads running database work, such as logins, which must never
+	 *  block a delivery shard */
+	private ExecutorService dbExecutor;
+	
+	/** Single thread storing messages for offline users, so that they are
+	 *  stored, and later delivered, in the order they were sent. Its queue
+	 *  is bounded, work beyond it is rejected. */
+	private ExecutorService inboxExecutor;
+	
+	/** Every open session, logged-in or not, so that a drain can reach
+	 *  clients that are still on the login screen as well. */
+	private Set<Session> openSessions;
+	
+	/** Port the chat listener is opened on once the server is ready */
+	private int port;
+	
+	/** Set once the server has warmed up and opened its listeners */
+	private volatile boolean ready;
+	
+	/** Cleared when the server begins draining, stops the accept loop */
+	private volatile boolean running = true;
+	
+	/** Set once a drain has completed, makes drain() idempotent */
+	private boolean drained;
+	
+	
 	/**
 	 * Constructor creates a new server given a specified port number.
 	 * 
 	 * @param port Port number to listen for incoming connections on.
 	 */
-	Server(short port) {
-		connections = 0;
+	Server(int port) {
+		this(port, Clock.SYSTEM);
+	}
+	
+	/**
+	 * Constructor creates a new server running on the given clock. A server
+	 * on a SimulatedClock runs its database work on the calling thread and
+	 * opens no attachment port, see simulate().
+	 * 
+	 * @param port Port number to listen for incoming connections on.
+	 * @param clock Source of time for the server's timers and rate limits.
+	 */
+	Server(int port, Clock clock) {
+		this.port = port;
+		this.clock = clock;
+		epoch = clock.millis();
+		admission = new AdmissionControl(ServerConfig.MAX_CONNECTIONS,
+				ServerConfig.MAX_PRELOGIN_CONNECTIONS, ServerConfig.ACCEPT_BURST_PER_IP,
+				ServerConfig.ACCEPT_RATE_PER_IP, ServerConfig.MAX_TRACKED_ADDRESSES, clock);
+		wheel = new TimingWheel(ServerConfig.WHEEL_TICK_MS, ServerConfig.WHEEL_SIZE, clock);
+		presence = new PresenceCoalescer(this, wheel, ServerConfig.PRESENCE_WINDOW_MS);
+		if (clock.isSimulated()) {
+			dbExecutor = new CallerRunsExecutor();
+			inboxExecutor = dbExecutor;
+		}
+		else {
+			dbExecutor = Executors.newFixedThreadPool(ServerConfig.DB_THREADS);
+			inboxExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(ServerConfig.INBOX_QUEUE));
+		}
+		ingest = new IngestRing(ServerConfig.INGEST_RING_SIZE, new IngestRing.Consumer() {
+			public void onMessage(long sequence, String msg, Trace trace) {
+				fanOut(sequence, msg, trace);
+			}
+		});
+		history = new History(ServerConfig.HISTORY_SIZE);
+		latency = new LatencyStats();
+		dedupe = new MessageIdFilter(ServerConfig.DEDUPE_CAPACITY, ServerConfig.DEDUPE_WINDOW_MS, clock);
+		filters = new FilterChain();
+		wordFilter = new WordFilter(new File(ServerConfig.FILTER_WORDS), wheel, ServerConfig.FILTER_CHECK_MS, dbExecutor);
+		filters.add(wordFilter);
+		addFilters(ServerConfig.FILTERS);
+		clientList = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+		online = new ConcurrentHashMap<String, Session>();
+		openSessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
 		try {
-			listener = new ServerSocket(port);
-			clientList = new ArrayList<Session>();
+			acceptSelector = Selector.open();
+			shards = new DeliveryShard[ServerConfig.DELIVERY_THREADS];
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new DeliveryShard(i, ServerConfig.WRITE_BUFFER_BYTES,
+						WebSocketChannel.bufferBytes(ServerConfig.MAX_FRAME_BYTES),
+						ServerConfig.POOLED_READ_BUFFERS, clock);
+			}
+		} catch(IOException e) {
+			Log.error("server.start", e);
+		}
+		if (clock.isSimulated()) return;
+		
+		/** The chat still works if the attachment port cannot be opened,
+		 *  clients are simply refused when they try to share a file */
+		try {
+			attachments = new AttachmentStore(this, ServerConfig.ATTACHMENT_PORT,
+					new File(ServerConfig.ATTACHMENT_DIR), ServerConfig.ATTACHMENT_THREADS,
+					ServerConfig.ATTACHMENT_QUEUE);
 		} catch(IOException e) {
-			System.err.println(e);
-			e.printStackTrace();
+			Log.error("attachment.listen", e);
+		}
+		
+		/** Likewise the chat carries on without search if the archive's
+		 *  directory cannot be created */
+		try {
+			search = new SearchIndex(new File(ServerConfig.SEARCH_DIR),
+					ServerConfig.SEARCH_PAGE_SIZE, ServerConfig.SEARCH_MAX_PAGES);
+		} catch(IOException e) {
+			Log.error("search.open", e);
 		}
 	}
-
+	
 	/**
 	 * Main method for the server to begin running. A Server instance must be
 	 * created and run() must be called before any client connections can be
-	 * attempted. First the server's DBManager instance is created, connecting
-	 * the server to its supporting MySQL data-store. Immediately after a
-	 * database connection has been made, the server forever loops, calling
-	 * accept on the listener socket. This method blocks until a connection has
-	 * been made. A new thread using the ClientHandler runnable instance is
-	 * created to communicate with the client.
+	 * attempted. First the server's DBManager instance is created, opening a
+	 * pool of connections to its supporting MySQL data-store. The server then
+	 * warms up, waiting for the database if it is not available yet, and only
+	 * once it is ready are the delivery shards started and the listeners
+	 * opened. The server loops until drained, waiting for connections on the
+	 * chat and WebSocket listeners. This method blocks until a connection has
+	 * been made. Each accepted connection is checked against the server's
+	 * admission control, rejected connections are reset immediately while
+	 * admitted ones are switched to non-blocking mode and handed to the next
+	 * delivery shard in turn.
 	 * 
 	 * @param args Command line arguments, passed in from the main method.
 	 */
 	public void run(String[] args) throws IOException {
-		System.out.println("Log: Server started.. listening for connections");
-	
-		BufferedReader in = new BufferedReader(new FileReader("dbauth.dat")); 
+		Log.info("server.start", "Server starting");
+		long started = System.currentTimeMillis();
+		
+		BufferedReader in = new BufferedReader(new FileReader("dbauth.dat"));
 		String dbUser = in.readLine();
 		String dbPass = in.readLine();
 		in.close();
 		
 		/** Create a DBManager instance for communicating with our DB */
-		String dbAddress = "jdbc:mysql://localhost:3306/chatdb";
-		db = new DBManager(dbAddress, dbUser, dbPass);		
+		db = new DBManager(ServerConfig.DB_URL, dbUser, dbPass, ServerConfig.DB_POOL_SIZE);
+		
+		/** Take no clients until the database pool works, then warm up the
+		 *  hashing and protocol code so the first logins run compiled code */
+		while (running && !Warmup.database(db)) {
+			Log.warn("server.starting", null, "Database not ready, retrying");
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		if (!running) return;
+		Warmup.code(db, ServerConfig.WARMUP_HASHES);
+		
+		/** Start the timer thread which pings idle clients and reaps dead ones */
+		wheel.start();
+		
+		/** Start the shard threads which serve the clients, and the
+		 *  sequencer which feeds them broadcasts */
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].start();
+		}
+		ingest.start();
+		if (attachments != null) attachments.start();
+		Log.info("server.start", shards.length + " delivery shards running");
+		
+		openListeners();
+		ready = true;
+		Log.info("server.ready", "Ready after " + (System.currentTimeMillis() - started)
+				+ " ms, listening for connections");
 		
 		/** Continually loop and listen for connections while running */
-		while (true) {
+		while (running) {
 		
-			/** Only accept connections up to the limit specified by the
-			    MAX_CONNECTIONS constant, 0 means no new connection limit */
-			if (++connections < MAX_CONNECTIONS || MAX_CONNECTIONS == 0) {
-				
-				/** Block here listening for a client connection */
-				Socket client = listener.accept();
-				
-				/** Create a new thread to communicate with the socket on,
-				 *  so that we can continue listening for connections in
-				 *  the main thread.  */
-				new Thread(new ClientHandler(client, clientList, db)).start();
-							
+			/** Block here listening for client connections, a drain wakes
+			 *  the selector once it has closed the listeners */
+			acceptSelector.select();
+			Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!running || !key.isValid()) continue;
+				SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+				if (client != null) accept(client, (Boolean) key.attachment());
 			}
 		}
+		acceptSelector.close();
+		Log.info("server.stop", "Server stopped accepting connections");
 	}
 	
-	/** Main method to start up the server on a port */
-	public static void main(String args[]) {
-		
-		final short PORT = 1337;
-		Server server = new Server(PORT);
+	/** Adds the filters named in the configuration to the chain. A filter
+	 *  that cannot be created is logged and left out. */
+	private void addFilters(String classNames) {
+		for (String name : classNames.split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) continue;
+			try {
+				Class<? extends MessageFilter> type = Class.forName(name).asSubclass(MessageFilter.class);
+				filters.add(type.getDeclaredConstructor().newInstance());
+				Log.info("filter.add", "Filtering chat lines with " + name);
+			} catch (ReflectiveOperationException e) {
+				Log.error("filter.add", e);
+			} catch (ClassCastException e) {
+				Log.warn("filter.add", null, name + " is not a MessageFilter, left out");
+			}
+		}
+	}
+	
+	/** Opens the chat and WebSocket listeners. As with attachments, the chat
+	 *  carries on for the Swing client if the WebSocket port cannot be opened */
+	private void openListeners() throws IOException {
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+		listener.configureBlocking(false);
+		listener.register(acceptSelector, SelectionKey.OP_ACCEPT, Boolean.FALSE);
 		
 		try {
-			server.run(args);
-		} catch (IOException e) {
-			System.err.print(e);
-			e.printStackTrace();
+			webListener = ServerSocketChannel.open();
+			webListener.socket().bind(new InetSocketAddress(ServerConfig.WEBSOCKET_PORT), ServerConfig.ACCEPT_BACKLOG);
+			webListener.configureBlocking(false);
+			webListener.register(acceptSelector, SelectionKey.OP_ACCEPT, Boolean.TRUE);
+		} catch(IOException e) {
+			Log.error("websocket.listen", e);
+			webListener = null;
 		}
 	}
 	
-}
-
-/** The ClientHandler class, which is private to Server.java is the
- *  backbone of our server. It implements the Runnable interface allowing
- *  it to be used to create a new Thread which calls run() in a new thread.
- *  The constructor of the class expects a client connection in the form of
- *  a live socket passed to it from the server. It is then responsible for
- *  communicating with the client over that socket on behalf of the server.
- *  
- * @author Cory Gross
- * @version October 25, 2012
- */
-class ClientHandler implements Runnable {
-	private Session client;
-	
-	/** List containing all active client sessions, each Session instance
-	 *  provides an interface to each client. This list is shared among
-	 *  all ClientHandler threads, so updates to the list must be synchronized. */
-	private ArrayList<Session> clientList;
+	/** Admits a newly accepted connection and hands it to a shard, or
+	 *  turns it away if it would exceed a limit */
+	private void accept(SocketChannel client, boolean webSocket) throws IOException {
 	
-	/** Reference to the database manager provided by the server. A single instance
-	 *  created by the server is shared among all ClientHandler instances. */
-	private DBManager db;
+		/** Turn the connection away before allocating anything for it
+		 *  if it would exceed a connection cap or its address's rate */
+		InetAddress address = client.socket().getInetAddress();
+		boolean admitted = admission.admit(address);
+		recordAccept(address, webSocket, admitted);
+		if (!admitted) {
+			reject(client);
+			return;
+		}
+		
+		/** Hand the connection to a shard, so that we can continue
+		 *  listening for connections in the main thread. */
+		client.configureBlocking(false);
+		client.socket().setTcpNoDelay(true);
+		serve(new SocketTransport(client), webSocket);
+	}
 	
 	/**
-	 * Creates a ClientHandler instance to manage each client session and to communicate
-	 * with said client on behalf of the server.
+	 * Connects a simulated client, admitting it just as an accepted socket
+	 * would be. Only for a simulation, from the thread driving it.
 	 * 
-	 * @param socket Live socket passed in by the server to establish a new client session.
-	 * @param cliList Reference to the list of active client sessions provided by the server.
-	 * @param database Reference to the database manager provided by the server.
+	 * @param transport The client's end of the connection, see MemoryTransport.
+	 * @param webSocket True to treat the client as a browser's WebSocket.
+	 * @return The client's session, or null if the client was turned away
+	 *         and its transport closed.
 	 */
-	ClientHandler(Socket socket, ArrayList<Session> cliList, DBManager database) {
-		client = new Session(socket);
-		this.clientList = cliList;
-		System.out.println("Log: Client connected, new thread created.");
-		db = database;
+	Session connect(Transport transport, boolean webSocket) {
+		boolean admitted = admission.admit(transport.getAddress());
+		recordAccept(transport.getAddress(), webSocket, admitted);
+		if (!admitted) {
+			try {
+				transport.close();
+			} catch (IOException ignore) {
+			}
+			return null;
+		}
+		return serve(transport, webSocket);
+	}
+	
+	/** Records a connection taken off a listener, if a flight recording
+	 *  wants it, see ServerEvents */
+	private static void recordAccept(InetAddress address, boolean webSocket, boolean admitted) {
+		ServerEvents.ConnectionAccepted event = new ServerEvents.ConnectionAccepted();
+		if (!event.shouldCommit()) return;
+		event.address = address.getHostAddress();
+		event.webSocket = webSocket;
+		event.admitted = admitted;
+		event.commit();
+	}
+	
+	/** Creates the session for an admitted connection and hands it to the
+	 *  next shard in turn, which opens it on its own thread */
+	private Session serve(Transport transport, boolean webSocket) {
+		DeliveryShard shard = shards[nextShard];
+		nextShard = (nextShard + 1) % shards.length;
+		Session session = new Session(transport, shard, webSocket);
+		new ClientHandler(session, this);
+		shard.register(session);
+		return session;
 	}
 	
 	/**
-	 * ClientHandler implements the Runnable interface, this is the main method
-	 * ran in it's own thread. ClientHandler is a monitor, run() can call several
-	 * synchronized methods which can only be entered by one ClientHandler thread
-	 * at a given time.
+	 * Readies a server on a SimulatedClock to take simulated clients, in
+	 * place of run(). No threads are started and no ports opened, the
+	 * simulation turns the server with step().
+	 * 
+	 * @param db The database logins are checked against, typically one
+	 *        kept in memory for the simulation.
 	 */
-	public void run() {
-		System.out.println("Log: Got input/output streams for connected client.");
-		
-		/** Get the first message from the client, attempt communication */
-		String clientMsg = null;
-		boolean accepted = false;
-		
-		/** Allow client to create an account, login, or quit */
-		do {
-			clientMsg = client.read();
-			if (clientMsg.equals("QUIT")) {
-				System.out.println("Log: Client disconnected without signing in.");
-				client.disconnect();
-				return;
-			}
-			else if (clientMsg.startsWith("NEWUSER: ")) {
-				createUser(clientMsg);
-			}
-			else if (clientMsg.startsWith("LOGIN: ")) {
-				accepted = authenticate(clientMsg);
-			}
-			else
-			{
-				System.out.println("Log: Unexpected client message -> " + clientMsg);
-				client.disconnect();
-				return;
-			}
-		} while(!accepted);
-		
-		/** Run main chat loop. Will read from the client, and broadcast each read
-		 *  until the client disconnects. */
-		while (true) {
-			String line = client.read();
-			if (line == null) break;
-			else {
-				broadcast(line);
-			}
-		}
-		
-		/** The only way for the client to exit the above loop is to disconnect.
-		 *  Therefore, call the handler's exit routine */
-		exit();
+	void simulate(DBManager db) {
+		if (!clock.isSimulated()) throw new IllegalStateException("Server is not on a simulated clock");
+		this.db = db;
+		ready = true;
+		Log.info("server.ready", "Simulating " + shards.length + " delivery shards");
 	}
 	
 	/**
-	 * Given a message from the client containing a desired username and a
-	 * password, extract the data and create the user with the database
-	 * if it does not exist there already.
-	 * 
-	 * @param clientMsg Message from client requesting a new account.
+	 * Does the work the server's threads would have done since the last
+	 * step: expires due timers, sequences published broadcasts and gives
+	 * each shard one turn. Work queued during the step, such as a chat line
+	 * a shard has just read, is picked up by the next one. Only for a
+	 * simulation, always from the same thread.
 	 */
-	private synchronized void createUser(String clientMsg) {
-		
-		/** Extract the username and password from the client message */
-		clientMsg = clientMsg.split(" ")[1];
-		String username = clientMsg.split(",")[0];
-		String password = clientMsg.split(",")[1];
-		
-		/** Attempt to create the account in the database, send
-		 *  appropriate message if the username is taken.
-		 */
+	void step() {
+		wheel.step();
+		ingest.step();
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].step();
+		}
+	}
+	
+	/** Closes a rejected connection with a reset rather than the normal
+	 *  close handshake, so it does not linger in TIME_WAIT on the server. */
+	private void reject(SocketChannel client) {
 		try {
-			if (db.userExists(username)) {
-				client.write("TAKEN");
-			}
-			else {
-				db.createUser(username, password);			
-				client.write("USERCREATED");
-			}
-		} catch (Exception e) {
-			System.err.println(e);
-			e.printStackTrace();
+			client.socket().setSoLinger(true, 0);
+			client.close();
+		} catch (IOException ignore) {
 		}
 	}
 	
 	/**
-	 * Attempts to log the client in given a message from the client containing
-	 * login data
+	 * Drains the server so that it can be stopped without losing messages.
+	 * The listener is closed so no new clients arrive, every connected client
+	 * is sent SERVER_DRAIN telling it to reconnect to another server, a line no
+	 * client can broadcast as chat, see CommandParser.RESERVED, and each
+	 * connection's output is flushed and half-closed. The server then waits for
+	 * the clients to hang up, up to the given deadline, after which any
+	 * stragglers are cut off. Finally the database connection is closed.
+	 * Calling drain() again once it has finished does nothing.
 	 * 
-	 * @param client Message sent from client containing login data.
-	 * @return Success (true) or failure (false) of authentication.
+	 * @param timeoutMillis How long to wait for clients to disconnect.
 	 */
-	private synchronized boolean authenticate(String clientMsg) {
-		boolean accepted = false;
-		
-		/** Extract the username and password from the client message */
-		clientMsg = clientMsg.split(" ")[1];
-		String username = clientMsg.split(",")[0];
-		String password = clientMsg.split(",")[1];
+	public synchronized void drain(long timeoutMillis) {
+		if (drained) return;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		Log.info("server.drain", "Draining server, " + openSessions.size() + " open connections");
 		
-		/** Attempt to authenticate with the database, send appropriate reply */
+		/** Stop accepting, then wake the accept loop so that it sees it */
+		running = false;
+		ready = false;
 		try {
-			if (db.authenticate(username, password)) {
-				accepted = true;
-				
-	            client.setUsername(username);
-	            client.write("ACCEPTED");
-	            clientList.add(client);
-
-	    		updateClientUserList();
-	    		
-	            System.out.println("Log: Client logged in with username -> " + client.getUsername());
-	            broadcast("ChatServer: User " + client.getUsername() + " has joined the chat.");
+			if (listener != null) listener.close();
+			if (webListener != null) webListener.close();
+		} catch (IOException ignore) {
+		}
+		acceptSelector.wakeup();
+		
+		/** Tell every client to go elsewhere and push out whatever is
+		 *  still queued for it */
+		for (Session session : openSessions) {
+			session.write("SERVER_DRAIN");
+			session.shutdownOutput();
+		}
+		
+		/** Give clients until the deadline to disconnect on their own */
+		synchronized (openSessions) {
+			long remaining;
+			while (!openSessions.isEmpty()
+					&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					openSessions.wait(remaining);
+				} catch (InterruptedException e) {
+					break;
+				}
 			}
-			else client.write("DENIED");
-			
-		} catch (Exception e) {
-			System.err.println(e);
-			e.printStackTrace();
+		}
+		if (attachments != null) attachments.stop();
+		ingest.stop();
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].stop();
 		}
 		
-		/** Return success or failure */
-		return accepted;
+		wheel.stop();
+		dbExecutor.shutdown();
+		inboxExecutor.shutdown();
+		if (search != null) search.stop();
+		try {
+			dbExecutor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+			inboxExecutor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+			if (search != null) search.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0));
+		} catch (InterruptedException ignore) {
+		}
+		if (db != null) db.close();
+		drained = true;
+		Log.info("server.drain", "Server drained");
+		Log.flush(timeoutMillis);
+	}
+	
+	/** Registers a session once its shard starts serving it */
+	void sessionOpened(Session session) {
+		openSessions.add(session);
+	}
+	
+	/** Removes a session once it has closed, waking a drain waiting for
+	 *  the last client to leave */
+	void sessionClosed(Session session) {
+		synchronized (openSessions) {
+			openSessions.remove(session);
+			openSessions.notifyAll();
+		}
 	}
 	
+	/** Writes a message to every logged-in client. The message goes into
+	 *  the ingest ring, so that every client receives all broadcasts in the
+	 *  same order, whichever threads they came from. Safe to call from any
+	 *  thread, it does not lock.
+	 * 
+	 * @param msg Message to be broadcast.
+	 */
+	void broadcast(String msg) {
+		ingest.publish(msg, null);
+	}
 	
-	/** Exit routine broadcasts the disconnected user event to all clients
-	 *  on behalf of the server. disconnects the client socket, and removes
-	 *  the client from the server's list of active client sessions.
+	/** Broadcasts a chat line the sender asked to have traced.
+	 * 
+	 * @param msg Message to be broadcast.
+	 * @param trace The message's trace, or null if it is not traced.
 	 */
-	private synchronized void exit() {
-		String exitMsg = "ChatServer: User " + client.getUsername();
-		exitMsg += " has left the chat.";
-		
-		/** Broadcast the exit message to each client, and log it */
-		broadcast(exitMsg);
-
-		/** Disconnect the client and remove from the clientList */
-		client.disconnect();
-		clientList.remove(client);
-		
-		/** Update each of the client's user lists */
-		updateClientUserList();
-		
-		System.out.println("Log: Client socket closed, removed from client list");
+	void broadcast(String msg, Trace trace) {
+		ingest.publish(msg, trace);
 	}
-
-
-	/** Synchronized method which writes to all connections in the
-	 *  client list.
-	 *  
+	
+	/** Called on the sequencer thread for each broadcast in order. The
+	 *  message is kept in the history, then encoded once and published to
+	 *  every delivery shard, each shard then delivers it to its own clients
+	 *  in parallel with the others. User lists are not kept in the history,
+	 *  they are not messages and a returning client is sent a new one anyway.
+	 *  Instead they go out in the control lane, ahead of any chat lines still
+	 *  queued, since only the latest one matters.
+	 * 
+	 * @param sequence The broadcast's position in the global order.
 	 * @param msg Message to be broadcast.
+	 * @param trace The message's trace, or null if it is not traced.
 	 */
-	private synchronized void broadcast(String msg) {
-        for (int i = 0; i < clientList.size(); i++) {
-        	clientList.get(i).write(msg);
-        }
-        System.out.println("Log: Message broadcast --> " + msg);
+	private void fanOut(long sequence, String msg, Trace trace) {
+		ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+		event.begin();
+		if (trace != null) trace.sequenced(shards.length);
+		boolean userList = msg.startsWith("USERLIST:");
+		if (!userList) history.add(sequence, msg);
+		DeliveryShard.Broadcast broadcast = new DeliveryShard.Broadcast(sequence, Session.encode(msg), trace, userList);
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].publish(broadcast);
+		}
+		Log.debug("broadcast", null, msg);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.sequence = sequence;
+			event.bytes = broadcast.frame.length;
+			event.userList = userList;
+			for (int i = 0; i < shards.length; i++) {
+				event.recipients += shards[i].getRosterSize();
+			}
+			event.commit();
+		}
 	}
 	
 	/** Compiles a list of usernames from the client list and
 	 *  broadcasts it to all clients in the list. */
-	private synchronized void updateClientUserList() {
-            String userList = "USERLIST:";
-            for (int i = 0; i < clientList.size(); i++) {
-            	userList += " " + clientList.get(i).getUsername();
-            }
-            broadcast(userList);
+	void broadcastUserList() {
+		StringBuilder userList = new StringBuilder("USERLIST:");
+		Iterator<Session> it = clientList.iterator();
+		while (it.hasNext()) {
+			userList.append(' ').append(it.next().getUsername());
+		}
+		broadcast(userList.toString());
+	}
+	
+	/** Adds a session to the logged-in clients */
+	void loggedIn(Session session) {
+		clientList.add(session);
+		online.put(session.getUsername(), session);
+	}
+	
+	/** Removes a session from the logged-in clients */
+	void loggedOut(Session session) {
+		clientList.remove(session);
+		online.remove(session.getUsername(), session);
+	}
+	
+	/** @return True if the user has a logged-in session */
+	boolean isOnline(String username) {
+		return online.containsKey(username);
+	}
+	
+	boolean isDraining() { return !running; }
+	
+	/** @return True once the server has warmed up and is taking clients,
+	 *          false while starting and once draining */
+	boolean isReady() { return ready; }
+	
+	DBManager getDB() { return db; }
+	
+	ExecutorService getDBExecutor() { return dbExecutor; }
+	
+	ExecutorService getInboxExecutor() { return inboxExecutor; }
+	
+	AdmissionControl getAdmission() { return admission; }
+	
+	TimingWheel getWheel() { return wheel; }
+	
+	PresenceCoalescer getPresence() { return presence; }
+	
+	History getHistory() { return history; }
+	
+	LatencyStats getLatency() { return latency; }
+	
+	MessageIdFilter getDedupe() { return dedupe; }
+	
+	FilterChain getFilters() { return filters; }
+	
+	WordFilter getWordFilter() { return wordFilter; }
+	
+	long getEpoch() { return epoch; }
+	
+	Clock getClock() { return clock; }
+	
+	AttachmentStore getAttachments() { return attachments; }
+	
+	SearchIndex getSearch() { return search; }
+	
+	/** Runs every task at once on the thread submitting it, standing in
+	 *  for the database threads in a simulation so that logins and inbox
+	 *  deliveries happen in a reproducible order. */
+	private static final class CallerRunsExecutor extends AbstractExecutorService {
+		private volatile boolean shutdown;
+		
+		public void execute(Runnable task) {
+			if (shutdown) throw new RejectedExecutionException();
+			task.run();
+		}
+		
+		public void shutdown() {
+			shutdown = true;
+		}
+		
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return Collections.<Runnable>emptyList();
+		}
+		
+		public boolean isShutdown() {
+			return shutdown;
+		}
+		
+		public boolean isTerminated() {
+			return shutdown;
+		}
+		
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return shutdown;
+		}
 	}
+	
+	/** Main method to start up the server on a port. The server drains
+	 *  itself when the process is asked to stop, and can be drained by
+	 *  hand from the admin console on standard input. */
+	public static void main(String args[]) {
+	
+		final Server server = new Server(ServerConfig.PORT);
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("ShutdownDrain") {
+			public void run() {
+				server.drain(ServerConfig.DRAIN_TIMEOUT_MS);
+			}
+		});
+		new AdminConsole(server).start();
+		
+		try {
+			server.run(args);
+		} catch (IOException e) {
+			Log.error("server.run", e);
+		}
+	}
+	
 }
@@ -0,0 +1,202 @@
+package chatserver;
+
+/**
+ * ServerConfig.java
+ *
+ * Central place for the server's tunable limits. Every value has a sensible
+ * default and may be overridden on the command line with a system property,
+ * for example:
+ *
+ *     java -Dchatserver.maxConnections=5000 chatserver/Server
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class ServerConfig {
+
+	/** Port the server listens for incoming connections on */
+	static final int PORT = Integer.getInteger("chatserver.port", 1337);
+
+	/** Length of the listen queue handed to the ServerSocket */
+	static final int ACCEPT_BACKLOG = Integer.getInteger("chatserver.acceptBacklog", 128);
+
+	/** Maximum number of open connections, logged-in or not */
+	static final int MAX_CONNECTIONS = Integer.getInteger("chatserver.maxConnections", 10000);
+
+	/** Maximum number of open connections that have not yet logged in */
+	static final int MAX_PRELOGIN_CONNECTIONS = Integer.getInteger("chatserver.maxPreLoginConnections", 1000);
+
+	/** Number of connections a single source address may open in a burst */
+	static final int ACCEPT_BURST_PER_IP = Integer.getInteger("chatserver.acceptBurstPerIp", 10);
+
+	/** Sustained connections per second a single source address may open */
+	static final int ACCEPT_RATE_PER_IP = Integer.getInteger("chatserver.acceptRatePerIp", 2);
+
+	/** Upper bound on the number of source addresses tracked for rate limiting */
+	static final int MAX_TRACKED_ADDRESSES = Integer.getInteger("chatserver.maxTrackedAddresses", 65536);
+
+	/** Milliseconds of silence from a client after which it is sent a PING */
+	static final int HEARTBEAT_INTERVAL_MS = Integer.getInteger("chatserver.heartbeatIntervalMs", 30000);
+
+	/** Milliseconds of silence from a client after which it is disconnected */
+	static final int IDLE_TIMEOUT_MS = Integer.getInteger("chatserver.idleTimeoutMs", 90000);
+
+	/** Milliseconds a browser may take to complete its WebSocket handshake */
+	static final int HANDSHAKE_TIMEOUT_MS = Integer.getInteger("chatserver.handshakeTimeoutMs", 10000);
+
+	/** Milliseconds a client may stay connected without logging in, counted
+	 *  from the end of the handshake for a WebSocket */
+	static final int LOGIN_TIMEOUT_MS = Integer.getInteger("chatserver.loginTimeoutMs", 120000);
+
+	/** Resolution of the timing wheel driving heartbeats and timeouts */
+	static final int WHEEL_TICK_MS = Integer.getInteger("chatserver.wheelTickMs", 100);
+
+	/** Number of buckets in the timing wheel */
+	static final int WHEEL_SIZE = Integer.getInteger("chatserver.wheelSize", 512);
+
+	/** Milliseconds a drain waits for clients to disconnect before cutting them off */
+	static final int DRAIN_TIMEOUT_MS = Integer.getInteger("chatserver.drainTimeoutMs", 10000);
+
+	/** Longest frame, in bytes, a client may send */
+	static final int MAX_FRAME_BYTES = Integer.getInteger("chatserver.maxFrameBytes", 8192);
+
+	/** Milliseconds over which joins and leaves are batched into one announcement */
+	static final int PRESENCE_WINDOW_MS = Integer.getInteger("chatserver.presenceWindowMs", 250);
+
+	/** Number of delivery shards, each a thread serving its share of the clients */
+	static final int DELIVERY_THREADS = Integer.getInteger("chatserver.deliveryThreads",
+			Runtime.getRuntime().availableProcessors());
+
+	/** Size of each shard's buffer for gathering a client's output into one write */
+	static final int WRITE_BUFFER_BYTES = Integer.getInteger("chatserver.writeBufferBytes", 65536);
+
+	/** Idle read buffers each shard keeps for reuse, sessions borrow one
+	 *  only while they have input waiting to be decoded */
+	static final int POOLED_READ_BUFFERS = Integer.getInteger("chatserver.pooledReadBuffers", 256);
+
+	/** Most output, in bytes, that may be queued for a client before it is
+	 *  disconnected for not keeping up */
+	static final int MAX_OUTBOUND_BYTES = Integer.getInteger("chatserver.maxOutboundBytes", 1048576);
+
+	/** Number of threads running database work such as logins */
+	static final int DB_THREADS = Integer.getInteger("chatserver.dbThreads", 4);
+
+	/** Number of broadcasts that may wait to be put in order before the
+	 *  threads sending them have to back off */
+	static final int INGEST_RING_SIZE = Integer.getInteger("chatserver.ingestRingSize", 65536);
+
+	/** Port clients connect to on the side to upload and download attachments */
+	static final int ATTACHMENT_PORT = Integer.getInteger("chatserver.attachmentPort", 1338);
+
+	/** Directory attachments are stored in */
+	static final String ATTACHMENT_DIR = System.getProperty("chatserver.attachmentDir", "attachments");
+
+	/** Number of attachment transfers served at once */
+	static final int ATTACHMENT_THREADS = Integer.getInteger("chatserver.attachmentThreads", 4);
+
+	/** Side connections that may wait for an attachment thread before
+	 *  further ones are turned away */
+	static final int ATTACHMENT_QUEUE = Integer.getInteger("chatserver.attachmentQueue", 16);
+
+	/** Time a side connection may go without moving a byte before it is closed */
+	static final int ATTACHMENT_IDLE_MS = Integer.getInteger("chatserver.attachmentIdleMs", 30000);
+
+	/** Largest attachment accepted, in bytes */
+	static final long MAX_ATTACHMENT_BYTES = Long.getLong("chatserver.maxAttachmentBytes", 16777216);
+
+	/** Time a client has to start an upload once it has been given a slot */
+	static final int ATTACHMENT_TOKEN_MS = Integer.getInteger("chatserver.attachmentTokenMs", 60000);
+
+	/** Time a stored attachment is kept before it is deleted */
+	static final long ATTACHMENT_RETENTION_MS = Long.getLong("chatserver.attachmentRetentionMs", 2592000000L);
+
+	/** Most bytes of attachments kept on disk, the oldest are deleted first
+	 *  once there are more */
+	static final long ATTACHMENT_MAX_TOTAL_BYTES = Long.getLong("chatserver.attachmentMaxTotalBytes", 1073741824L);
+
+	/** Time between checks of the attachment directory for files to delete */
+	static final int ATTACHMENT_SWEEP_MS = Integer.getInteger("chatserver.attachmentSweepMs", 3600000);
+
+	/** Upload slots a user may hold at once without having used them */
+	static final int MAX_PENDING_UPLOADS = Integer.getInteger("chatserver.maxPendingUploads", 4);
+
+	/** Chat lines a client may send in a burst before it is throttled */
+	static final int CHAT_BURST = Integer.getInteger("chatserver.chatBurst", 20);
+
+	/** Chat lines per second a client may keep sending once its burst is spent */
+	static final int CHAT_RATE = Integer.getInteger("chatserver.chatRate", 5);
+
+	/** Port browsers connect to with a WebSocket */
+	static final int WEBSOCKET_PORT = Integer.getInteger("chatserver.webSocketPort", 1339);
+
+	/** Messages kept in an offline user's inbox, older ones are dropped first */
+	static final int INBOX_MAX_MESSAGES = Integer.getInteger("chatserver.inboxMaxMessages", 500);
+
+	/** Time a message waits in an offline user's inbox before it is dropped,
+	 *  one week by default */
+	static final int INBOX_MAX_AGE_MS = Integer.getInteger("chatserver.inboxMaxAgeMs", 604800000);
+
+	/** Offline users a single chat line is stored for, further mentions in
+	 *  the same line are only broadcast */
+	static final int INBOX_MAX_MENTIONS = Integer.getInteger("chatserver.inboxMaxMentions", 5);
+
+	/** Inbox updates that may wait for the database before further ones
+	 *  are dropped */
+	static final int INBOX_QUEUE = Integer.getInteger("chatserver.inboxQueue", 10000);
+
+	/** Number of pooled database connections, enough for the database
+	 *  threads and the inbox thread */
+	static final int DB_POOL_SIZE = Integer.getInteger("chatserver.dbPoolSize", DB_THREADS + 1);
+
+	/** Dummy passwords hashed at startup so the hashing code is compiled
+	 *  before the first login */
+	static final int WARMUP_HASHES = Integer.getInteger("chatserver.warmupHashes", 200);
+
+	/** JDBC url of the database. Server side prepared statements are cached
+	 *  on each connection, so the warm-up prepares them once for every later
+	 *  login, and batched inserts are sent as multi-row statements */
+	static final String DB_URL = System.getProperty("chatserver.dbUrl",
+			"jdbc:mysql://localhost:3306/chatdb?cachePrepStmts=true&useServerPrepStmts=true&rewriteBatchedStatements=true");
+
+	/** Recent broadcasts kept for clients catching up on what they missed */
+	static final int HISTORY_SIZE = Integer.getInteger("chatserver.historySize", 1000);
+
+	/** Chat line ids remembered to recognise lines sent twice */
+	static final int DEDUPE_CAPACITY = Integer.getInteger("chatserver.dedupeCapacity", 262144);
+
+	/** Time a chat line id is remembered for */
+	static final int DEDUPE_WINDOW_MS = Integer.getInteger("chatserver.dedupeWindowMs", 600000);
+
+	/** File listing the words and phrases masked or blocked in chat lines */
+	static final String FILTER_WORDS = System.getProperty("chatserver.filterWords", "filter.txt");
+
+	/** Milliseconds between checks of the word list for changes */
+	static final int FILTER_CHECK_MS = Integer.getInteger("chatserver.filterCheckMs", 5000);
+
+	/** Comma separated classes of further MessageFilters, applied after
+	 *  the word list in the order given */
+	static final String FILTERS = System.getProperty("chatserver.filters", "");
+
+	/** Directory the archive of chat lines searched with SEARCH is kept in */
+	static final String SEARCH_DIR = System.getProperty("chatserver.searchDir", "search");
+
+	/** Matching lines sent for each page of search results */
+	static final int SEARCH_PAGE_SIZE = Integer.getInteger("chatserver.searchPageSize", 10);
+
+	/** Most pages of results a search can be paged through */
+	static final int SEARCH_MAX_PAGES = Integer.getInteger("chatserver.searchMaxPages", 50);
+
+	/** Most logical streams a client may have open at once on its connection */
+	static final int MAX_STREAMS = Integer.getInteger("chatserver.maxStreams", 8);
+
+	/** Bytes either end of a stream may send ahead of the other's credit */
+	static final int STREAM_WINDOW_BYTES = Integer.getInteger("chatserver.streamWindowBytes", 65536);
+
+	/** Bytes of a download read and sent in each STREAM_DATA frame */
+	static final int STREAM_CHUNK_BYTES = Integer.getInteger("chatserver.streamChunkBytes", 4096);
+
+	/** Threads reading and writing the files of streamed attachments */
+	static final int STREAM_IO_THREADS = Integer.getInteger("chatserver.streamIoThreads", 2);
+
+	private ServerConfig() {}
+}
@@ -0,0 +1,157 @@
+package chatserver;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * ServerEvents.java
+ *
+ * The server's JDK Flight Recorder events, so that a recording of a running
+ * server shows connections, logins, broadcasts and database calls on the same
+ * timeline as the JVM's own events, such as garbage collections, lock waits
+ * and safepoints. Start a recording with -XX:StartFlightRecording, or from
+ * jcmd on a server that is already running.
+ *
+ * While no recording has an event enabled its commit() does nothing, and
+ * shouldCommit() is false, so callers only fill in fields that cost anything
+ * to compute, such as an address as text, once shouldCommit() has said the
+ * event is wanted. Events are committed without a stack trace, the thread and
+ * the event's fields say where it came from.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class ServerEvents {
+	private static final String CATEGORY = "JavaChat";
+
+	private ServerEvents() {}
+
+	/** A connection taken off the listener, whether or not it was admitted */
+	@Name("chatserver.ConnectionAccepted")
+	@Label("Connection Accepted")
+	@Category({CATEGORY, "Connections"})
+	@StackTrace(false)
+	static final class ConnectionAccepted extends Event {
+		@Label("Address")
+		String address;
+
+		@Label("WebSocket")
+		boolean webSocket;
+
+		@Label("Admitted")
+		@Description("False if admission control turned the connection away")
+		boolean admitted;
+	}
+
+	/** A session that has closed, however the client left */
+	@Name("chatserver.ConnectionClosed")
+	@Label("Connection Closed")
+	@Category({CATEGORY, "Connections"})
+	@StackTrace(false)
+	static final class ConnectionClosed extends Event {
+		@Label("Address")
+		String address;
+
+		@Label("Username")
+		@Description("Null if the client never logged in")
+		String username;
+
+		@Label("Connected For")
+		@Timespan(Timespan.MILLISECONDS)
+		long connectedFor;
+	}
+
+	/** A LOGIN, from the frame being read to the database's answer */
+	@Name("chatserver.Login")
+	@Label("Login")
+	@Category({CATEGORY, "Sessions"})
+	@Description("Includes the time spent waiting for a database thread")
+	@StackTrace(false)
+	static final class Login extends Event {
+		@Label("Username")
+		String username;
+
+		@Label("Accepted")
+		boolean accepted;
+	}
+
+	/** A NEWUSER, from the frame being read to the account being created */
+	@Name("chatserver.CreateUser")
+	@Label("Create User")
+	@Category({CATEGORY, "Sessions"})
+	@Description("Includes the time spent waiting for a database thread")
+	@StackTrace(false)
+	static final class CreateUser extends Event {
+		@Label("Username")
+		String username;
+
+		@Label("Created")
+		@Description("False if the username was taken or the database failed")
+		boolean created;
+	}
+
+	/** A broadcast being sequenced and published to the delivery shards */
+	@Name("chatserver.Broadcast")
+	@Label("Broadcast")
+	@Category({CATEGORY, "Broadcasts"})
+	@StackTrace(false)
+	static final class Broadcast extends Event {
+		@Label("Sequence")
+		long sequence;
+
+		@Label("Size")
+		@DataAmount
+		int bytes;
+
+		@Label("Recipients")
+		@Description("Logged-in sessions on all shards as the broadcast was published")
+		int recipients;
+
+		@Label("User List")
+		boolean userList;
+	}
+
+	/** A delivery shard queueing a batch of broadcasts to its sessions */
+	@Name("chatserver.ShardDelivery")
+	@Label("Shard Delivery")
+	@Category({CATEGORY, "Broadcasts"})
+	@StackTrace(false)
+	static final class ShardDelivery extends Event {
+		@Label("Shard")
+		int shard;
+
+		@Label("Broadcasts")
+		int broadcasts;
+
+		@Label("Recipients")
+		int recipients;
+
+		@Label("Last Sequence")
+		long lastSequence;
+	}
+
+	/** One call into the database, from borrowing a connection to handing
+	 *  it back */
+	@Name("chatserver.DatabaseCall")
+	@Label("Database Call")
+	@Category({CATEGORY, "Database"})
+	@StackTrace(false)
+	static final class DatabaseCall extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Connection Wait")
+		@Description("Time spent waiting for a free pooled connection")
+		@Timespan(Timespan.NANOSECONDS)
+		long connectionWait;
+
+		@Label("Succeeded")
+		boolean succeeded;
+	}
+}
@@ -1,75 +1,500 @@
 package chatserver;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+/**
+ * Session.java
+ *
+ * A single client connection. The session's transport is non-blocking and is
+ * served by the DeliveryShard it was assigned to when it connected: the shard
+ * thread reads frames from it and hands them to the session's ClientHandler,
+ * and writes the session's queued output whenever the socket can take more.
+ * The transport is normally a socket, or in a simulation an in-memory pipe to
+ * a simulated client, see MemoryTransport.
+ *
+ * A session is either a plain TCP connection speaking the line protocol, or a
+ * browser's WebSocket, in which case a WebSocketChannel unwraps its input
+ * into lines and its output is wrapped in WebSocket frames. Either way the
+ * session is served by the same shard and ClientHandler code. A WebSocket's
+ * output is held until its handshake has been answered, so nothing framed
+ * can reach the browser ahead of the 101 response.
+ *
+ * Output is queued in lanes. Chat lines and everything else whose order
+ * matters to the client go in the bulk lane, while short control frames,
+ * such as login replies, heartbeats and user lists, go in the control lane.
+ * Whenever the socket can take more, queued control frames are written
+ * first, so a login reply never waits behind a burst of chat. The data of the
+ * client's logical streams, see StreamMux, goes in a third lane written only
+ * once the other two are empty, so a file transfer never holds up the chat.
+ * The lanes only switch between frames, a frame that is partly written is
+ * always finished first.
+ *
+ * write() and disconnect() may be called from any thread, everything else
+ * runs on the shard thread only.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
 public class Session {
-	private String username;
-	private Socket socket;
-	private PrintWriter outputWriter;
-	private BufferedReader inputBuffer;
-	
-	/** Constructor establishes a Connection for a given connected socket.
-	 * 
-	 * @param socket A connected socket for communication.
+
+	/** Source of the unique ids identifying sessions in the log */
+	private static final AtomicLong nextId = new AtomicLong();
+
+	/** Frames each output lane has room for before it first grows */
+	private static final int LANE_CAPACITY = 4;
+
+	private final long id = nextId.incrementAndGet();
+	private volatile String username;
+	private final Transport transport;
+	private final DeliveryShard shard;
+
+	/** Set once the shard has registered the transport */
+	private boolean registered;
+	private ClientHandler handler;
+
+	/** Splits the input into frames in a buffer borrowed from the shard */
+	private final FrameDecoder decoder;
+
+	/** Unwraps a browser's WebSocket frames ahead of the decoder, null for
+	 *  plain TCP clients */
+	private final WebSocketChannel webSocket;
+
+	/** Encoded frames waiting to be written, control frames before bulk.
+	 *  They start small, most sessions rarely have more than a few frames
+	 *  queued. */
+	private final ArrayDeque<byte[]> control = new ArrayDeque<byte[]>(LANE_CAPACITY);
+	private final ArrayDeque<byte[]> bulk = new ArrayDeque<byte[]>(LANE_CAPACITY);
+
+	/** Stream data waiting to be written after both other lanes, null until
+	 *  the client first opens a stream, and the bytes queued in it */
+	private ArrayDeque<byte[]> streams;
+	private int streamBytes;
+
+	/** Set while the handler waits for the stream lane to drain */
+	private boolean streamWaiting;
+
+	/** The frame being written, taken off its lane once the socket accepted
+	 *  only part of it, and how much of it has been written */
+	private byte[] partial;
+	private int partialOffset;
+
+	/** Bytes queued in all lanes and the rest of the partial frame */
+	private int outboundBytes;
+
+	/** Set when reading is suspended, frames stay buffered until resumed */
+	private boolean readPaused;
+
+	/** Set when the output should be half-closed once everything queued has
+	 *  been written */
+	private boolean shutdownAfterFlush;
+
+	/** Set once the session is closing, no further output is queued */
+	private boolean closed;
+
+	/** Set once the client has asked for history, from then on it receives
+	 *  broadcasts prefixed with their sequence numbers. Shard thread only. */
+	private boolean sequenced;
+
+	/** Position in the shard's roster, or -1 if not logged in */
+	private int rosterIndex = -1;
+
+	/** Time the session was opened, in milliseconds */
+	private final long connectedAt;
+
+	/** Time the session started speaking the chat protocol, once a WebSocket
+	 *  has been upgraded, -1 before. Read by the heartbeat timer. */
+	private volatile long startedAt;
+
+	/** Time of the last frame read from the client, in milliseconds. Written by
+	 *  the shard thread and read by the heartbeat timer. */
+	private volatile long lastRead;
+
+	/** Constructor establishes a Connection for a given connected transport.
+	 *
+	 * @param transport A connected, non-blocking transport for communication.
+	 * @param shard The delivery shard that will serve the session.
+	 * @param webSocket True if the client connected to the WebSocket port.
 	 */
-	Session(Socket socket) {
-            this.socket = socket;
-            try {
-                inputBuffer = new BufferedReader(new InputStreamReader(this.socket.getInputStream())); 
-                outputWriter = new PrintWriter(this.socket.getOutputStream(), true);
-            } catch(IOException e) {
-                System.err.println(e);
-                e.printStackTrace();
-            }
-	}
-	
-	/** Write to the connection socket */
+	Session(Transport transport, DeliveryShard shard, boolean webSocket) {
+		this.transport = transport;
+		this.shard = shard;
+		connectedAt = shard.getClock().millis();
+		lastRead = connectedAt;
+		startedAt = webSocket ? -1 : connectedAt;
+		decoder = new FrameDecoder(ServerConfig.MAX_FRAME_BYTES, shard.getReadBuffers());
+		this.webSocket = webSocket ? new WebSocketChannel(this, transport, shard.getReadBuffers()) : null;
+	}
+
+	/** Encodes a message as a UTF-8, newline terminated frame. A broadcast is
+	 *  encoded once and the same frame is queued to every recipient. */
+	static byte[] encode(String msg) {
+		byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+		byte[] frame = Arrays.copyOf(bytes, bytes.length + 1);
+		frame[bytes.length] = '\n';
+		return frame;
+	}
+
+	/** Write a message to the client in the bulk lane, after everything
+	 *  queued before it. Safe to call from any thread. */
 	public void write(String msg) {
-            outputWriter.println(msg);
-            outputWriter.flush();
-	}
-	
-	/** Attempt to read from the connection socket. */
-	public String read() {
-            String line = null;
-            try {
-                line = inputBuffer.readLine();
-            }
-            catch(SocketException e) {
-            	System.out.println("Log: Client disconnected, session ended");
-            }
-            catch(IOException e) {
-                System.err.println(e);
-                e.printStackTrace();
-            }
-            return line;
-	}
-	
-	/** Attempt to close the connection, including input/output streams. */
-	public boolean disconnect() {
-            try {
-                socket.close();
-                inputBuffer.close();
-            } catch(IOException e) {
-                System.err.println(e);
-                e.printStackTrace();
-                return false;
-            }
-            outputWriter.close();
-            return true;
-	}
-	
+		send(wrap(encode(msg)), false);
+	}
+
+	/** Write a short control message to the client, ahead of any queued
+	 *  chat. Only for messages whose order relative to the chat does not
+	 *  matter. Safe to call from any thread. */
+	public void writeControl(String msg) {
+		send(wrap(encode(msg)), true);
+	}
+
+	private byte[] wrap(byte[] frame) {
+		return webSocket != null ? WebSocketChannel.wrap(frame) : frame;
+	}
+
+	/** Queue an encoded frame for the client in the bulk lane and write as
+	 *  much of it as the socket will take. Safe to call from any thread. */
+	void send(byte[] frame) {
+		send(frame, false);
+	}
+
+	/** Queue an encoded frame for the client in the given lane and write as
+	 *  much of it as the socket will take. Safe to call from any thread. */
+	void send(final byte[] frame, final boolean urgent) {
+		if (shard.inShard()) {
+			enqueue(frame, urgent);
+			flush();
+		}
+		else {
+			shard.execute(new Runnable() {
+				public void run() {
+					enqueue(frame, urgent);
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes the answer to a WebSocket's HTTP request ahead of anything
+	 * queued, and lets output start. Shard thread only.
+	 *
+	 * @param response The HTTP response.
+	 * @param upgraded True for the 101 response, after which the frames
+	 *        queued meanwhile follow it, false for a refusal, which drops them.
+	 */
+	void answerHandshake(byte[] response, boolean upgraded) {
+		if (closed) return;
+		if (!upgraded) {
+			control.clear();
+			bulk.clear();
+			outboundBytes = 0;
+		}
+		control.addFirst(response);
+		outboundBytes += response.length;
+		if (upgraded) startedAt = shard.getClock().millis();
+		else startedAt = connectedAt;
+		flush();
+	}
+
+	/** Write a frame of a logical stream to the client in the stream lane,
+	 *  after all queued chat and control frames. Shard thread only. */
+	void writeStream(String msg) {
+		byte[] frame = wrap(encode(msg));
+		if (closed) return;
+		if (outboundBytes + frame.length > ServerConfig.MAX_OUTBOUND_BYTES) {
+			Log.warn("session.slow", this, "Output queue full, disconnecting slow client");
+			closeLater();
+			return;
+		}
+		if (streams == null) streams = new ArrayDeque<byte[]>(LANE_CAPACITY);
+		streams.add(frame);
+		streamBytes += frame.length;
+		outboundBytes += frame.length;
+		flush();
+	}
+
+	/** Queue an encoded frame without writing it yet, shard thread only. A
+	 *  client that lets too much output pile up is disconnected rather than
+	 *  being allowed to hold on to an unbounded amount of memory.
+	 *
+	 * @param frame The encoded frame.
+	 * @param urgent True for the control lane, false for the bulk lane.
+	 */
+	void enqueue(byte[] frame, boolean urgent) {
+		if (closed) return;
+		if (outboundBytes + frame.length > ServerConfig.MAX_OUTBOUND_BYTES) {
+			Log.warn("session.slow", this, "Output queue full, disconnecting slow client");
+			closeLater();
+			return;
+		}
+		(urgent ? control : bulk).add(frame);
+		outboundBytes += frame.length;
+	}
+
+	/** Write queued output until the queue is empty or the socket is full,
+	 *  gathering several frames into each write: the rest of a partly written
+	 *  frame, then control frames, then bulk, then stream data. Once the
+	 *  stream lane has drained the handler is told, if it was waiting for
+	 *  that. Shard thread only. */
+	void flush() {
+		if (closed || !registered || startedAt < 0) return;
+		ByteBuffer buffer = shard.getWriteBuffer();
+		try {
+			while (outboundBytes > 0) {
+				buffer.clear();
+				if (partial != null) {
+					buffer.put(partial, partialOffset, Math.min(partial.length - partialOffset, buffer.capacity()));
+				}
+				gather(control, buffer);
+				gather(bulk, buffer);
+				if (streams != null) gather(streams, buffer);
+				buffer.flip();
+				int written = transport.write(buffer);
+				consume(written);
+				if (buffer.hasRemaining()) break;
+			}
+		} catch (IOException e) {
+			Log.info("session.end", this, "Client disconnected, session ended");
+			closeLater();
+			return;
+		}
+
+		if (outboundBytes == 0) {
+			setInterest(SelectionKey.OP_WRITE, false);
+			if (shutdownAfterFlush) {
+				try {
+					transport.shutdownOutput();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+		else {
+			setInterest(SelectionKey.OP_WRITE, true);
+		}
+		if (streamWaiting && streamBytes == 0) {
+			streamWaiting = false;
+			handler.onStreamsDrained();
+		}
+	}
+
+	/** Copy as many of a lane's frames into the buffer as fit */
+	private static void gather(ArrayDeque<byte[]> lane, ByteBuffer buffer) {
+		Iterator<byte[]> it = lane.iterator();
+		while (it.hasNext() && buffer.hasRemaining()) {
+			byte[] frame = it.next();
+			buffer.put(frame, 0, Math.min(frame.length, buffer.remaining()));
+		}
+	}
+
+	/** Drop the given number of written bytes in the order flush() gathered
+	 *  them. A frame written only in part becomes the partial frame. */
+	private void consume(int written) {
+		outboundBytes -= written;
+		if (partial != null) {
+			int left = partial.length - partialOffset;
+			if (written < left) {
+				partialOffset += written;
+				return;
+			}
+			written -= left;
+			partial = null;
+			partialOffset = 0;
+		}
+		while (written > 0) {
+			ArrayDeque<byte[]> lane = !control.isEmpty() ? control : !bulk.isEmpty() ? bulk : streams;
+			byte[] head = lane.poll();
+			if (lane == streams) streamBytes -= head.length;
+			if (written < head.length) {
+				partial = head;
+				partialOffset = written;
+				return;
+			}
+			written -= head.length;
+		}
+	}
+
+	/** Read whatever the client has sent and pass each complete frame to the
+	 *  handler. Frames longer than the configured maximum are dropped, and the
+	 *  client is told so. Shard thread only. */
+	void onReadable() {
+		int rejected = decoder.getRejected();
+		int n = readInput();
+		if (n < 0) return;
+		processFrames();
+
+		/** A WebSocket may hold more input than the decoder took in one
+		 *  go, which would otherwise wait for the client's next packet */
+		while (n > 0 && webSocket != null && webSocket.hasBuffered() && !readPaused && !closed) {
+			n = readInput();
+			if (n < 0) return;
+			processFrames();
+		}
+		if (decoder.getRejected() != rejected) {
+			Log.warn("session.oversized", this, "Rejected frame over " + ServerConfig.MAX_FRAME_BYTES + " bytes");
+			writeControl("INVALID FRAME_TOO_LARGE");
+		}
+	}
+
+	/** Read into the decoder, closing the session at end of stream.
+	 *  Returns the number of bytes read, or -1 if the session has closed. */
+	private int readInput() {
+		int n;
+		try {
+			n = decoder.readFrom(webSocket != null ? webSocket : transport);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			Log.info("session.end", this, "Client disconnected, session ended");
+			close();
+		}
+		return n;
+	}
+
+	/** Hand buffered frames to the handler until none are left, reading is
+	 *  paused or the session closes */
+	private void processFrames() {
+		String frame;
+		while (!readPaused && !closed && (frame = decoder.nextFrame()) != null) {
+			lastRead = shard.getClock().millis();
+			handler.onFrame(frame);
+		}
+	}
+
+	/** Stop reading from the client, for instance while a login is checked
+	 *  against the database. Shard thread only. */
+	void pauseReading() {
+		readPaused = true;
+		setInterest(SelectionKey.OP_READ, false);
+	}
+
+	/** Resume reading from the client, first handing over any frames that
+	 *  arrived while paused. Safe to call from any thread. */
+	void resumeReading() {
+		if (!shard.inShard()) {
+			shard.execute(new Runnable() {
+				public void run() {
+					resumeReading();
+				}
+			});
+			return;
+		}
+		if (closed) return;
+		readPaused = false;
+		setInterest(SelectionKey.OP_READ, true);
+		processFrames();
+		if (webSocket != null && webSocket.hasBuffered()) onReadable();
+	}
+
+	private void setInterest(int op, boolean on) {
+		if (registered) transport.setInterest(op, on);
+	}
+
+	/** Called by the shard once the transport is registered with it. A
+	 *  session with no handler, as in FanOutBenchmark, is only written to. */
+	void opened() {
+		registered = true;
+		if (handler != null) handler.onOpen();
+	}
+
+	/** Close the connection and tell the handler, shard thread only. */
+	void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			transport.close();
+		} catch (IOException ignore) {
+		}
+		control.clear();
+		bulk.clear();
+		streams = null;
+		streamBytes = 0;
+		decoder.release();
+		if (webSocket != null) webSocket.release();
+		partial = null;
+		outboundBytes = 0;
+		if (handler != null) handler.onClose();
+	}
+
+	/** Close the connection on the shard's next turn, used where closing
+	 *  right away would disturb the caller, such as during a broadcast */
+	private void closeLater() {
+		shard.execute(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/** Attempt to close the connection. Safe to call from any thread, the
+	 *  handler runs its normal exit routine once the session has closed. */
+	public void disconnect() {
+		if (shard.inShard()) close();
+		else closeLater();
+	}
+
+	/** Flush anything still queued for the client and then half-close the
+	 *  connection, so the client reads everything sent so far followed by
+	 *  end of stream, while we can still read whatever it sends back. Safe
+	 *  to call from any thread. */
+	public void shutdownOutput() {
+		shard.execute(new Runnable() {
+			public void run() {
+				shutdownAfterFlush = true;
+				flush();
+			}
+		});
+	}
+
 	/** Set the username associated with the given connection */
 	public void setUsername(String username) {
-            this.username = username;
+		this.username = username;
 	}
-	
-	public Socket getSocket() { return socket; }
-	
+
+	void setHandler(ClientHandler handler) { this.handler = handler; }
+
+	/** @return Bytes of stream data queued and not yet written, shard thread only */
+	int getStreamBytes() { return streamBytes; }
+
+	/** Asks for the handler's onStreamsDrained() once the stream lane is
+	 *  empty, shard thread only */
+	void awaitStreamsDrained() { streamWaiting = true; }
+
+	void setRosterIndex(int index) { rosterIndex = index; }
+
+	int getRosterIndex() { return rosterIndex; }
+
+	boolean isClosed() { return closed; }
+
+	boolean isWebSocket() { return webSocket != null; }
+
+	void setSequenced(boolean sequenced) { this.sequenced = sequenced; }
+
+	boolean isSequenced() { return sequenced; }
+
+	DeliveryShard getShard() { return shard; }
+
+	Transport getTransport() { return transport; }
+
+	public long getId() { return id; }
+
+	public InetAddress getAddress() { return transport.getAddress(); }
+
 	public String getUsername() { return username; }
-}
\ No newline at end of file
+
+	public long getConnectedAt() { return connectedAt; }
+
+	/** @return Time the session started speaking the chat protocol, or -1
+	 *          while a WebSocket's handshake is still to be answered */
+	public long getStartedAt() { return startedAt; }
+
+	public long getLastRead() { return lastRead; }
+}
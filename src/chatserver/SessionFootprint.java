@@ -0,0 +1,132 @@
+package chatserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * SessionFootprint.java
+ *
+ * Measures how much heap each connection costs the server, idle and active,
+ * to keep the per-session footprint in check as the server grows. Clients
+ * are logged in over MemoryTransports on a SimulatedClock, as in Simulation,
+ * and the heap is measured after a full garbage collection:
+ *
+ *     idle, once every client has logged in and read everything sent to it,
+ *     which is how most of a large room spends its time,
+ *     active, while a run of broadcasts is queued for clients that have
+ *     stopped reading and the server holds output it cannot yet write.
+ *
+ * The transports are created before the heap is first measured, so what is
+ * counted is the server's Session, ClientHandler and buffers for each client
+ * plus whatever the transport holds on its behalf, which a real socket holds
+ * in the kernel instead. Run it while the server is stopped:
+ *
+ *     java -cp bin chatserver/SessionFootprint [clients]
+ *
+ * The default is 2000 clients. It exits with status 1 if an idle session
+ * costs more than 2 KB.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class SessionFootprint {
+
+	/** Most bytes an idle session should cost */
+	private static final int IDLE_TARGET = 2048;
+
+	/** Broadcasts queued for every client when measuring active sessions */
+	private static final int BROADCASTS = 20;
+
+	/** Receive window of every client, small enough that the broadcasts
+	 *  back up into the server */
+	private static final int WINDOW = 1024;
+
+	/** Clients connecting each millisecond, see Simulation */
+	private static final int CONNECTS_PER_MS = 5;
+
+	private SessionFootprint() {}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		Log.setLevel(Log.Level.WARN);
+
+		SimulatedClock clock = new SimulatedClock(1351123200000L);
+		Server server = new Server(0, clock);
+		server.simulate(new Simulation.MemoryDB());
+		MemoryTransport[] clients = new MemoryTransport[count];
+		for (int i = 0; i < count; i++) {
+			clients[i] = new MemoryTransport(clock, address(i), 1, WINDOW);
+		}
+		step(clock, server, clients, 10, true);
+		long empty = usedHeap();
+
+		for (int i = 0; i < count; i++) {
+			if (server.connect(clients[i], false) != null) clients[i].send("LOGIN: user" + i + ",pw");
+			if (i % CONNECTS_PER_MS == CONNECTS_PER_MS - 1) step(clock, server, clients, 1, true);
+		}
+		settle(clock, server, clients);
+		int open = server.getAdmission().getConnections();
+		if (open != count) {
+			System.out.println("Only " + open + " of " + count + " clients connected");
+			System.exit(1);
+		}
+		long idle = (usedHeap() - empty) / count;
+
+		/** Every client stops reading, then one of them chats */
+		clients[0].send("user0: " + "the quick brown fox jumps over the lazy dog ".substring(0, 40));
+		for (int i = 1; i < BROADCASTS; i++) clients[i].send("user" + i + ": another line of ordinary length");
+		step(clock, server, clients, 1000, false);
+		long active = (usedHeap() - empty) / count;
+
+		System.out.printf("%d clients%n", count);
+		System.out.printf("idle   %6d bytes per session, target under %d%n", idle, IDLE_TARGET);
+		System.out.printf("active %6d bytes per session, with %d broadcasts queued behind a %d byte window%n",
+				active, BROADCASTS, WINDOW);
+		System.exit(idle < IDLE_TARGET ? 0 : 1);
+	}
+
+	/** Runs the simulation until the clients have received everything and
+	 *  nothing is left in flight */
+	private static void settle(SimulatedClock clock, Server server, MemoryTransport[] clients) {
+		int quiet = 0;
+		while (quiet < ServerConfig.PRESENCE_WINDOW_MS * 4) {
+			int received = step(clock, server, clients, 1, true);
+			quiet = received == 0 && clock.getPending() == 0 ? quiet + 1 : 0;
+		}
+	}
+
+	/** @return Lines the clients received, if they were reading */
+	private static int step(SimulatedClock clock, Server server, MemoryTransport[] clients, int millis, boolean read) {
+		int received = 0;
+		for (int t = 0; t < millis; t++) {
+			clock.advance(1);
+			server.step();
+			for (int i = 0; read && i < clients.length; i++) received += clients[i].receive().size();
+		}
+		return received;
+	}
+
+	/** @return Bytes of heap in use once garbage has been collected */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	private static InetAddress address(int client) {
+		try {
+			return InetAddress.getByAddress(new byte[] { 10, (byte) (client >>> 16), (byte) (client >>> 8), (byte) client });
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
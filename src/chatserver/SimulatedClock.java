@@ -0,0 +1,99 @@
+package chatserver;
+
+import java.util.PriorityQueue;
+
+/**
+ * SimulatedClock.java
+ *
+ * A clock whose time only moves when advance() is called, for simulations
+ * that run many clients against a server in a single JVM. Besides telling
+ * the time the clock keeps a queue of events, such as bytes arriving over a
+ * MemoryTransport, and runs each one as time reaches it. Events due at the
+ * same time run in the order they were scheduled, so a simulation driven
+ * from one thread plays out the same way every time it is run.
+ *
+ * The clock is not thread safe, it is meant to be driven from the thread
+ * that steps the server, see Server.step().
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class SimulatedClock extends Clock {
+
+	/** Current time in nanoseconds */
+	private long now;
+
+	/** Number of events ever scheduled, orders events due at the same time */
+	private long scheduled;
+
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+
+	/**
+	 * @param startMillis Time the clock starts at.
+	 */
+	SimulatedClock(long startMillis) {
+		now = startMillis * 1000000;
+	}
+
+	long millis() {
+		return now / 1000000;
+	}
+
+	long nanos() {
+		return now;
+	}
+
+	boolean isSimulated() {
+		return true;
+	}
+
+	/**
+	 * Schedules a task to run once the clock has been advanced far enough.
+	 *
+	 * @param delayMillis Time from now the task is due.
+	 * @param task The task, run by advance() on the calling thread.
+	 */
+	void schedule(long delayMillis, Runnable task) {
+		events.add(new Event(now + Math.max(delayMillis, 0) * 1000000, scheduled++, task));
+	}
+
+	/**
+	 * Moves time forward, running every event that falls due on the way, in
+	 * order. Events scheduled by those events run too if they fall due in
+	 * time.
+	 *
+	 * @param millis Time to move forward by, 0 runs the events due now.
+	 */
+	void advance(long millis) {
+		long target = now + millis * 1000000;
+		Event event;
+		while ((event = events.peek()) != null && event.due <= target) {
+			events.poll();
+			now = event.due;
+			event.task.run();
+		}
+		now = target;
+	}
+
+	/** @return Number of events waiting to fall due */
+	int getPending() {
+		return events.size();
+	}
+
+	private static final class Event implements Comparable<Event> {
+		final long due;
+		final long order;
+		final Runnable task;
+
+		Event(long due, long order, Runnable task) {
+			this.due = due;
+			this.order = order;
+			this.task = task;
+		}
+
+		public int compareTo(Event other) {
+			if (due != other.due) return due < other.due ? -1 : 1;
+			return order < other.order ? -1 : order > other.order ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package chatserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Simulation.java
+ *
+ * Runs a server and a crowd of clients in a single JVM on a SimulatedClock,
+ * and checks that fan-out, ordering and presence hold up. Every client logs
+ * in over a MemoryTransport with its own latency, and one in ten is a slow
+ * consumer with a small receive window that only reads now and then. A few
+ * clients then chat at random moments, some clients hang up, and once things
+ * settle the simulation checks that:
+ *
+ *     every remaining client received every chat line exactly once,
+ *     they all received the chat lines in the same order, with each sender's
+ *     lines in the order they were sent,
+ *     the last user list each received names exactly the remaining users,
+ *     and the server counts exactly their connections as open.
+ *
+ * The whole run is then repeated with the same seed, and must play out
+ * exactly as before, every line reaching every client at the same simulated
+ * time. Run it while the server is stopped:
+ *
+ *     java -cp bin chatserver/Simulation [clients] [seed]
+ *
+ * The defaults are 500 clients and seed 1. It exits with status 1 if any
+ * check fails.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class Simulation {
+
+	/** Clients connecting each millisecond, few enough that those still
+	 *  logging in stay well under the server's pre-login limit */
+	private static final int CONNECTS_PER_MS = 5;
+
+	/** Clients that chat, and the lines each of them sends */
+	private static final int SENDERS = 20;
+	private static final int LINES_PER_SENDER = 5;
+
+	/** Simulated time over which the chat lines are sent */
+	private static final int CHAT_MS = 2000;
+
+	/** Share of the clients that hang up once the chat is over */
+	private static final int HANG_UP_PERCENT = 10;
+
+	/** Receive window of the slow consumers, and how often they read */
+	private static final int SLOW_WINDOW = 2048;
+	private static final int SLOW_READ_MS = 200;
+
+	/** Time given for everything in flight to arrive */
+	private static final int SETTLE_MS = 2000;
+
+	private Simulation() {}
+
+	public static void main(String[] args) {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		Log.setLevel(Log.Level.WARN);
+
+		long start = System.nanoTime();
+		Run first = new Run(clients, seed);
+		first.play();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		Run second = new Run(clients, seed);
+		second.play();
+
+		System.out.println(clients + " clients, " + first.sent.size() + " chat lines, " + first.hungUp
+				+ " hung up, " + first.simulatedMillis + " ms simulated in " + elapsed + " ms");
+		List<String> failures = first.check();
+		if (first.digest != second.digest || first.received != second.received) {
+			failures.add("A second run with seed " + seed + " played out differently");
+		}
+		else {
+			System.out.println("ok    a second run received the same " + first.received + " lines at the same times");
+		}
+		for (int i = 0; i < failures.size(); i++) System.out.println("FAIL  " + failures.get(i));
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	/** One run of the simulation, everything it sent and what each client
+	 *  received */
+	private static final class Run {
+		private final int count;
+		private final Random random;
+		private final SimulatedClock clock = new SimulatedClock(1351123200000L);
+		private final Server server = new Server(0, clock);
+
+		private final MemoryTransport[] clients;
+		private final boolean[] slow;
+		private final boolean[] gone;
+		private final boolean[] accepted;
+
+		/** Chat lines each client received, in order, and the last user list */
+		private final List<List<String>> chat = new ArrayList<List<String>>();
+		private final String[][] userList;
+
+		/** Every chat line sent, in the order sent */
+		final List<String> sent = new ArrayList<String>();
+
+		int hungUp;
+		long simulatedMillis;
+
+		/** Lines received in all, and a digest of every line and the time
+		 *  it arrived, for comparing runs */
+		long received;
+		long digest;
+
+		Run(int count, long seed) {
+			this.count = count;
+			random = new Random(seed);
+			clients = new MemoryTransport[count];
+			slow = new boolean[count];
+			gone = new boolean[count];
+			accepted = new boolean[count];
+			userList = new String[count][];
+			server.simulate(new MemoryDB());
+		}
+
+		void play() {
+			for (int i = 0; i < count; i++) {
+				slow[i] = i % 10 == 9;
+				clients[i] = new MemoryTransport(clock, address(i), 1 + random.nextInt(50),
+						slow[i] ? SLOW_WINDOW : 1 << 20);
+				chat.add(new ArrayList<String>());
+			}
+			for (int i = 0; i < count; i++) {
+				if (server.connect(clients[i], false) != null) clients[i].send("LOGIN: " + name(i) + ",pw");
+				if (i % CONNECTS_PER_MS == CONNECTS_PER_MS - 1) run(1);
+			}
+			run(SETTLE_MS);
+
+			/** Each sender's lines go out at random moments, in order */
+			Map<Integer, List<Integer>> schedule = new HashMap<Integer, List<Integer>>();
+			for (int s = 0; s < SENDERS; s++) {
+				int sender = random.nextInt(count);
+				int[] times = new int[LINES_PER_SENDER];
+				for (int k = 0; k < times.length; k++) times[k] = random.nextInt(CHAT_MS);
+				Arrays.sort(times);
+				for (int k = 0; k < times.length; k++) {
+					if (!schedule.containsKey(times[k])) schedule.put(times[k], new ArrayList<Integer>());
+					schedule.get(times[k]).add(sender);
+				}
+			}
+			int[] lines = new int[count];
+			for (int t = 0; t < CHAT_MS; t++) {
+				List<Integer> due = schedule.get(t);
+				for (int j = 0; due != null && j < due.size(); j++) {
+					int sender = due.get(j);
+					String line = name(sender) + ": line " + lines[sender]++;
+					clients[sender].send(line);
+					sent.add(line);
+				}
+				run(1);
+			}
+			run(SETTLE_MS);
+
+			for (int i = 0; i < count; i++) {
+				if (random.nextInt(100) < HANG_UP_PERCENT) {
+					clients[i].hangUp();
+					gone[i] = true;
+					hungUp++;
+				}
+			}
+			run(SETTLE_MS);
+		}
+
+		/** Advances the simulation a millisecond at a time, letting the
+		 *  clients read what has reached them */
+		private void run(int millis) {
+			for (int t = 0; t < millis; t++) {
+				clock.advance(1);
+				server.step();
+				simulatedMillis++;
+				for (int i = 0; i < count; i++) {
+					if (gone[i] || (slow[i] && simulatedMillis % SLOW_READ_MS != 0)) continue;
+					List<String> lines = clients[i].receive();
+					for (int j = 0; j < lines.size(); j++) take(i, lines.get(j));
+				}
+			}
+		}
+
+		private void take(int client, String line) {
+			if (line.equals("ACCEPTED")) {
+				accepted[client] = true;
+			}
+			else if (line.startsWith("USERLIST:")) {
+				/** The list is in no particular order */
+				String[] names = line.substring(9).trim().split(" ");
+				Arrays.sort(names);
+				userList[client] = names;
+				line = "USERLIST: " + Arrays.toString(names);
+			}
+			else if (line.startsWith("user") && line.contains(": line ")) {
+				chat.get(client).add(line);
+			}
+			received++;
+			digest = digest * 31 + line.hashCode();
+			digest = digest * 31 + clock.millis();
+		}
+
+		/** @return A description of each check that failed */
+		List<String> check() {
+			List<String> failures = new ArrayList<String>();
+			List<String> remaining = new ArrayList<String>();
+			int loggedIn = 0;
+			for (int i = 0; i < count; i++) {
+				if (accepted[i]) loggedIn++;
+				if (!gone[i]) remaining.add(name(i));
+			}
+			String[] expectedList = remaining.toArray(new String[remaining.size()]);
+			Arrays.sort(expectedList);
+			if (loggedIn != count) failures.add((count - loggedIn) + " clients could not log in");
+
+			List<String> reference = null;
+			int missing = 0;
+			int misordered = 0;
+			int wrongList = 0;
+			for (int i = 0; i < count; i++) {
+				if (gone[i]) continue;
+				List<String> lines = chat.get(i);
+				if (lines.size() != sent.size() || !lines.containsAll(sent)) missing++;
+				else if (reference == null) reference = lines;
+				else if (!lines.equals(reference)) misordered++;
+				if (!Arrays.equals(userList[i], expectedList)) wrongList++;
+			}
+			if (missing > 0) failures.add(missing + " clients did not receive every chat line exactly once");
+			else System.out.println("ok    fan-out, every remaining client received all " + sent.size() + " chat lines");
+			if (misordered > 0) failures.add(misordered + " clients received the chat in a different order");
+			else if (reference == null) failures.add("No client received the whole chat to check its order");
+			else if (!inSenderOrder(reference)) failures.add("A sender's lines arrived out of order");
+			else System.out.println("ok    ordering, every client saw the same order, each sender's lines in turn");
+			if (wrongList > 0) failures.add(wrongList + " clients ended with a wrong user list");
+			else System.out.println("ok    presence, every client's user list names the " + remaining.size() + " remaining users");
+			int open = server.getAdmission().getConnections();
+			if (open != remaining.size()) failures.add("Server counts " + open + " open connections, not " + remaining.size());
+			return failures;
+		}
+
+		/** @return True if each sender's lines appear in the order sent */
+		private static boolean inSenderOrder(List<String> lines) {
+			Map<String, Integer> next = new HashMap<String, Integer>();
+			for (int i = 0; i < lines.size(); i++) {
+				String line = lines.get(i);
+				int colon = line.indexOf(": line ");
+				String sender = line.substring(0, colon);
+				int k = Integer.parseInt(line.substring(colon + 7));
+				Integer expected = next.get(sender);
+				if (k != (expected == null ? 0 : expected)) return false;
+				next.put(sender, k + 1);
+			}
+			return true;
+		}
+
+		private static String name(int client) {
+			return "user" + client;
+		}
+
+		private static InetAddress address(int client) {
+			try {
+				return InetAddress.getByAddress(new byte[] { 10, (byte) (client >>> 16), (byte) (client >>> 8), (byte) client });
+			} catch (UnknownHostException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/** Accepts every login and keeps nothing, the simulated clients are
+	 *  never mentioned while offline */
+	static final class MemoryDB extends DBManager {
+		public boolean authenticate(String username, String password) {
+			return true;
+		}
+
+		public boolean userExists(String username) {
+			return false;
+		}
+
+		public boolean createUser(String username, String password) {
+			return true;
+		}
+
+		public void storeOffline(String username, String message, int maxMessages, long maxAgeMillis) {}
+
+		public Inbox readOffline(String username, long maxAgeMillis) {
+			return new Inbox();
+		}
+
+		public void clearOffline(String username, long last) {}
+
+		public void close() {}
+	}
+}
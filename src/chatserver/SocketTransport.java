@@ -0,0 +1,65 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * SocketTransport.java
+ *
+ * A client connected over TCP. The channel is registered with the shard's
+ * selector, which reports it readable or writable to the shard's loop.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class SocketTransport implements Transport {
+	private final SocketChannel channel;
+	private SelectionKey key;
+
+	/**
+	 * @param channel A connected, non-blocking channel.
+	 */
+	SocketTransport(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	public void register(Selector selector, Session session) throws IOException {
+		key = channel.register(selector, SelectionKey.OP_READ, session);
+	}
+
+	public void setInterest(int op, boolean on) {
+		if (key == null || !key.isValid()) return;
+		int ops = key.interestOps();
+		int updated = on ? ops | op : ops & ~op;
+		if (updated != ops) key.interestOps(updated);
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		return channel.read(dst);
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return channel.write(src);
+	}
+
+	public void shutdownOutput() throws IOException {
+		channel.shutdownOutput();
+	}
+
+	public InetAddress getAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	public void close() throws IOException {
+		if (key != null) key.cancel();
+		channel.close();
+	}
+}
@@ -0,0 +1,469 @@
+package chatserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StreamMux.java
+ *
+ * Carries numbered logical streams over a client's chat connection, so that
+ * a logged-in client can move attachments while it chats without opening
+ * another connection and going through another accept and login for each.
+ * The client numbers its streams itself and opens them with
+ * "OPEN: id,GET attachment" to download a stored attachment, or
+ * "OPEN: id,PUT name,size" to upload a file. The server answers
+ * "STREAM_OPEN id size window", or "STREAM_RESET id reason" if the stream
+ * cannot be served or fails later on, after which the id is free again.
+ *
+ * Since frames are lines, data travels base64 encoded: the server sends a
+ * download as "STREAM_DATA id data" frames followed by "STREAM_END id", and
+ * the client sends an upload as "DATA: id,data" frames, answered with
+ * "STREAM_END id STORED attachment" once the file has been stored and
+ * announced to the chat. Either side may abandon a stream, the client with
+ * "CLOSE: id".
+ *
+ * Each stream is flow controlled on its own. Neither end may send more than
+ * the window of bytes the other has not yet made room for: the client grants
+ * more of a download with "CREDIT: id,bytes" as it consumes it, and the server
+ * grants more of an upload with "STREAM_CREDIT id bytes" as it writes it to
+ * disk. A client that sends beyond its window has the stream reset. A slow
+ * reader of one stream therefore holds up only that stream, and the data of
+ * every stream waits in the session's stream lane, behind chat and control
+ * frames, so no transfer can stall the chat. Downloads take turns, a chunk
+ * at a time, and only a few chunks are queued at once, so a new stream or a
+ * new line of chat never waits behind a long transfer.
+ *
+ * A multiplexer belongs to one session and runs on its shard's thread. The
+ * files are read and written on the attachment store's stream pool, and the
+ * results are handed back to the shard with execute().
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class StreamMux {
+
+	/** Size of a full STREAM_DATA frame, its header and newline included */
+	private static final int FRAME_BYTES = 4 * ((ServerConfig.STREAM_CHUNK_BYTES + 2) / 3) + 48;
+
+	/** Most download data queued on the session or being read for it */
+	private static final int QUEUE_LIMIT = 4 * FRAME_BYTES;
+
+	private final Session session;
+	private final AttachmentStore attachments;
+	private final Executor io;
+
+	/** The open streams, by the client's ids */
+	private final HashMap<Long, Stream> streams = new HashMap<Long, Stream>();
+
+	/** The open downloads in the order they take turns, and whose turn is next */
+	private final ArrayList<Download> downloads = new ArrayList<Download>();
+	private int turn;
+
+	/** Chunks being read for downloads, which are queued once read */
+	private int reading;
+
+	/**
+	 * @param session The client's session, whose shard the streams run on.
+	 * @param attachments The store the attachments are kept in.
+	 */
+	StreamMux(Session session, AttachmentStore attachments) {
+		this.session = session;
+		this.attachments = attachments;
+		io = attachments.getStreamExecutor();
+	}
+
+	/**
+	 * Opens a stream at the client's request.
+	 *
+	 * @param id The client's id for the stream.
+	 * @param name The attachment to download, or the name of the file to
+	 *        upload.
+	 * @param size The size of the file to upload, 0 to download.
+	 */
+	void open(long id, String name, long size) {
+		if (streams.containsKey(id)) {
+			session.writeControl("STREAM_RESET " + id + " IN_USE");
+			return;
+		}
+		if (streams.size() >= ServerConfig.MAX_STREAMS) {
+			Log.info("stream.limit", session, "Refused stream " + id + ", " + streams.size() + " open");
+			session.writeControl("STREAM_RESET " + id + " LIMIT");
+			return;
+		}
+		if (size > ServerConfig.MAX_ATTACHMENT_BYTES) {
+			session.writeControl("STREAM_RESET " + id + " TOO_LARGE");
+			return;
+		}
+		if (size == 0) openDownload(new Download(id, name));
+		else openUpload(new Upload(id, name, size));
+	}
+
+	/**
+	 * Takes a DATA frame for an upload. Data for a stream that has just been
+	 * reset or closed is dropped.
+	 *
+	 * @param id The stream.
+	 * @param data The base64 data.
+	 */
+	void data(long id, String data) {
+		Stream stream = streams.get(id);
+		if (!(stream instanceof Upload)) return;
+		final Upload upload = (Upload) stream;
+		final byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(data);
+		} catch (IllegalArgumentException e) {
+			fail(upload, "BAD_DATA");
+			return;
+		}
+		if (bytes.length > upload.credit || upload.received + bytes.length > upload.size) {
+			Log.warn("stream.overrun", session, "Stream " + id + " sent beyond its window or size");
+			fail(upload, "FLOW_CONTROL");
+			return;
+		}
+		final long position = upload.received;
+		upload.received += bytes.length;
+		upload.credit -= bytes.length;
+		submit(upload, new Runnable() {
+			public void run() {
+				boolean written = false;
+				boolean stored = false;
+				try {
+					FileChannel file = upload.channel();
+					ByteBuffer buffer = ByteBuffer.wrap(bytes);
+					while (buffer.hasRemaining()) file.write(buffer, position + buffer.position());
+					written = true;
+					if (upload.written.addAndGet(bytes.length) == upload.size && upload.complete()) {
+						stored = attachments.store(upload.part, upload.attachment, session.getUsername(), upload.name, upload.size);
+						if (!stored) written = false;
+					}
+				} catch (IOException e) {
+					Log.info("stream.write", session, "Upload " + upload.id + " failed: " + e.getMessage());
+				}
+				final boolean ok = written;
+				final boolean done = stored;
+				onShard(new Runnable() {
+					public void run() {
+						written(upload, bytes.length, ok, done);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Lets more of a download be sent.
+	 *
+	 * @param id The stream.
+	 * @param bytes Bytes the client has made room for.
+	 */
+	void credit(long id, long bytes) {
+		Stream stream = streams.get(id);
+		if (!(stream instanceof Download)) return;
+		Download download = (Download) stream;
+		download.credit = Math.min(download.credit + bytes, Long.MAX_VALUE / 2);
+		pump();
+	}
+
+	/** Abandons a stream at the client's request */
+	void close(long id) {
+		Stream stream = streams.get(id);
+		if (stream != null) remove(stream);
+	}
+
+	/** Abandons every stream, once the session has closed */
+	void closeAll() {
+		for (Stream stream : new ArrayList<Stream>(streams.values())) remove(stream);
+	}
+
+	/**
+	 * Reads the next chunks of the downloads that have credit, taking turns,
+	 * as long as the session's stream lane is short. Once the lane is full
+	 * the session is asked to call back when it has drained.
+	 */
+	void pump() {
+		int idle = 0;
+		while (idle < downloads.size()) {
+			if (session.getStreamBytes() + (reading + 1) * FRAME_BYTES > QUEUE_LIMIT) {
+				session.awaitStreamsDrained();
+				return;
+			}
+			if (turn >= downloads.size()) turn = 0;
+			Download download = downloads.get(turn++);
+			if (download.size < 0 || download.reading || download.position == download.size || download.credit <= 0) {
+				idle++;
+				continue;
+			}
+			read(download);
+			idle = 0;
+		}
+	}
+
+	/** Opens a download's file on the pool and tells the client its size */
+	private void openDownload(final Download download) {
+		streams.put(download.id, download);
+		downloads.add(download);
+		submit(download, new Runnable() {
+			public void run() {
+				long size = -1;
+				try {
+					if (download.file() != null) size = download.channel().size();
+				} catch (IOException e) {
+					Log.info("stream.open", session, "Download " + download.id + " failed: " + e.getMessage());
+				}
+				final long found = size;
+				onShard(new Runnable() {
+					public void run() {
+						if (download.closed) return;
+						if (found < 0) {
+							fail(download, "NOTFOUND");
+							return;
+						}
+						download.size = found;
+						session.writeControl("STREAM_OPEN " + download.id + " " + found + " " + ServerConfig.STREAM_WINDOW_BYTES);
+						if (found == 0) finish(download);
+						else pump();
+					}
+				});
+			}
+		});
+	}
+
+	/** Accepts an upload, the client may send a window of data at once */
+	private void openUpload(Upload upload) {
+		streams.put(upload.id, upload);
+		session.writeControl("STREAM_OPEN " + upload.id + " " + upload.size + " " + ServerConfig.STREAM_WINDOW_BYTES);
+	}
+
+	/** Reads a download's next chunk on the pool, the encoded frame is
+	 *  queued back on the shard */
+	private void read(final Download download) {
+		final int length = (int) Math.min(ServerConfig.STREAM_CHUNK_BYTES, Math.min(download.size - download.position, download.credit));
+		final long position = download.position;
+		download.position += length;
+		download.credit -= length;
+		download.reading = true;
+		reading++;
+		boolean submitted = submit(download, new Runnable() {
+			public void run() {
+				String frame = null;
+				try {
+					FileChannel file = download.channel();
+					ByteBuffer buffer = ByteBuffer.allocate(length);
+					while (buffer.hasRemaining()) {
+						if (file.read(buffer, position + buffer.position()) < 0) throw new IOException("File truncated");
+					}
+					frame = "STREAM_DATA " + download.id + " " + Base64.getEncoder().encodeToString(buffer.array());
+				} catch (IOException e) {
+					Log.info("stream.read", session, "Download " + download.id + " failed: " + e.getMessage());
+				}
+				final String data = frame;
+				onShard(new Runnable() {
+					public void run() {
+						chunkRead(download, data);
+					}
+				});
+			}
+		});
+		if (!submitted) reading--;
+	}
+
+	/** Queues a chunk read for a download, and ends the download once it
+	 *  has all been queued */
+	private void chunkRead(Download download, String frame) {
+		reading--;
+		download.reading = false;
+		if (!download.closed) {
+			if (frame == null) fail(download, "IO_ERROR");
+			else {
+				session.writeStream(frame);
+				if (download.position == download.size) finish(download);
+			}
+		}
+		pump();
+	}
+
+	/** Ends a download after the last of its data */
+	private void finish(Download download) {
+		session.writeStream("STREAM_END " + download.id);
+		remove(download);
+	}
+
+	/** Grants the client more of an upload once a chunk is on disk, or ends
+	 *  the upload once it is complete */
+	private void written(Upload upload, int length, boolean ok, boolean stored) {
+		if (upload.closed) return;
+		if (!ok) {
+			fail(upload, "IO_ERROR");
+		}
+		else if (stored) {
+			session.writeControl("STREAM_END " + upload.id + " STORED " + upload.attachment);
+			remove(upload);
+		}
+		else if (upload.received < upload.size) {
+			upload.credit += length;
+			session.writeControl("STREAM_CREDIT " + upload.id + " " + length);
+		}
+	}
+
+	/** Resets a stream, telling the client why */
+	private void fail(Stream stream, String reason) {
+		Log.info("stream.reset", session, "Stream " + stream.id + " reset, " + reason);
+		session.writeControl("STREAM_RESET " + stream.id + " " + reason);
+		remove(stream);
+	}
+
+	/** Forgets a stream and releases its file on the pool, an unfinished
+	 *  upload's file is deleted */
+	private void remove(final Stream stream) {
+		stream.closed = true;
+		streams.remove(stream.id);
+		downloads.remove(stream);
+		Runnable release = new Runnable() {
+			public void run() {
+				stream.release();
+			}
+		};
+		try {
+			io.execute(release);
+		} catch (RejectedExecutionException e) {
+			release.run();
+		}
+	}
+
+	/** Runs file I/O for a stream on the pool, the stream is reset if the
+	 *  pool has been shut down */
+	private boolean submit(Stream stream, Runnable task) {
+		try {
+			io.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			fail(stream, "UNAVAILABLE");
+			return false;
+		}
+	}
+
+	private void onShard(Runnable task) {
+		session.getShard().execute(task);
+	}
+
+	/** A logical stream. Its fields other than the file are only used on the
+	 *  shard's thread, the file only on the pool's. */
+	private abstract static class Stream {
+		final long id;
+
+		/** Set once the stream has been removed */
+		boolean closed;
+
+		/** The open file, and whether it has been released for good */
+		private FileChannel channel;
+		private boolean released;
+
+		Stream(long id) {
+			this.id = id;
+		}
+
+		/** @return The file the stream reads or writes, or null if none */
+		abstract File file();
+
+		abstract String mode();
+
+		/** @return The stream's file, opened the first time it is needed */
+		synchronized FileChannel channel() throws IOException {
+			if (released) throw new ClosedChannelException();
+			if (channel == null) channel = new RandomAccessFile(file(), mode()).getChannel();
+			return channel;
+		}
+
+		/** Closes the stream's file, later I/O on it fails
+		 *  @return False if it had been released already */
+		synchronized boolean complete() {
+			if (released) return false;
+			released = true;
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignore) {
+				}
+			}
+			return true;
+		}
+
+		/** Releases the file of a stream that has been removed */
+		void release() {
+			complete();
+		}
+	}
+
+	/** Sends a stored attachment to the client */
+	private final class Download extends Stream {
+		final String attachment;
+
+		/** Size of the attachment, -1 until its file has been opened */
+		long size = -1;
+
+		/** Offset of the next chunk to read, and bytes the client has room for */
+		long position;
+		long credit = ServerConfig.STREAM_WINDOW_BYTES;
+
+		/** Set while a chunk is being read */
+		boolean reading;
+
+		Download(long id, String attachment) {
+			super(id);
+			this.attachment = attachment;
+		}
+
+		File file() {
+			return attachments.find(attachment);
+		}
+
+		String mode() {
+			return "r";
+		}
+	}
+
+	/** Receives a file from the client into a new attachment */
+	private final class Upload extends Stream {
+		final String attachment = attachments.newId();
+		final File part = attachments.partFile(attachment);
+		final String name;
+		final long size;
+
+		/** Bytes received, and bytes the client may still send */
+		long received;
+		long credit = ServerConfig.STREAM_WINDOW_BYTES;
+
+		/** Bytes on disk, counted on the pool so the last write can tell */
+		final AtomicLong written = new AtomicLong();
+
+		Upload(long id, String name, long size) {
+			super(id);
+			this.name = name;
+			this.size = size;
+		}
+
+		File file() {
+			return part;
+		}
+
+		String mode() {
+			return "rw";
+		}
+
+		/** Deletes the file unless the upload has been stored */
+		void release() {
+			if (complete()) part.delete();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package chatserver;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * TimingWheel.java
+ *
+ * A hashed timing wheel which runs timeouts on a single background thread.
+ * The wheel is a ring of buckets, each covering one tick. A timeout is hashed
+ * into the bucket its deadline falls in, together with the number of full
+ * revolutions left before it is due. Every tick the worker thread visits a
+ * single bucket, so scheduling and cancelling are O(1) and the cost of a tick
+ * does not depend on how far in the future the other timeouts lie. This lets
+ * the server keep one timer per session without one thread or one heap-ordered
+ * queue entry per session.
+ *
+ * Timeouts may be scheduled from any thread. They are handed to the worker
+ * through a lock-free queue and placed in their bucket on the next tick, the
+ * buckets themselves are only ever touched by the worker thread. A wheel
+ * running on a SimulatedClock has no thread of its own, it is turned by
+ * calling step() instead.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class TimingWheel implements Runnable {
+
+	/**
+	 * A task that runs once its delay has elapsed. Subclasses implement
+	 * expire(), which runs on the wheel's thread and must not block. A timeout
+	 * may reschedule itself from expire() to run again later.
+	 */
+	static abstract class Timeout {
+		private Timeout next;
+		private Timeout prev;
+		private long rounds;
+		private long deadline;
+		private volatile boolean cancelled;
+
+		/** Called on the wheel thread when the timeout is due */
+		abstract void expire();
+
+		/** Prevents the timeout from running if it has not run already */
+		void cancel() {
+			cancelled = true;
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout[] buckets;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime;
+	private final Clock clock;
+	private volatile boolean running = true;
+	private long tick;
+
+	/**
+	 * Creates a wheel, call start() to begin ticking.
+	 *
+	 * @param tickMillis Duration of one tick, the resolution of the wheel.
+	 * @param wheelSize Number of buckets, rounded up to a power of two.
+	 * @param clock Source of time for the ticks and deadlines.
+	 */
+	TimingWheel(long tickMillis, int wheelSize, Clock clock) {
+		this.tickMillis = tickMillis;
+		int size = 1;
+		while (size < wheelSize) size <<= 1;
+		buckets = new Timeout[size];
+		mask = size - 1;
+		this.clock = clock;
+		startTime = clock.millis();
+	}
+
+	/** Starts the wheel's worker thread */
+	void start() {
+		Thread worker = new Thread(this, "TimingWheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/** Stops the worker thread, timeouts still on the wheel never run */
+	void stop() {
+		running = false;
+	}
+
+	/**
+	 * Schedules a timeout to run after the given delay. Safe to call from any
+	 * thread, including from within another timeout's expire().
+	 *
+	 * @param timeout The timeout to run, it must not already be scheduled.
+	 * @param delayMillis Delay in milliseconds, rounded up to a whole tick.
+	 */
+	void schedule(Timeout timeout, long delayMillis) {
+		timeout.cancelled = false;
+		timeout.deadline = clock.millis() - startTime + Math.max(delayMillis, 0);
+		pending.add(timeout);
+	}
+
+	/** Worker loop, runs one bucket per tick until stopped */
+	public void run() {
+		while (running) {
+			long tickDeadline = (tick + 1) * tickMillis;
+			long sleep = tickDeadline - (clock.millis() - startTime);
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			step();
+		}
+	}
+
+	/** Runs the bucket of every tick that has elapsed on the clock, in
+	 *  place of the worker thread. Only ever called from one thread. */
+	void step() {
+		while ((tick + 1) * tickMillis <= clock.millis() - startTime) {
+			transferPending();
+			expireBucket(buckets[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	/** Moves newly scheduled timeouts from the hand-off queue into their buckets */
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) continue;
+			long due = Math.max(timeout.deadline / tickMillis, tick);
+			timeout.rounds = (due - tick) / buckets.length;
+			int index = (int) (due & mask);
+			timeout.prev = null;
+			timeout.next = buckets[index];
+			if (timeout.next != null) timeout.next.prev = timeout;
+			buckets[index] = timeout;
+		}
+	}
+
+	/** Runs every due timeout in a bucket and counts down the rest */
+	private void expireBucket(Timeout head) {
+		Timeout timeout = head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.cancelled) {
+				unlink(timeout);
+			}
+			else if (timeout.rounds <= 0) {
+				unlink(timeout);
+				try {
+					timeout.expire();
+				} catch (RuntimeException e) {
+					Log.error("wheel.expire", e);
+				}
+			}
+			else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		int index = (int) (tick & mask);
+		if (timeout.prev != null) timeout.prev.next = timeout.next;
+		else buckets[index] = timeout.next;
+		if (timeout.next != null) timeout.next.prev = timeout.prev;
+		timeout.next = null;
+		timeout.prev = null;
+	}
+}
@@ -0,0 +1,89 @@
+package chatserver;
+
+/**
+ * TokenBucket.java
+ *
+ * A classic token bucket rate limiter. The bucket holds up to a fixed number
+ * of tokens (the burst) and is refilled continuously at a fixed rate. Each
+ * permitted event takes one token. Refilling is done lazily whenever the
+ * bucket is consulted, so an idle bucket costs nothing.
+ *
+ * Instances are not thread safe, each bucket is expected to be owned by a
+ * single thread.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class TokenBucket {
+	private final double capacity;
+	private final double tokensPerNano;
+	private final Clock clock;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a full token bucket.
+	 *
+	 * @param burst Maximum number of tokens the bucket can hold.
+	 * @param ratePerSecond Number of tokens added back each second.
+	 */
+	TokenBucket(int burst, double ratePerSecond) {
+		this(burst, ratePerSecond, Clock.SYSTEM);
+	}
+
+	/**
+	 * Creates a full token bucket refilled by the given clock's time.
+	 *
+	 * @param burst Maximum number of tokens the bucket can hold.
+	 * @param ratePerSecond Number of tokens added back each second.
+	 * @param clock Source of time for refilling.
+	 */
+	TokenBucket(int burst, double ratePerSecond, Clock clock) {
+		capacity = burst;
+		tokensPerNano = ratePerSecond / 1e9;
+		tokens = burst;
+		this.clock = clock;
+		lastRefill = clock.nanos();
+	}
+
+	/**
+	 * Takes a single token from the bucket if one is available.
+	 *
+	 * @return True if a token was taken, false if the bucket is empty.
+	 */
+	boolean tryAcquire() {
+		refill(clock.nanos());
+		if (tokens >= 1.0) {
+			tokens -= 1.0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return True if the bucket has refilled completely, meaning it has not
+	 *         been used recently and carries no state worth keeping.
+	 */
+	boolean isFull() {
+		refill(clock.nanos());
+		return tokens >= capacity;
+	}
+
+	/**
+	 * @return Milliseconds until the next token is available, 0 if one is
+	 *         available now.
+	 */
+	long millisUntilAvailable() {
+		refill(clock.nanos());
+		if (tokens >= 1.0) return 0;
+		return (long) Math.ceil((1.0 - tokens) / tokensPerNano / 1e6);
+	}
+
+	private void refill(long now) {
+		long elapsed = now - lastRefill;
+		if (elapsed > 0) {
+			tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+			lastRefill = now;
+		}
+	}
+}
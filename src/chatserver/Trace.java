@@ -0,0 +1,59 @@
+package chatserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trace.java
+ *
+ * Follows a single chat line through the server for a client that asked for
+ * it to be traced. The line is stamped when it is read, when the sequencer
+ * takes it and when the last delivery shard has queued it to its clients.
+ * The server's stages are then recorded in the latency stats and sent back
+ * to the client as "TRACE id queueMicros fanOutMicros", which lets the client
+ * work out how the rest of the trip was spent and report it with TRACED.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class Trace {
+	private final long id;
+	private final Session session;
+	private final LatencyStats stats;
+
+	/** Times the line was read and sequenced, from System.nanoTime() */
+	private final long received;
+	private long sequenced;
+
+	/** Shards that have yet to deliver the line */
+	private final AtomicInteger shardsLeft = new AtomicInteger();
+
+	/**
+	 * Starts a trace for a line that has just been read.
+	 *
+	 * @param id The client's id for the line.
+	 * @param session The client, which is sent the server's timings.
+	 * @param stats Where the timings are aggregated.
+	 */
+	Trace(long id, Session session, LatencyStats stats) {
+		this.id = id;
+		this.session = session;
+		this.stats = stats;
+		received = System.nanoTime();
+	}
+
+	/** Called on the sequencer thread as the line is handed to the shards */
+	void sequenced(int shards) {
+		sequenced = System.nanoTime();
+		shardsLeft.set(shards);
+		stats.record(LatencyStats.Stage.QUEUE, (sequenced - received) / 1000);
+	}
+
+	/** Called by each shard once it has queued the line to its clients, the
+	 *  last one completes the trace */
+	void delivered() {
+		if (shardsLeft.decrementAndGet() != 0) return;
+		long fanOut = (System.nanoTime() - sequenced) / 1000;
+		stats.record(LatencyStats.Stage.FANOUT, fanOut);
+		session.write("TRACE " + id + " " + (sequenced - received) / 1000 + " " + fanOut);
+	}
+}
@@ -0,0 +1,50 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Selector;
+
+/**
+ * Transport.java
+ *
+ * The connection underneath a Session. Reading and writing are non-blocking,
+ * as with a SocketChannel in non-blocking mode: they move whatever bytes can
+ * be moved right away, possibly none. The transport tells the session's shard
+ * when it can make progress, calling Session.onReadable() and Session.flush()
+ * on the shard's thread while read or write interest is set.
+ *
+ * SocketTransport connects a session to a real client over TCP through the
+ * shard's selector. MemoryTransport connects it to a client simulated in the
+ * same JVM, so that the server's handling of many clients can be exercised
+ * without sockets.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+interface Transport extends ByteChannel {
+
+	/**
+	 * Starts reporting readiness for the session, with read interest set.
+	 * Called once on the shard's thread, before the session is opened.
+	 *
+	 * @param selector The shard's selector, for transports that use one.
+	 * @param session The session served by the transport.
+	 * @throws IOException If the connection has already closed.
+	 */
+	void register(Selector selector, Session session) throws IOException;
+
+	/**
+	 * Turns interest in reading or writing on or off, shard thread only.
+	 *
+	 * @param op SelectionKey.OP_READ or SelectionKey.OP_WRITE.
+	 * @param on True to be told when the operation can make progress.
+	 */
+	void setInterest(int op, boolean on);
+
+	/** Half-closes the connection once everything written has been sent */
+	void shutdownOutput() throws IOException;
+
+	/** @return The client's address */
+	InetAddress getAddress();
+}
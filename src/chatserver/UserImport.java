@@ -0,0 +1,115 @@
+package chatserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * UserImport.java
+ *
+ * Creates accounts in bulk from a CSV file with one "username,password" line
+ * per user. A first line reading "username,password" is taken as a header
+ * and skipped, as are blank lines, and fields may be quoted. If a username
+ * appears more than once only its first line is used. The work is done by
+ * DBManager.importUsers().
+ *
+ * An import can be run from the server's admin console with "import file",
+ * or on its own while the server is stopped:
+ *
+ *     java -cp "bin;mysql-connector.jar" chatserver/UserImport users.csv
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class UserImport {
+
+	private UserImport() {}
+
+	/**
+	 * Imports every user in a CSV file.
+	 *
+	 * @param db Database to create the users in.
+	 * @param file The CSV file.
+	 * @return How many users were created or skipped.
+	 * @throws IOException If the file cannot be read.
+	 * @throws SQLException If the database is unavailable.
+	 */
+	static DBManager.ImportResult importFile(DBManager db, File file) throws IOException, SQLException {
+		Map<String, String> users = new LinkedHashMap<String, String>();
+		int duplicates = 0;
+		int malformed = 0;
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			boolean first = true;
+			while ((line = in.readLine()) != null) {
+				if (first && line.trim().equalsIgnoreCase("username,password")) {
+					first = false;
+					continue;
+				}
+				first = false;
+				if (line.trim().length() == 0) continue;
+
+				int comma = line.indexOf(',');
+				if (comma < 0) {
+					malformed++;
+					continue;
+				}
+				String username = unquote(line.substring(0, comma));
+				String password = unquote(line.substring(comma + 1));
+				if (users.containsKey(username)) duplicates++;
+				else users.put(username, password);
+			}
+		} finally {
+			in.close();
+		}
+
+		DBManager.ImportResult result = db.importUsers(users);
+		result.invalid += duplicates + malformed;
+		return result;
+	}
+
+	/** Trims a field and removes the quotes around it, if any */
+	private static String unquote(String field) {
+		field = field.trim();
+		if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"') {
+			field = field.substring(1, field.length() - 1).replace("\"\"", "\"");
+		}
+		return field;
+	}
+
+	/** Imports the CSV file named on the command line, using the database
+	 *  credentials in dbauth.dat like the server does */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: java chatserver/UserImport users.csv");
+			System.exit(2);
+		}
+
+		BufferedReader in = new BufferedReader(new FileReader("dbauth.dat"));
+		String dbUser = in.readLine();
+		String dbPass = in.readLine();
+		in.close();
+
+		DBManager db = new DBManager(ServerConfig.DB_URL, dbUser, dbPass);
+		long start = System.currentTimeMillis();
+		try {
+			DBManager.ImportResult result = importFile(db, new File(args[0]));
+			System.out.println(result + " in " + (System.currentTimeMillis() - start) + " ms");
+		} catch (SQLException e) {
+			System.err.println("Import failed: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			db.close();
+			Log.flush(1000);
+		}
+	}
+}
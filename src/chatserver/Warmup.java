@@ -0,0 +1,102 @@
+package chatserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * Warmup.java
+ *
+ * Runs the server's hot paths before it starts accepting clients. Right after
+ * a restart the first burst of logins used to pay for class loading, for the
+ * password hashing still running in the interpreter and for statements being
+ * prepared on first use, and login latency spiked. The warm-up checks the
+ * database pool and prepares every statement on it, hashes enough dummy
+ * passwords for the JIT to compile DBManager.getHash, and drives the frame
+ * decoder, the command parser and the encoders with sample frames so that
+ * their classes are loaded and compiled as well.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class Warmup {
+
+	/** Sample frames covering every command the parser knows */
+	private static final String[] FRAMES = {
+		"LOGIN: warmup,password",
+		"NEWUSER: warmup,password",
+		"ATTACH: warmup.txt,1024",
+		"HISTORY: 1351123200000,42",
+		"PONG",
+		"PING: 123456789",
+		"TRACE: 7",
+		"TRACED: 2500,1800,300",
+		"SEARCH: 1,from:warmup hello",
+		"OPEN: 1,PUT warmup.txt,1024",
+		"OPEN: 2,GET 0123456789abcdef",
+		"DATA: 1,aGVsbG8sIHdvcmxkCg==",
+		"CREDIT: 2,65536",
+		"CLOSE: 1",
+		"warmup: hello @someone, how are you?",
+		"MSG: 8817265512,warmup: hello again",
+		"LOGIN: missing separator"
+	};
+
+	private Warmup() {}
+
+	/**
+	 * Warms up the database pool.
+	 *
+	 * @param db The server's database manager.
+	 * @return True if every pooled connection is working.
+	 */
+	static boolean database(DBManager db) {
+		return db.warmUp();
+	}
+
+	/**
+	 * Warms up password hashing and the protocol code.
+	 *
+	 * @param db The server's database manager, whose hashing is exercised.
+	 * @param hashes Number of dummy passwords to hash.
+	 */
+	static void code(DBManager db, int hashes) {
+		byte[] salt = new byte[8];
+		try {
+			for (int i = 0; i < hashes; i++) {
+				salt[0] = (byte) i;
+				DBManager.base64ToByte(DBManager.byteToBase64(db.getHash(1000, "warmup", salt)));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			Log.error("warmup.hash", e);
+		} catch (IOException e) {
+			Log.error("warmup.hash", e);
+		}
+
+		Command command = new Command();
+		ArrayList<String> mentions = new ArrayList<String>();
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < FRAMES.length; i++) {
+			input.append(FRAMES[i]).append("\r\n");
+		}
+		byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+		BufferPool buffers = new BufferPool(ServerConfig.MAX_FRAME_BYTES + 2, 1);
+		for (int round = 0; round < 2000; round++) {
+			FrameDecoder decoder = new FrameDecoder(ServerConfig.MAX_FRAME_BYTES, buffers);
+			try {
+				decoder.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes)));
+			} catch (IOException impossible) {
+			}
+			String frame;
+			while ((frame = decoder.nextFrame()) != null) {
+				CommandParser.parse(frame, command);
+				CommandParser.findMentions(frame, mentions);
+				mentions.clear();
+				WebSocketChannel.wrap(Session.encode(frame));
+			}
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * WebSocketChannel.java
+ *
+ * Lets browsers connect to the chat over a WebSocket (RFC 6455) and be
+ * served exactly like the Swing client. The channel sits between a
+ * session's socket and its FrameDecoder: it answers the HTTP upgrade
+ * handshake, then unwraps the text messages the browser sends and hands
+ * their contents to the decoder as newline terminated lines. Everything past
+ * that point, parsing, login, throttling, broadcasts and presence, is shared
+ * with plain TCP clients, and WebSocket sessions live on the same delivery
+ * shards. In the other direction wrap() turns a line frame into a WebSocket
+ * text frame, a broadcast is wrapped once per shard and the result shared by
+ * all of the shard's WebSocket sessions.
+ *
+ * A plain "GET /health" request is answered with "200 READY" for health
+ * checkers, the port is only opened once the server is ready.
+ *
+ * Each WebSocket message is taken as one chat line, or several if it
+ * contains newlines. A message may be fragmented, with pings and other
+ * control frames between its fragments. Pings are answered with pongs, a
+ * close is echoed and ends the session. Binary messages are refused, and
+ * any frame breaking the protocol, such as an unmasked one, one with reserved
+ * bits set, or a continuation with no message to continue, closes the
+ * session with a protocol error. A message longer than a chat line is
+ * dropped like an overlong line from any other client.
+ *
+ * Like the rest of a session's input handling the channel is only used from
+ * the session's shard thread. Its raw input buffer is borrowed from the
+ * shard's BufferPool while it holds bytes not yet unwrapped, as the
+ * FrameDecoder's is.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class WebSocketChannel implements ReadableByteChannel {
+
+	/** Appended to the client's key to prove the server speaks WebSocket */
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	/** Longest handshake request accepted */
+	private static final int MAX_HANDSHAKE = 4096;
+
+	private static final int OP_CONTINUATION = 0x0;
+	private static final int OP_TEXT = 0x1;
+	private static final int OP_BINARY = 0x2;
+	private static final int OP_CLOSE = 0x8;
+	private static final int OP_PING = 0x9;
+	private static final int OP_PONG = 0xA;
+
+	/** Close codes sent when the client breaks the protocol */
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+	private static final int CLOSE_UNSUPPORTED = 1003;
+
+	private final Session session;
+	private final Transport channel;
+	private final BufferPool pool;
+
+	/** Raw bytes read from the socket and not yet unwrapped, null while
+	 *  there are none */
+	private ByteBuffer in;
+
+	private boolean handshaken;
+	private boolean ended;
+
+	/** State of the data frame being unwrapped */
+	private long payloadLeft;
+	private boolean finalFrame;
+
+	/** Set while a fragmented message has had its first frame but not yet
+	 *  its final one */
+	private boolean fragmented;
+	private final byte[] mask = new byte[4];
+	private int maskIndex;
+
+	/** Set once a message's payload has been passed on but not yet its
+	 *  terminating newline, because the decoder had no room left */
+	private boolean newlinePending;
+
+	/**
+	 * @param session The session the channel belongs to, replies to the
+	 *        handshake and to control frames are queued on it.
+	 * @param channel The session's transport.
+	 * @param pool Lends the raw input buffer, of at least bufferBytes() bytes.
+	 */
+	WebSocketChannel(Session session, Transport channel, BufferPool pool) {
+		this.session = session;
+		this.channel = channel;
+		this.pool = pool;
+	}
+
+	/**
+	 * @param maxFrame Longest chat line accepted.
+	 * @return Size of raw input buffer needed for a handshake or a frame
+	 *         holding a whole chat line.
+	 */
+	static int bufferBytes(int maxFrame) {
+		return Math.max(MAX_HANDSHAKE, maxFrame + 14);
+	}
+
+	/**
+	 * Reads from the socket and unwraps as much as possible into dst.
+	 *
+	 * @return Number of bytes placed in dst, possibly zero, or -1 once the
+	 *         connection has ended.
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (in == null) in = pool.take();
+		int n = channel.read(in);
+		if (ended) {
+			/** Once the connection is closing, anything more the client
+			 *  sends is ignored until it hangs up */
+			release();
+			return n < 0 ? -1 : 0;
+		}
+		in.flip();
+		try {
+			if (!handshaken && !handshake()) {
+				return n < 0 ? -1 : 0;
+			}
+			int produced = unwrap(dst);
+			if (produced == 0 && n < 0) return -1;
+			return produced;
+		} finally {
+			in.compact();
+			if (in.position() == 0) release();
+		}
+	}
+
+	/** @return True if raw bytes are still buffered, which read() must be
+	 *          called again to unwrap even if the socket has nothing new */
+	boolean hasBuffered() {
+		return !ended && (in != null || newlinePending);
+	}
+
+	/** Gives the raw input buffer back to the pool, dropping anything still
+	 *  in it. Called when the session closes. */
+	void release() {
+		if (in == null) return;
+		pool.give(in);
+		in = null;
+	}
+
+	public boolean isOpen() {
+		return !ended && channel.isOpen();
+	}
+
+	public void close() throws IOException {
+		ended = true;
+	}
+
+	/**
+	 * Wraps a line frame, as made by Session.encode(), in a WebSocket text
+	 * frame. The line's newline is left out, the frame marks the end itself.
+	 *
+	 * @param line The encoded line, terminated by a newline.
+	 * @return The frame, ready to be written to the socket.
+	 */
+	static byte[] wrap(byte[] line) {
+		return frame(OP_TEXT, line, 0, line.length - 1);
+	}
+
+	/** Builds an unmasked, unfragmented frame, as servers send them */
+	private static byte[] frame(int opcode, byte[] payload, int offset, int length) {
+		int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+		byte[] frame = new byte[header + length];
+		frame[0] = (byte) (0x80 | opcode);
+		if (length < 126) {
+			frame[1] = (byte) length;
+		}
+		else if (length < 65536) {
+			frame[1] = 126;
+			frame[2] = (byte) (length >>> 8);
+			frame[3] = (byte) length;
+		}
+		else {
+			frame[1] = 127;
+			for (int i = 0; i < 8; i++) {
+				frame[9 - i] = (byte) ((long) length >>> (8 * i));
+			}
+		}
+		System.arraycopy(payload, offset, frame, header, length);
+		return frame;
+	}
+
+	/**
+	 * Looks for the end of the HTTP upgrade request and answers it.
+	 *
+	 * @return True once the handshake is complete.
+	 */
+	private boolean handshake() {
+		int end = indexOfBlankLine();
+		if (end < 0) {
+			if (in.remaining() >= MAX_HANDSHAKE) refuse("431 Request Header Fields Too Large");
+			return false;
+		}
+		String request = new String(in.array(), in.position(), end - in.position(), StandardCharsets.ISO_8859_1);
+		in.position(end + 4);
+
+		String key = null;
+		boolean upgrade = false;
+		String[] lines = request.split("\r\n");
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon < 0) continue;
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Sec-WebSocket-Key")) key = value;
+			else if (name.equalsIgnoreCase("Upgrade")) upgrade = value.equalsIgnoreCase("websocket");
+		}
+		if (!upgrade && lines[0].startsWith("GET /health ")) {
+			health();
+			return false;
+		}
+		if (!lines[0].startsWith("GET ") || !upgrade || key == null) {
+			refuse("400 Bad Request");
+			return false;
+		}
+
+		session.answerHandshake(("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1), true);
+		handshaken = true;
+		return true;
+	}
+
+	/** Answers a health check, the port is only open once the server is ready */
+	private void health() {
+		session.answerHandshake(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 6\r\n"
+				+ "Connection: close\r\n\r\nREADY\n").getBytes(StandardCharsets.ISO_8859_1), false);
+		session.shutdownOutput();
+		ended = true;
+	}
+
+	private void refuse(String status) {
+		Log.info("websocket.refused", session, status);
+		session.answerHandshake(("HTTP/1.1 " + status + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1), false);
+		session.shutdownOutput();
+		ended = true;
+	}
+
+	private static String acceptKey(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int indexOfBlankLine() {
+		byte[] b = in.array();
+		for (int i = in.position(); i + 3 < in.limit(); i++) {
+			if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') return i;
+		}
+		return -1;
+	}
+
+	/** Unwraps frames from the raw buffer into dst until one runs out */
+	private int unwrap(ByteBuffer dst) {
+		int start = dst.position();
+		while (!ended && dst.hasRemaining()) {
+			if (newlinePending) {
+				dst.put((byte) '\n');
+				newlinePending = false;
+				continue;
+			}
+			if (payloadLeft > 0) {
+				if (!in.hasRemaining()) break;
+				int n = (int) Math.min(payloadLeft, Math.min(in.remaining(), dst.remaining()));
+				for (int i = 0; i < n; i++) {
+					dst.put((byte) (in.get() ^ mask[maskIndex++ & 3]));
+				}
+				payloadLeft -= n;
+				if (payloadLeft == 0 && finalFrame) newlinePending = true;
+				continue;
+			}
+			if (!nextHeader()) break;
+		}
+		return dst.position() - start;
+	}
+
+	/**
+	 * Reads the next frame header, handling control frames entirely.
+	 *
+	 * @return False if more bytes are needed first.
+	 */
+	private boolean nextHeader() {
+		if (in.remaining() < 2) return false;
+		int base = in.position();
+		int b0 = in.get(base) & 0xFF;
+		int b1 = in.get(base + 1) & 0xFF;
+		int opcode = b0 & 0x0F;
+		boolean fin = (b0 & 0x80) != 0;
+		int header = 2;
+		long length = b1 & 0x7F;
+		if (length == 126) header += 2;
+		else if (length == 127) header += 8;
+		header += 4;
+		if (in.remaining() < header) return false;
+
+		if (length == 126) {
+			length = in.getShort(base + 2) & 0xFFFF;
+		}
+		else if (length == 127) {
+			length = in.getLong(base + 2);
+		}
+		if ((b1 & 0x80) == 0 || length < 0 || (b0 & 0x70) != 0) {
+			/** Clients must mask every frame, and no extension that would
+			 *  give the reserved bits a meaning has been negotiated */
+			fail(CLOSE_PROTOCOL_ERROR);
+			return false;
+		}
+
+		if (opcode >= OP_CLOSE) {
+			if (!fin || length > 125 || opcode > OP_PONG || (opcode == OP_CLOSE && length == 1)) {
+				fail(CLOSE_PROTOCOL_ERROR);
+				return false;
+			}
+			if (in.remaining() < header + length) return false;
+			byte[] payload = new byte[(int) length];
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] = (byte) (in.get(base + header + i) ^ in.get(base + header - 4 + (i & 3)));
+			}
+			in.position(base + header + (int) length);
+			control(opcode, payload);
+			return true;
+		}
+		if (opcode == OP_BINARY) {
+			fail(CLOSE_UNSUPPORTED);
+			return false;
+		}
+		if ((opcode != OP_TEXT && opcode != OP_CONTINUATION) || (opcode == OP_CONTINUATION) != fragmented) {
+			/** A reserved opcode, a continuation with no message to
+			 *  continue, or a new message before the last has finished */
+			fail(CLOSE_PROTOCOL_ERROR);
+			return false;
+		}
+		fragmented = !fin;
+
+		for (int i = 0; i < 4; i++) {
+			mask[i] = in.get(base + header - 4 + i);
+		}
+		in.position(base + header);
+		maskIndex = 0;
+		payloadLeft = length;
+		finalFrame = fin;
+		if (length == 0 && fin) newlinePending = true;
+		return true;
+	}
+
+	private void control(int opcode, byte[] payload) {
+		if (opcode == OP_PING) {
+			session.send(frame(OP_PONG, payload, 0, payload.length), true);
+		}
+		else if (opcode == OP_CLOSE) {
+			/** Echo the close, then end the session once it is written */
+			session.send(frame(OP_CLOSE, payload, 0, Math.min(payload.length, 2)));
+			session.shutdownOutput();
+			ended = true;
+		}
+	}
+
+	/** Closes the connection with the given code after a protocol error */
+	private void fail(int code) {
+		Log.info("websocket.error", session, "Closing with code " + code);
+		byte[] payload = { (byte) (code >>> 8), (byte) code };
+		session.send(frame(OP_CLOSE, payload, 0, 2));
+		session.shutdownOutput();
+		ended = true;
+	}
+}
@@ -0,0 +1,412 @@
+package chatserver;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * WebSocketCheck.java
+ *
+ * A scripted WebSocket client that checks a running server's WebSocket port
+ * against RFC 6455. It performs the opening handshake and verifies the
+ * server's accept key, then logs in and chats with masked text messages,
+ * fragmented messages, pings between fragments and a message longer than a
+ * chat line, and closes with a close frame. Each way of breaking the protocol
+ * the server must refuse, an unmasked frame, reserved bits or opcodes, a
+ * stray continuation, a fragmented or overlong control frame and so on, is
+ * then sent on a connection of its own, and the server must answer with the
+ * right close code and hang up. Run it against a server that is up:
+ *
+ *     java -cp bin chatserver/WebSocketCheck [host] [port] [username] [password]
+ *
+ * The account is created if it does not exist yet. The check prints a line
+ * for each step and exits with status 1 if any of them failed.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class WebSocketCheck {
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private static final int OP_CONTINUATION = 0x0;
+	private static final int OP_TEXT = 0x1;
+	private static final int OP_BINARY = 0x2;
+	private static final int OP_CLOSE = 0x8;
+	private static final int OP_PING = 0x9;
+	private static final int OP_PONG = 0xA;
+
+	private static final int CLOSE_NORMAL = 1000;
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+	private static final int CLOSE_UNSUPPORTED = 1003;
+
+	/** Time to wait for any one answer from the server */
+	private static final int TIMEOUT_MS = 5000;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private static String host;
+	private static int port;
+	private static int failures;
+
+	private WebSocketCheck() {}
+
+	public static void main(String[] args) throws Exception {
+		host = args.length > 0 ? args[0] : "localhost";
+		port = args.length > 1 ? Integer.parseInt(args[1]) : ServerConfig.WEBSOCKET_PORT;
+		String username = args.length > 2 ? args[2] : "wscheck";
+		String password = args.length > 3 ? args[3] : "wscheck";
+
+		chat(username, password);
+
+		refused("unmasked frame", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.sendUnmasked(OP_TEXT, bytes("hello"));
+			}
+		});
+		refused("reserved bit set", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(0x80 | 0x40 | OP_TEXT, bytes("hello"));
+			}
+		});
+		refused("binary message", CLOSE_UNSUPPORTED, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(0x80 | OP_BINARY, new byte[] { 1, 2, 3 });
+			}
+		});
+		refused("reserved data opcode", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(0x80 | 0x3, bytes("hello"));
+			}
+		});
+		refused("reserved control opcode", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(0x80 | 0xB, new byte[0]);
+			}
+		});
+		refused("continuation without a message", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(0x80 | OP_CONTINUATION, bytes("hello"));
+			}
+		});
+		refused("new message inside a fragmented one", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(OP_TEXT, bytes("hel"));
+				c.send(0x80 | OP_TEXT, bytes("hello"));
+			}
+		});
+		refused("fragmented ping", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(OP_PING, bytes("probe"));
+			}
+		});
+		refused("control frame over 125 bytes", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(0x80 | OP_PING, new byte[126]);
+			}
+		});
+		refused("one byte close payload", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				c.send(0x80 | OP_CLOSE, new byte[] { 3 });
+			}
+		});
+		refused("length with the top bit set", CLOSE_PROTOCOL_ERROR, new Script() {
+			void run(Connection c) throws IOException {
+				byte[] header = { (byte) (0x80 | OP_TEXT), (byte) (0x80 | 127),
+						(byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4 };
+				c.out.write(header);
+				c.out.flush();
+			}
+		});
+		health();
+
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/** Logs in and chats over a single connection, ending it with a close */
+	private static void chat(String username, String password) {
+		Connection c = null;
+		try {
+			c = new Connection();
+			pass("handshake");
+
+			c.sendText("NEWUSER: " + username + "," + password);
+			c.awaitText("USERCREATED", "TAKEN");
+			c.sendText("LOGIN: " + username + "," + password);
+			c.awaitText("ACCEPTED", "DENIED");
+			if (!c.last.equals("ACCEPTED")) throw new IOException("Login was " + c.last);
+			pass("login");
+
+			String line = username + ": plain message";
+			c.sendText(line);
+			c.awaitText(line);
+			pass("masked text message");
+
+			line = username + ": fragmented message";
+			c.send(OP_TEXT, bytes(username + ": frag"));
+			c.send(OP_CONTINUATION, bytes("mented "));
+			c.send(0x80 | OP_CONTINUATION, bytes("message"));
+			c.awaitText(line);
+			pass("fragmented message");
+
+			line = username + ": pinged between fragments";
+			c.send(OP_TEXT, bytes(username + ": pinged "));
+			c.send(0x80 | OP_PING, bytes("probe"));
+			c.send(OP_CONTINUATION, bytes("between "));
+			c.send(0x80 | OP_PONG, bytes("unsolicited"));
+			c.send(0x80 | OP_CONTINUATION, bytes("fragments"));
+			c.awaitText(line);
+			if (!c.ponged) throw new IOException("No pong for the ping between fragments");
+			pass("control frames between fragments");
+
+			byte[] oversized = new byte[ServerConfig.MAX_FRAME_BYTES + 1];
+			Arrays.fill(oversized, (byte) 'x');
+			c.send(OP_TEXT, Arrays.copyOfRange(oversized, 0, oversized.length / 2));
+			c.send(0x80 | OP_CONTINUATION, Arrays.copyOfRange(oversized, oversized.length / 2, oversized.length));
+			c.awaitText("INVALID FRAME_TOO_LARGE");
+			line = username + ": still here";
+			c.sendText(line);
+			c.awaitText(line);
+			pass("oversized message dropped");
+
+			c.send(0x80 | OP_CLOSE, new byte[] { (byte) (CLOSE_NORMAL >>> 8), (byte) CLOSE_NORMAL, 'b', 'y', 'e' });
+			c.awaitClose(CLOSE_NORMAL);
+			pass("close handshake");
+		} catch (IOException e) {
+			fail("chat", e);
+		} finally {
+			if (c != null) c.close();
+		}
+	}
+
+	/** Runs a script on a fresh connection and expects the server to close
+	 *  it with the given code */
+	private static void refused(String name, int code, Script script) {
+		Connection c = null;
+		try {
+			c = new Connection();
+			script.run(c);
+			c.awaitClose(code);
+			pass(name);
+		} catch (IOException e) {
+			fail(name, e);
+		} finally {
+			if (c != null) c.close();
+		}
+	}
+
+	/** Checks the health endpoint on the same port */
+	private static void health() {
+		try {
+			Socket socket = new Socket(host, port);
+			try {
+				socket.setSoTimeout(TIMEOUT_MS);
+				socket.getOutputStream().write(bytes("GET /health HTTP/1.1\r\nHost: " + host + "\r\n\r\n"));
+				byte[] answer = new byte[12];
+				new DataInputStream(socket.getInputStream()).readFully(answer);
+				String status = new String(answer, StandardCharsets.ISO_8859_1);
+				if (!status.equals("HTTP/1.1 200")) throw new IOException("Answered " + status);
+				pass("health check");
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			fail("health check", e);
+		}
+	}
+
+	private static void pass(String name) {
+		System.out.println("ok    " + name);
+	}
+
+	private static void fail(String name, IOException e) {
+		failures++;
+		System.out.println("FAIL  " + name + ": " + e.getMessage());
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Frames sent to the server on a connection of their own */
+	private static abstract class Script {
+		abstract void run(Connection c) throws IOException;
+	}
+
+	/** A WebSocket connection to the server, past the handshake */
+	private static final class Connection {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+
+		/** The last text message awaited, and whether a pong has come */
+		String last;
+		boolean ponged;
+
+		Connection() throws IOException {
+			socket = new Socket(host, port);
+			socket.setSoTimeout(TIMEOUT_MS);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+			handshake();
+		}
+
+		private void handshake() throws IOException {
+			byte[] nonce = new byte[16];
+			random.nextBytes(nonce);
+			String key = Base64.getEncoder().encodeToString(nonce);
+			out.write(bytes("GET /chat HTTP/1.1\r\nHost: " + host + "\r\nUpgrade: websocket\r\n"
+					+ "Connection: Upgrade\r\nSec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n"));
+			out.flush();
+
+			StringBuilder response = new StringBuilder();
+			while (response.indexOf("\r\n\r\n") < 0) {
+				response.append((char) in.readUnsignedByte());
+			}
+			String[] lines = response.toString().split("\r\n");
+			if (!lines[0].startsWith("HTTP/1.1 101")) throw new IOException("Handshake answered " + lines[0]);
+			String accept = null;
+			for (int i = 1; i < lines.length; i++) {
+				if (lines[i].toLowerCase().startsWith("sec-websocket-accept:")) {
+					accept = lines[i].substring(lines[i].indexOf(':') + 1).trim();
+				}
+			}
+			if (!expectedAccept(key).equals(accept)) throw new IOException("Wrong accept key " + accept);
+		}
+
+		void sendText(String text) throws IOException {
+			send(0x80 | OP_TEXT, bytes(text));
+		}
+
+		/** Sends a masked frame, the first byte giving FIN, RSV and opcode */
+		void send(int first, byte[] payload) throws IOException {
+			byte[] mask = new byte[4];
+			random.nextBytes(mask);
+			byte[] masked = new byte[payload.length];
+			for (int i = 0; i < payload.length; i++) masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+			out.write(header(first, payload.length, true));
+			out.write(mask);
+			out.write(masked);
+			out.flush();
+		}
+
+		void sendUnmasked(int opcode, byte[] payload) throws IOException {
+			out.write(header(0x80 | opcode, payload.length, false));
+			out.write(payload);
+			out.flush();
+		}
+
+		private static byte[] header(int first, int length, boolean masked) {
+			int bit = masked ? 0x80 : 0;
+			if (length < 126) return new byte[] { (byte) first, (byte) (bit | length) };
+			if (length < 65536) {
+				return new byte[] { (byte) first, (byte) (bit | 126), (byte) (length >>> 8), (byte) length };
+			}
+			byte[] header = new byte[10];
+			header[0] = (byte) first;
+			header[1] = (byte) (bit | 127);
+			for (int i = 0; i < 8; i++) header[9 - i] = (byte) ((long) length >>> (8 * i));
+			return header;
+		}
+
+		/** Reads messages until one of the given texts arrives, noting
+		 *  pongs on the way and skipping other chat */
+		void awaitText(String... wanted) throws IOException {
+			while (true) {
+				Frame frame = receive();
+				if (frame.opcode == OP_PONG) {
+					if (!Arrays.equals(frame.payload, bytes("probe"))) throw new IOException("Pong did not echo the ping");
+					ponged = true;
+				}
+				else if (frame.opcode == OP_CLOSE) {
+					throw new IOException("Closed with " + frame.closeCode() + " waiting for " + wanted[0]);
+				}
+				else if (frame.opcode == OP_TEXT) {
+					String text = new String(frame.payload, StandardCharsets.UTF_8);
+					for (int i = 0; i < wanted.length; i++) {
+						if (text.equals(wanted[i])) {
+							last = text;
+							return;
+						}
+					}
+				}
+			}
+		}
+
+		/** Reads until the server's close frame, which must carry the given
+		 *  code, after which the server must hang up */
+		void awaitClose(int code) throws IOException {
+			Frame frame;
+			do {
+				frame = receive();
+			} while (frame.opcode != OP_CLOSE);
+			if (frame.closeCode() != code) throw new IOException("Closed with " + frame.closeCode() + ", not " + code);
+			try {
+				if (in.read() >= 0) throw new IOException("Data after the close frame");
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Server did not hang up after closing");
+			}
+		}
+
+		/** Reads one frame, which the server must not have masked or
+		 *  fragmented */
+		private Frame receive() throws IOException {
+			try {
+				int b0 = in.readUnsignedByte();
+				int b1 = in.readUnsignedByte();
+				if ((b0 & 0x80) == 0 || (b0 & 0x70) != 0) throw new IOException("Fragmented or reserved bits from server");
+				if ((b1 & 0x80) != 0) throw new IOException("Masked frame from server");
+				long length = b1 & 0x7F;
+				if (length == 126) length = in.readUnsignedShort();
+				else if (length == 127) length = in.readLong();
+				byte[] payload = new byte[(int) length];
+				in.readFully(payload);
+				return new Frame(b0 & 0x0F, payload);
+			} catch (EOFException e) {
+				throw new IOException("Server hung up without a close frame");
+			} catch (SocketTimeoutException e) {
+				throw new IOException("No answer within " + TIMEOUT_MS + "ms");
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private static final class Frame {
+		final int opcode;
+		final byte[] payload;
+
+		Frame(int opcode, byte[] payload) {
+			this.opcode = opcode;
+			this.payload = payload;
+		}
+
+		int closeCode() {
+			return payload.length < 2 ? -1 : ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+		}
+	}
+
+	private static String expectedAccept(String key) throws IOException {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(sha1.digest(bytes(key + ACCEPT_GUID)));
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package chatserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * WordFilter.java
+ *
+ * The built-in message filter, which masks or blocks the words and phrases
+ * listed in a file, such as banned words, leaked secrets or spam links. The
+ * file has one pattern per line. A line starting with "block " lists a
+ * pattern that gets a chat line dropped, any other line a pattern that is
+ * masked with asterisks. Blank lines and lines starting with # are ignored.
+ * Patterns are matched anywhere in a line, ignoring case:
+ *
+ *     # masked
+ *     darn
+ *     # blocked
+ *     block bit.ly/
+ *     block AKIA
+ *
+ * All the patterns are compiled into a single WordMatcher, so a line is
+ * checked in one pass whatever the length of the list. The file is checked
+ * for changes on the timing wheel and reloaded when it changes, and the new
+ * matcher swapped in without disturbing lines being filtered at the time. A
+ * missing file filters nothing.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+class WordFilter extends TimingWheel.Timeout implements MessageFilter {
+	private static final String BLOCK_PREFIX = "block ";
+
+	private final File file;
+	private final TimingWheel wheel;
+	private final long checkMillis;
+
+	/** Runs the reloads, which read the file and so must not run on the
+	 *  timing wheel's thread */
+	private final Executor loader;
+
+	private volatile WordMatcher matcher = WordMatcher.EMPTY;
+
+	/** Modification time and length of the file when last loaded, 0 if
+	 *  it was missing */
+	private volatile long loadedModified;
+	private volatile long loadedLength;
+
+	/** Set while a reload is queued on the loader */
+	private volatile boolean reloading;
+
+	/**
+	 * Loads the word list and starts watching it for changes.
+	 *
+	 * @param file The word list.
+	 * @param wheel The timing wheel the file is checked on.
+	 * @param checkMillis How often the file is checked for changes.
+	 * @param loader Runs reloads off the wheel's thread.
+	 */
+	WordFilter(File file, TimingWheel wheel, long checkMillis, Executor loader) {
+		this.file = file;
+		this.wheel = wheel;
+		this.checkMillis = checkMillis;
+		this.loader = loader;
+		try {
+			reload();
+		} catch (IOException e) {
+			Log.error("filter.load", e);
+		}
+		wheel.schedule(this, checkMillis);
+	}
+
+	public String filter(Session sender, String text) {
+		return matcher.filter(text);
+	}
+
+	/**
+	 * Reads the word list and swaps in a matcher compiled from it.
+	 *
+	 * @return Number of patterns now in use.
+	 * @throws IOException If the file exists but cannot be read, the
+	 *         patterns in use are kept.
+	 */
+	synchronized int reload() throws IOException {
+		long modified = file.lastModified();
+		long length = file.length();
+		ArrayList<String> patterns = new ArrayList<String>();
+		ArrayList<Boolean> blocking = new ArrayList<Boolean>();
+		if (file.isFile()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) continue;
+					boolean block = line.startsWith(BLOCK_PREFIX);
+					if (block) line = line.substring(BLOCK_PREFIX.length()).trim();
+					if (line.isEmpty()) continue;
+					patterns.add(line);
+					blocking.add(block);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		matcher = WordMatcher.compile(patterns, blocking);
+		loadedModified = modified;
+		loadedLength = length;
+		Log.info("filter.load", matcher.size() + " filter patterns loaded from " + file);
+		return matcher.size();
+	}
+
+	/** @return The word list */
+	File getFile() {
+		return file;
+	}
+
+	/** Checks whether the file has changed since it was loaded, on the
+	 *  wheel's thread, and queues a reload if it has */
+	void expire() {
+		if (!reloading && (file.lastModified() != loadedModified || file.length() != loadedLength)) {
+			reloading = true;
+			loader.execute(new Runnable() {
+				public void run() {
+					try {
+						reload();
+					} catch (IOException e) {
+						Log.error("filter.load", e);
+					} finally {
+						reloading = false;
+					}
+				}
+			});
+		}
+		wheel.schedule(this, checkMillis);
+	}
+}
@@ -0,0 +1,179 @@
+package chatserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * WordMatcher.java
+ *
+ * Finds any of a list of words and phrases in a chat line in a single pass,
+ * however many there are, using the Aho-Corasick algorithm. The patterns are
+ * compiled into a trie whose failure links are folded into a complete
+ * transition table, so scanning a line costs one table lookup per character
+ * and never backtracks. Matching ignores case.
+ *
+ * Each pattern either masks, its occurrences are replaced with asterisks, or
+ * blocks, a line containing it is dropped altogether. Scanning a line that
+ * contains no pattern allocates nothing and returns the line itself.
+ *
+ * Only characters that occur in some pattern get a column of their own in the
+ * table, every other character shares a single column which always leads
+ * back to the root. The table therefore takes one int per state for each
+ * distinct pattern character, plus a fixed 128 KB character map.
+ *
+ * A matcher is immutable once compiled and may be used by any number of
+ * threads at once.
+ *
+ * @author Cory Gross
+ * @version October 25, 2012
+ */
+final class WordMatcher {
+
+	/** Matches nothing */
+	static final WordMatcher EMPTY = new WordMatcher(new String[0], new boolean[0]);
+
+	/** Stands in for each masked character */
+	private static final char MASK = '*';
+
+	/** Marks a state at which a blocking pattern ends, see actions */
+	private static final int BLOCK = -1;
+
+	/** The column of every character, 0 for those in no pattern */
+	private final char[] columns = new char[Character.MAX_VALUE + 1];
+
+	/** Number of columns, one per distinct pattern character plus column 0 */
+	private final int width;
+
+	/** Transition table, the state reached from state s on column c is
+	 *  next[s * width + c]. State 0 is the root. */
+	private final int[] next;
+
+	/** Per state, BLOCK if a blocking pattern ends there, otherwise the
+	 *  length of the longest masking pattern ending there, or 0 */
+	private final int[] actions;
+
+	private final int patterns;
+
+	/**
+	 * Compiles a list of patterns.
+	 *
+	 * @param patterns The words and phrases, empty ones are ignored.
+	 * @param blocking For each pattern, true if a line containing it is
+	 *        dropped, false if the pattern is masked.
+	 */
+	WordMatcher(String[] patterns, boolean[] blocking) {
+		int states = 1;
+		int count = 0;
+		char symbols = 0;
+		for (int i = 0; i < patterns.length; i++) {
+			if (patterns[i].isEmpty()) continue;
+			count++;
+			states += patterns[i].length();
+			for (int j = 0; j < patterns[i].length(); j++) {
+				char c = Character.toLowerCase(patterns[i].charAt(j));
+				if (columns[c] == 0) columns[c] = ++symbols;
+			}
+		}
+		this.patterns = count;
+		width = symbols + 1;
+		int[] table = new int[states * width];
+		int[] action = new int[states];
+
+		/** Build the trie, 0 in the table meaning no edge yet */
+		int used = 1;
+		for (int i = 0; i < patterns.length; i++) {
+			String pattern = patterns[i];
+			if (pattern.isEmpty()) continue;
+			int state = 0;
+			for (int j = 0; j < pattern.length(); j++) {
+				int slot = state * width + columns[Character.toLowerCase(pattern.charAt(j))];
+				if (table[slot] == 0) table[slot] = used++;
+				state = table[slot];
+			}
+			if (blocking[i]) action[state] = BLOCK;
+			else if (action[state] != BLOCK) action[state] = Math.max(action[state], pattern.length());
+		}
+
+		/** Breadth first, give each state its failure link and fill in its
+		 *  missing edges from its failure state's, which is shallower and so
+		 *  already complete. A state inherits the action of the patterns
+		 *  ending at its failure state, which are suffixes of its own. */
+		int[] fail = new int[used];
+		int[] queue = new int[used];
+		int head = 0;
+		int tail = 0;
+		for (int c = 1; c < width; c++) {
+			int child = table[c];
+			if (child != 0) queue[tail++] = child;
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			int inherited = action[fail[state]];
+			if (inherited == BLOCK) action[state] = BLOCK;
+			else if (action[state] != BLOCK) action[state] = Math.max(action[state], inherited);
+			for (int c = 1; c < width; c++) {
+				int slot = state * width + c;
+				int fallback = table[fail[state] * width + c];
+				if (table[slot] == 0) {
+					table[slot] = fallback;
+				}
+				else {
+					fail[table[slot]] = fallback;
+					queue[tail++] = table[slot];
+				}
+			}
+		}
+		next = Arrays.copyOf(table, used * width);
+		actions = Arrays.copyOf(action, used);
+	}
+
+	/**
+	 * Compiles a list of patterns.
+	 *
+	 * @param patterns The words and phrases.
+	 * @param blocking For each pattern, whether it blocks rather than masks.
+	 * @return The matcher.
+	 */
+	static WordMatcher compile(List<String> patterns, List<Boolean> blocking) {
+		boolean[] blocks = new boolean[blocking.size()];
+		for (int i = 0; i < blocks.length; i++) blocks[i] = blocking.get(i);
+		return new WordMatcher(patterns.toArray(new String[patterns.size()]), blocks);
+	}
+
+	/**
+	 * Scans a line for the patterns.
+	 *
+	 * @param text The line.
+	 * @return The line itself if no pattern occurs in it, a copy with the
+	 *         masking patterns replaced by asterisks if only those occur, or
+	 *         null if a blocking pattern occurs.
+	 */
+	String filter(String text) {
+		char[] masked = null;
+
+		/** The masked characters nearest the end, [maskedFrom, maskedTo),
+		 *  so overlapping matches only mask what is new */
+		int maskedFrom = 0;
+		int maskedTo = 0;
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			state = next[state * width + columns[Character.toLowerCase(text.charAt(i))]];
+			int action = actions[state];
+			if (action == 0) continue;
+			if (action == BLOCK) return null;
+			if (masked == null) masked = text.toCharArray();
+			int start = i + 1 - action;
+			if (start > maskedTo) maskedFrom = start;
+			for (int j = Math.max(start, maskedTo); j <= i; j++) masked[j] = MASK;
+			for (int j = start; j < maskedFrom; j++) masked[j] = MASK;
+			maskedFrom = Math.min(maskedFrom, start);
+			maskedTo = i + 1;
+		}
+		return masked == null ? text : new String(masked);
+	}
+
+	/** @return Number of patterns compiled in */
+	int size() {
+		return patterns;
+	}
+}